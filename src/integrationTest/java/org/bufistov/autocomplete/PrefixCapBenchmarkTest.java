@@ -0,0 +1,142 @@
+package org.bufistov.autocomplete;
+
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.TopKQueries;
+import org.bufistov.storage.InMemoryStorage;
+import org.bufistov.storage.Storage;
+import org.junit.jupiter.api.Test;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Replays the AOL 1M queries with and without the prefix length cap and measures write amplification,
+ * i.e. prefix writes per topK propagation, and how many results of prefixes longer than the cap
+ * are the same as without the cap. In memory storage, so it's the number of writes that is compared.
+ * Numbers are logged, there are no assertions on them.
+ */
+@Log4j2
+public class PrefixCapBenchmarkTest {
+
+    static final String QUERY_FILE = "queries/aol_2006_1M_queries.txt.gz";
+
+    static final long TOPK = 10;
+
+    static final int MAX_QUERY_SIZE = 100;
+
+    static final int CAPPED_PREFIX_TOPK_FACTOR = 5;
+
+    static final int SAMPLE_PREFIXES = 10000;
+
+    @Test
+    void benchmark_writeAmplification() {
+        List<String> queries = readQueries();
+        log.info("Read {} queries", queries.size());
+        var uncapped = run("no cap", queries, null);
+        for (int maxPrefixLength : List.of(30, 20)) {
+            var capped = run("cap " + maxPrefixLength, queries, maxPrefixLength);
+            compare("cap " + maxPrefixLength, queries, maxPrefixLength, uncapped, capped);
+        }
+    }
+
+    private QueryHandler run(String name, List<String> queries, Integer maxPrefixLength) {
+        var config = QueryHandlerConfig.builder()
+                .topK(TOPK)
+                .maxRetriesToUpdateTopK(20L)
+                .maxQuerySize(MAX_QUERY_SIZE)
+                // Fixed clock, updates are triggered by the counts only.
+                .queryUpdateMillis(5000L)
+                .queryUpdateCount(10L)
+                .firstQueryUpdateCount(5L)
+                .maxPrefixLength(maxPrefixLength)
+                .cappedPrefixTopKFactor(CAPPED_PREFIX_TOPK_FACTOR)
+                .build();
+        var counters = new UpdateSuffixesBenchmarkTest.WriteCounters();
+        var reads = new AtomicLong();
+        var propagations = new AtomicLong();
+        var storage = UpdateSuffixesBenchmarkTest.counting(
+                counting(new InMemoryStorage(queries.size()), reads, propagations), counters);
+        var handler = new QueryHandlerImpl(storage, config, new UpdateSuffixesMap(storage),
+                new UniformRandomInterval(new Random(0), 1), Clock.fixed(Instant.now(), ZoneId.systemDefault()));
+
+        long start = System.currentTimeMillis();
+        queries.forEach(handler::addQuery);
+        long writes = counters.conditional.get() + counters.unconditional.get();
+        log.info("{}: {} queries in {} ms, {} topK propagations, {} prefix reads, {} prefix writes, "
+                        + "{} writes per propagation", name, queries.size(), System.currentTimeMillis() - start,
+                propagations.get(), reads.get(), writes,
+                propagations.get() == 0 ? 0 : String.format("%.2f", (double) writes / propagations.get()));
+        return handler;
+    }
+
+    private void compare(String name, List<String> queries, int maxPrefixLength,
+                         QueryHandler uncapped, QueryHandler capped) {
+        var prefixes = new LinkedHashSet<String>();
+        for (String query : queries) {
+            if (query.length() > maxPrefixLength && prefixes.size() < SAMPLE_PREFIXES) {
+                prefixes.add(query.substring(0, maxPrefixLength + 1 + (query.length() - maxPrefixLength - 1) / 2));
+            }
+        }
+        long same = prefixes.stream()
+                .filter(prefix -> queries(uncapped, prefix).equals(queries(capped, prefix)))
+                .count();
+        log.info("{}: {} of {} sampled prefixes longer than the cap have the same results as without the cap",
+                name, same, prefixes.size());
+    }
+
+    private static List<?> queries(QueryHandler handler, String prefix) {
+        TopKQueries topKQueries = handler.getQueries(prefix);
+        return topKQueries.getQueries() == null ? List.of() : topKQueries.getQueries();
+    }
+
+    /**
+     * Counts prefix reads and topK propagations, i.e. successful query update locks.
+     */
+    private static Storage counting(Storage storage, AtomicLong reads, AtomicLong propagations) {
+        return (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[]{Storage.class},
+                (proxy, method, args) -> {
+                    Object result;
+                    try {
+                        result = method.invoke(storage, args);
+                    } catch (InvocationTargetException exception) {
+                        throw exception.getCause();
+                    }
+                    if (method.getName().startsWith("getTopKQueries")) {
+                        reads.addAndGet(args[0] instanceof Collection ? ((Collection<?>) args[0]).size() : 1);
+                    } else if (method.getName().equals("lockQueryForTopKUpdate") && Boolean.TRUE.equals(result)) {
+                        propagations.incrementAndGet();
+                    }
+                    return result;
+                });
+    }
+
+    private static List<String> readQueries() {
+        List<String> queries = new ArrayList<>();
+        try (var reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(QUERY_FILE)), StandardCharsets.UTF_8))) {
+            // Header line.
+            reader.readLine();
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                queries.add(line);
+            }
+        } catch (IOException exception) {
+            throw new RuntimeException(exception);
+        }
+        return queries;
+    }
+}
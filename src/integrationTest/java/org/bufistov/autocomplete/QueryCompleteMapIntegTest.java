@@ -168,7 +168,7 @@ public class QueryCompleteMapIntegTest {
     }
 
     List<SuffixCount> getCurrentTopK(String prefix) {
-        var res = queryComplete.queries(prefix);
+        var res = queryComplete.queries(prefix, null).join().getBody();
         log.info(res.toString());
         return res.getQueries();
     }
@@ -137,7 +137,7 @@ public class QueryCompleteTupleSetIntegTest {
     }
 
     List<SuffixCount> getCurrentTopK(String prefix) {
-        var res = queryComplete.queries(prefix);
+        var res = queryComplete.queries(prefix, null).join().getBody();
         log.info(res.toString());
         return res.getQueries();
     }
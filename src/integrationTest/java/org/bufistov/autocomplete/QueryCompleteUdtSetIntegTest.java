@@ -144,7 +144,7 @@ public class QueryCompleteUdtSetIntegTest {
     }
 
     List<SuffixCount> getCurrentTopK(String prefix) {
-        var res = queryComplete.queries(prefix);
+        var res = queryComplete.queries(prefix, null).join().getBody();
         log.info(res.toString());
         return res.getQueries();
     }
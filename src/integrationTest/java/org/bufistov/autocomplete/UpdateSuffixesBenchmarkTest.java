@@ -0,0 +1,168 @@
+package org.bufistov.autocomplete;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.mapping.MappingManager;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.storage.CassandraStorage;
+import org.bufistov.storage.ClusteredCassandraStorage;
+import org.bufistov.storage.Storage;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.CassandraContainer;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Compares the UpdateSuffixes strategies on the same skewed workload: latency of topK updates and reads,
+ * conflict rate and write amplification, i.e. storage writes per topK change, LWTs counted separately.
+ * Every strategy writes its own prefixes. Numbers are logged, there are no assertions on them.
+ */
+@Log4j2
+@Testcontainers
+public class UpdateSuffixesBenchmarkTest {
+
+    static final long TOPK = 10;
+
+    static final int NUM_PREFIXES = 20;
+
+    static final int NUM_SUFFIXES = 200;
+
+    static final int WARMUP_ITERATIONS = 500;
+
+    static final int ITERATIONS = 5000;
+
+    static final int MAX_RETRIES = 10;
+
+    static final Set<String> CONDITIONAL_WRITES = Set.of("updateTopK1Queries", "addSuffixes", "removeSuffixes",
+            "updateTopKQueries", "replaceSuffixCounter", "updateTopK2Queries", "updateTopK3Queries");
+
+    static final Set<String> UNCONDITIONAL_WRITES = Set.of("mergeSuffixRow", "removeSuffixRows",
+            "mergeCandidate", "removeCandidates");
+
+    private static final CassandraContainer cassandra = new CassandraContainer("cassandra:latest")
+            .withInitScript("create_tables.cqlsh")
+            .withJmxReporting(false);
+
+    private static MappingManager manager;
+
+    @BeforeAll
+    static void beforeAll() {
+        cassandra.start();
+        Cluster cluster = cassandra.getCluster();
+        Session session = cluster.connect();
+        manager = new MappingManager(session);
+    }
+
+    @AfterAll
+    static void afterAll() {
+        cassandra.stop();
+    }
+
+    @Test
+    void benchmark_updateAndRead() {
+        var collections = new CassandraStorage(manager, 3600);
+        var clustered = new ClusteredCassandraStorage(manager, 3600, 2 * (int) TOPK);
+        var strategies = new LinkedHashMap<String, Function<Storage, UpdateSuffixes>>();
+        strategies.put("map", UpdateSuffixesMap::new);
+        strategies.put("tuple_set", UpdateSuffixesTupleSet::new);
+        strategies.put("udt_set", UpdateSuffixesUdtSet::new);
+        strategies.put("blob", UpdateSuffixesBlob::new);
+        strategies.put("clustered", storage -> new UpdateSuffixesClustered(storage, TOPK));
+        strategies.put("candidates", storage -> new UpdateSuffixesCandidates(storage, TOPK, 3));
+        for (String pass : List.of(" warmup", "")) {
+            strategies.forEach((name, strategy) -> {
+                var counters = new WriteCounters();
+                var storage = counting(name.equals("clustered") ? clustered : collections, counters);
+                run(name + pass, storage, strategy.apply(storage), counters,
+                        pass.isEmpty() ? ITERATIONS : WARMUP_ITERATIONS);
+            });
+        }
+    }
+
+    private void run(String name, Storage storage, UpdateSuffixes updateSuffixes, WriteCounters counters,
+                     int iterations) {
+        var random = new Random(0);
+        var counts = new HashMap<String, Long>();
+        List<Long> updateLatencies = new ArrayList<>(iterations);
+        List<Long> readLatencies = new ArrayList<>(iterations);
+        long changes = 0;
+        long conflicts = 0;
+        for (int i = 0; i < iterations; ++i) {
+            String prefix = name + "_" + random.nextInt(NUM_PREFIXES) + "_";
+            // Squared uniform gives a skewed suffix popularity, similar to the real queries.
+            double uniform = random.nextDouble();
+            String query = prefix + (int) (uniform * uniform * NUM_SUFFIXES);
+            long count = counts.merge(query, 1L, Long::sum);
+
+            long start = System.nanoTime();
+            var status = TopKUpdateStatus.CONDITION_FAILED;
+            for (int retry = 0; retry < MAX_RETRIES && status == TopKUpdateStatus.CONDITION_FAILED; ++retry) {
+                status = updateSuffixes.updateTopKSuffixes(query, count, prefix, TOPK);
+                if (status == TopKUpdateStatus.CONDITION_FAILED) {
+                    ++conflicts;
+                }
+            }
+            updateLatencies.add((System.nanoTime() - start) / 1000);
+            if (status == TopKUpdateStatus.SUCCESS) {
+                ++changes;
+            }
+
+            start = System.nanoTime();
+            updateSuffixes.toSortedList(storage.getTopKQueries(prefix));
+            readLatencies.add((System.nanoTime() - start) / 1000);
+        }
+        long writes = counters.conditional.get() + counters.unconditional.get();
+        log.info("{}: {} updates, {} topK changes, {} conflicts, {} storage writes ({} LWT), {} writes per change",
+                name, iterations, changes, conflicts, writes, counters.conditional.get(),
+                changes == 0 ? 0 : String.format("%.2f", (double) writes / changes));
+        logLatencies(name + " update", updateLatencies);
+        logLatencies(name + " read", readLatencies);
+    }
+
+    static class WriteCounters {
+        final AtomicLong conditional = new AtomicLong();
+        final AtomicLong unconditional = new AtomicLong();
+    }
+
+    static Storage counting(Storage storage, WriteCounters counters) {
+        return (Storage) Proxy.newProxyInstance(Storage.class.getClassLoader(), new Class<?>[]{Storage.class},
+                (proxy, method, args) -> {
+                    if (CONDITIONAL_WRITES.contains(method.getName())) {
+                        counters.conditional.incrementAndGet();
+                    } else if (UNCONDITIONAL_WRITES.contains(method.getName())) {
+                        counters.unconditional.incrementAndGet();
+                    }
+                    try {
+                        return method.invoke(storage, args);
+                    } catch (InvocationTargetException exception) {
+                        throw exception.getCause();
+                    }
+                });
+    }
+
+    private static void logLatencies(String name, List<Long> latencies) {
+        Collections.sort(latencies);
+        log.info("{}: p50 {} us, p90 {} us, p99 {} us, max {} us", name,
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                latencies.get(latencies.size() - 1));
+    }
+
+    static long percentile(List<Long> sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size());
+        return sortedLatencies.get(index - 1);
+    }
+}
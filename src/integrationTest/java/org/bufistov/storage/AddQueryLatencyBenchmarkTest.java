@@ -0,0 +1,96 @@
+package org.bufistov.storage;
+
+import com.datastax.driver.core.Cluster;
+import com.datastax.driver.core.Session;
+import com.datastax.driver.mapping.Mapper;
+import com.datastax.driver.mapping.MappingManager;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.QueryCountCassandra;
+import org.bufistov.model.QueryUpdateCassandra;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.testcontainers.containers.CassandraContainer;
+import org.testcontainers.junit.jupiter.Testcontainers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Compares latency of add query with sequential reads against the concurrent reads of CassandraStorage.
+ * Numbers are logged, there are no assertions on them.
+ */
+@Log4j2
+@Testcontainers
+public class AddQueryLatencyBenchmarkTest {
+
+    static final int WARMUP_ITERATIONS = 200;
+
+    static final int ITERATIONS = 2000;
+
+    static final int NUM_QUERIES = 100;
+
+    private static final CassandraContainer cassandra = new CassandraContainer("cassandra:latest")
+            .withInitScript("create_tables.cqlsh")
+            .withJmxReporting(false);
+
+    private static CassandraStorage cassandraStorage;
+
+    private static CassandraQueries cassandraQueries;
+
+    private static Mapper<QueryCountCassandra> queryCountMapper;
+
+    private static Mapper<QueryUpdateCassandra> queryUpdateMapper;
+
+    @BeforeAll
+    static void beforeAll() {
+        cassandra.start();
+        Cluster cluster = cassandra.getCluster();
+        Session session = cluster.connect();
+        var manager = new MappingManager(session);
+        queryCountMapper = manager.mapper(QueryCountCassandra.class);
+        queryUpdateMapper = manager.mapper(QueryUpdateCassandra.class);
+        cassandraQueries = manager.createAccessor(CassandraQueries.class);
+        cassandraStorage = new CassandraStorage(manager, 3600);
+    }
+
+    @AfterAll
+    static void afterAll() {
+        cassandra.stop();
+    }
+
+    @Test
+    void benchmark_addQuery_sequentialVsConcurrentReads() {
+        Consumer<String> sequential = query -> {
+            cassandraQueries.incrementCounter(1, query);
+            queryCountMapper.get(query);
+            queryUpdateMapper.get(query);
+        };
+        Consumer<String> concurrent = query -> cassandraStorage.addQuery(query);
+        measure("warmup", sequential, WARMUP_ITERATIONS);
+        measure("warmup", concurrent, WARMUP_ITERATIONS);
+        measure("sequential reads", sequential, ITERATIONS);
+        measure("concurrent reads", concurrent, ITERATIONS);
+    }
+
+    private void measure(String name, Consumer<String> addQuery, int iterations) {
+        List<Long> latencies = new ArrayList<>(iterations);
+        for (int i = 0; i < iterations; ++i) {
+            String query = "benchmark" + (i % NUM_QUERIES);
+            long start = System.nanoTime();
+            addQuery.accept(query);
+            latencies.add((System.nanoTime() - start) / 1000);
+        }
+        Collections.sort(latencies);
+        log.info("{}: {} iterations, p50 {} us, p90 {} us, p99 {} us, max {} us", name, iterations,
+                percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+                latencies.get(latencies.size() - 1));
+    }
+
+    static long percentile(List<Long> sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile / 100.0 * sortedLatencies.size());
+        return sortedLatencies.get(index - 1);
+    }
+}
@@ -380,11 +380,13 @@ public class CassandraQueriesTest {
                 .sinceLastUpdate(2L)
                 .build()));
         cassandraStorage.updateTemporalCounter(TEST_QUERY, -2L);
-        assertThat(queryCountMapper.get(TEST_QUERY), is(QueryCountCassandra.builder()
-                .count(2L)
-                .query(TEST_QUERY)
-                .sinceLastUpdate(0L)
-                .build()));
+        // Reset is not awaited by the storage
+        await().atMost(10, TimeUnit.SECONDS)
+                .until(() -> queryCountMapper.get(TEST_QUERY), is(QueryCountCassandra.builder()
+                        .count(2L)
+                        .query(TEST_QUERY)
+                        .sinceLastUpdate(0L)
+                        .build()));
     }
 
     @Test
@@ -22,5 +22,10 @@ public class Constants {
      */
     public static final String PREFIX_TOPK = "prefix_topk";
 
+    /**
+     * Table to store topK suffixes of each prefix as rows clustered by count.
+     */
+    public static final String PREFIX_TOPK_CLUSTERED = "prefix_topk_clustered";
+
     public static final String SUFFIX_COUNT_TYPE = "SuffixCount";
 }
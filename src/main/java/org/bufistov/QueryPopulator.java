@@ -38,6 +38,11 @@ public class QueryPopulator {
 
     static final String DEFAULT_PREFIX_TO_COUNT = "www";
 
+    /**
+     * Number of queries sent in one /add_queries request, 0 means one /add_query request per query.
+     */
+    static final int DEFAULT_BATCH_SIZE = 0;
+
     static HttpClient httpClient = getHttpClient();
 
     static AtomicLong failuresCounter = new AtomicLong();
@@ -106,14 +111,20 @@ public class QueryPopulator {
         log.info("Queries > 20: {}", queries.stream().filter(q -> q.length() > 20).count());
         log.info("Queries > 10: {}", queries.stream().filter(q -> q.length() > 10).count());
         if (populateQueries) {
+            final int batchSize = getBatchSize();
+            log.info("Batch size: {}", batchSize);
             long start = System.currentTimeMillis();
 
-            var latencies = queries.parallelStream()
-                    .map(QueryPopulator::addQuery)
-                    .collect(Collectors.toList());
+            var latencies = batchSize > 0
+                    ? partition(queries, batchSize).parallelStream()
+                        .map(QueryPopulator::addQueries)
+                        .collect(Collectors.toList())
+                    : queries.parallelStream()
+                        .map(QueryPopulator::addQuery)
+                        .collect(Collectors.toList());
             long totalTimeSeconds = Math.max(1, (System.currentTimeMillis() - start) / 1000);
-            log.info("{} queries in {} seconds", queries.size(), totalTimeSeconds);
-            log.info("Error rate: {}", failuresCounter.get() / (double) queries.size());
+            log.info("{} queries in {} seconds, {} requests", queries.size(), totalTimeSeconds, latencies.size());
+            log.info("Error rate: {}", failuresCounter.get() / (double) latencies.size());
             log.info("QPS {}", queries.size() / totalTimeSeconds);
             log.info("Min latency: {}", Collections.min(latencies));
             log.info("Max latency: {}", Collections.max(latencies));
@@ -159,6 +170,36 @@ public class QueryPopulator {
         return finish - start;
     }
 
+    @SneakyThrows
+    static long addQueries(List<String> queries) {
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(String.format("http://%s:8080/add_queries", getBackend())))
+                .timeout(Duration.ofSeconds(60))
+                .header("content-type", "text/plain")
+                .POST(HttpRequest.BodyPublishers.ofString(String.join("\n", queries), StandardCharsets.UTF_8))
+                .build();
+        long start = System.currentTimeMillis();
+        HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+        long finish = System.currentTimeMillis();
+        if (response.statusCode() / 100 != 2) {
+            log.error(response.body());
+            failuresCounter.incrementAndGet();
+        }
+        var before = queriesCounter.getAndAdd(queries.size());
+        if ((before + queries.size()) / 10000 != before / 10000) {
+            log.info("{} queries done...", before + queries.size());
+        }
+        return finish - start;
+    }
+
+    static List<List<String>> partition(List<String> queries, int batchSize) {
+        List<List<String>> batches = new ArrayList<>();
+        for (int from = 0; from < queries.size(); from += batchSize) {
+            batches.add(queries.subList(from, Math.min(queries.size(), from + batchSize)));
+        }
+        return batches;
+    }
+
     public static long percentile(List<Long> latencies, double percentile) {
         int index = (int) Math.ceil(percentile / 100.0 * latencies.size());
         return latencies.get(index - 1);
@@ -202,6 +243,10 @@ public class QueryPopulator {
         return System.getenv().getOrDefault("BACKEND_HOST", "localhost");
     }
 
+    static int getBatchSize() {
+        return Integer.parseInt(System.getenv().getOrDefault("BATCH_SIZE", Integer.toString(DEFAULT_BATCH_SIZE)));
+    }
+
     static long countQueries(Map<String, Long> counted, int maxCount) {
         return counted.entrySet().parallelStream()
                 .map(Map.Entry::getValue)
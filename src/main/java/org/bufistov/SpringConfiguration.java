@@ -4,36 +4,114 @@ import com.datastax.driver.core.Cluster;
 import com.datastax.driver.core.QueryLogger;
 import com.datastax.driver.core.Session;
 import com.datastax.driver.mapping.MappingManager;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import lombok.extern.log4j.Log4j2;
+import org.bufistov.autocomplete.CandidateCompactor;
+import org.bufistov.autocomplete.CircuitBreaker;
+import org.bufistov.autocomplete.CounterBuffer;
+import org.bufistov.autocomplete.ExponentialJitterInterval;
+import org.bufistov.autocomplete.HotPrefixes;
+import org.bufistov.autocomplete.PrefixAggregator;
+import org.bufistov.autocomplete.PrefixTopKNearCache;
 import org.bufistov.autocomplete.QueryHandler;
 import org.bufistov.autocomplete.QueryHandlerConfig;
 import org.bufistov.autocomplete.QueryHandlerImpl;
 import org.bufistov.autocomplete.RandomInterval;
+import org.bufistov.autocomplete.RetryBudget;
+import org.bufistov.autocomplete.StaleWhileRevalidateReader;
+import org.bufistov.autocomplete.TopKQueriesCache;
+import org.bufistov.autocomplete.TopKRetryScheduler;
+import org.bufistov.autocomplete.TopKUpdateExecutor;
 import org.bufistov.autocomplete.UniformRandomInterval;
+import org.bufistov.autocomplete.UpdateSuffixesBlob;
+import org.bufistov.autocomplete.UpdateSuffixesCandidates;
+import org.bufistov.autocomplete.UpdateSuffixesClustered;
 import org.bufistov.autocomplete.UpdateSuffixesMap;
 import org.bufistov.autocomplete.UpdateSuffixes;
+import org.bufistov.autocomplete.UpdateSuffixesTupleSet;
+import org.bufistov.autocomplete.UpdateSuffixesUdtSet;
+import org.bufistov.cluster.HttpQueryForwarder;
+import org.bufistov.cluster.QueryForwarder;
+import org.bufistov.cluster.QueryOwnership;
+import org.bufistov.handler.TopKQueriesJsonConverter;
 import org.bufistov.storage.CassandraStorage;
+import org.bufistov.storage.ClusteredCassandraStorage;
+import org.bufistov.storage.CoalescingStorage;
+import org.bufistov.storage.EmbeddedStorage;
+import org.bufistov.storage.InMemoryStorage;
 import org.bufistov.storage.Storage;
+import org.bufistov.storage.WriteAheadLog;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.context.annotation.Profile;
 
+import java.io.IOException;
+import java.nio.file.Path;
 import java.time.Clock;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Random;
 
 @Configuration
 @Log4j2
 public class SpringConfiguration {
 
+    static final String EXPONENTIAL_JITTER = "exponential_jitter";
+
+    static final long MAX_TRACKED_CONFLICT_PREFIXES = 100_000;
+
+    static final String TUPLE_SET = "tuple_set";
+
+    static final String UDT_SET = "udt_set";
+
+    static final String BLOB = "blob";
+
+    static final String CLUSTERED = "clustered";
+
+    static final String CANDIDATES = "candidates";
+
+    /**
+     * Profile that replaces Cassandra with the in-memory storage.
+     */
+    public static final String IN_MEMORY_PROFILE = "in-memory";
+
+    /**
+     * Profile that replaces Cassandra with the embedded persistent storage.
+     */
+    public static final String EMBEDDED_PROFILE = "embedded";
+
+    static final String CASSANDRA_PROFILES = "!" + IN_MEMORY_PROFILE + " & !" + EMBEDDED_PROFILE;
+
+    static final long MAX_TRACKED_OWNED_QUERIES = 1_000_000;
+
     @Value("${org.bufistov.autocomplete.max_thread_pool_size}")
     private int maxThreadPoolSize;
 
+    @Value("${org.bufistov.autocomplete.topk_update_queue_size}")
+    private int topKUpdateQueueSize;
+
+    @Value("${org.bufistov.autocomplete.topk_update_rejection_policy}")
+    private TopKUpdateExecutor.RejectionPolicy topKUpdateRejectionPolicy;
+
     @Value("${org.bufistov.autocomplete.max_retry_delay_millis}")
     private int maxRetryDelayMillis;
 
     @Value("${org.bufistov.autocomplete.K}")
     private Long topK;
 
+    @Value("${org.bufistov.autocomplete.update_suffixes_strategy}")
+    private String updateSuffixesStrategy;
+
+    @Value("${org.bufistov.autocomplete.candidates_factor}")
+    private int candidatesFactor;
+
+    @Value("${org.bufistov.storage.clustered_read_limit}")
+    private int clusteredReadLimit;
+
     @Value("${org.bufistov.autocomplete.max_retries_to_update_topk}")
     private Long maxRetriesToUpdateTopK;
 
@@ -49,6 +127,18 @@ public class SpringConfiguration {
     @Value("${org.bufistov.autocomplete.first_query_update_count}")
     private Long firstQueryUpdateCount;
 
+    @Value("${org.bufistov.autocomplete.max_batch_prefixes}")
+    private Integer maxBatchPrefixes;
+
+    @Value("${org.bufistov.autocomplete.max_lookahead}")
+    private Integer maxLookahead;
+
+    @Value("${org.bufistov.autocomplete.max_prefix_length}")
+    private Integer maxPrefixLength;
+
+    @Value("${org.bufistov.autocomplete.capped_prefix_topk_factor}")
+    private Integer cappedPrefixTopKFactor;
+
     @Value("${org.bufistov.storage.cassandra_host}")
     private String cassandraHost;
 
@@ -59,18 +149,79 @@ public class SpringConfiguration {
 
     @Bean
     public UpdateSuffixes updateSuffix() {
-        return new UpdateSuffixesMap();
+        log.info("Update suffixes strategy: {}", updateSuffixesStrategy);
+        switch (updateSuffixesStrategy) {
+            case TUPLE_SET:
+                return new UpdateSuffixesTupleSet();
+            case UDT_SET:
+                return new UpdateSuffixesUdtSet();
+            case BLOB:
+                return new UpdateSuffixesBlob();
+            case CLUSTERED:
+                return new UpdateSuffixesClustered(topK);
+            case CANDIDATES:
+                return new UpdateSuffixesCandidates(topK, candidatesFactor);
+            default:
+                return new UpdateSuffixesMap();
+        }
     }
 
     @Bean
+    @Profile(CASSANDRA_PROFILES)
     public Storage provideStorage(Cluster cluster,
                                   @Value("${org.bufistov.storage.topk_ttl_seconds}") Integer topKTtl) {
+        if (CLUSTERED.equals(updateSuffixesStrategy)) {
+            long maxTopK = maxPrefixLength == null || cappedPrefixTopKFactor == null
+                    ? topK : topK * cappedPrefixTopKFactor;
+            if (clusteredReadLimit < maxTopK) {
+                throw new IllegalArgumentException(String.format(
+                        "clustered_read_limit %d is below %d candidates kept by the longest indexed prefixes",
+                        clusteredReadLimit, maxTopK));
+            }
+        }
         Session session = cluster.connect();
         var manager = new MappingManager(session);
+        if (CLUSTERED.equals(updateSuffixesStrategy)) {
+            return new ClusteredCassandraStorage(manager, topKTtl, clusteredReadLimit);
+        }
         return new CassandraStorage(manager, topKTtl);
     }
 
+    /**
+     * Coalesced view of the storage, injected everywhere instead of the storage when enabled.
+     */
     @Bean
+    @Primary
+    @ConditionalOnProperty(value = "org.bufistov.storage.read_coalescing_enabled", havingValue = "true")
+    public CoalescingStorage provideCoalescingStorage(@Qualifier("provideStorage") Storage storage) {
+        return new CoalescingStorage(storage);
+    }
+
+    @Bean(name = "provideStorage")
+    @Profile(IN_MEMORY_PROFILE)
+    public Storage provideInMemoryStorage(
+            @Value("${org.bufistov.storage.in_memory_initial_capacity}") Integer initialCapacity) {
+        log.info("Using in-memory storage");
+        return new InMemoryStorage(initialCapacity);
+    }
+
+    @Bean(name = "provideStorage", destroyMethod = "close")
+    @Profile(EMBEDDED_PROFILE)
+    public EmbeddedStorage provideEmbeddedStorage(
+            @Value("${org.bufistov.storage.embedded_directory}") String directory,
+            @Value("${org.bufistov.storage.in_memory_initial_capacity}") Integer initialCapacity,
+            @Value("${org.bufistov.storage.embedded_segment_bytes}") Integer segmentBytes,
+            @Value("${org.bufistov.storage.embedded_fsync_policy}") WriteAheadLog.FsyncPolicy fsyncPolicy,
+            @Value("${org.bufistov.storage.embedded_fsync_interval_millis}") Long fsyncIntervalMillis,
+            @Value("${org.bufistov.storage.embedded_snapshot_interval_millis}") Long snapshotIntervalMillis)
+            throws IOException {
+        log.info("Using embedded storage in {}, fsync policy: {}", directory, fsyncPolicy);
+        return EmbeddedStorage.open(Path.of(directory), initialCapacity, segmentBytes,
+                fsyncPolicy, fsyncIntervalMillis, snapshotIntervalMillis);
+    }
+
+    @Bean
+    @Profile(CASSANDRA_PROFILES)
     Cluster provideCluster() {
         Cluster cluster = Cluster.builder()
                 .addContactPoint(cassandraHost)
@@ -85,10 +236,25 @@ public class SpringConfiguration {
     }
 
     @Bean
-    public RandomInterval provideRandomInterval() {
+    public RandomInterval provideRandomInterval(
+            @Value("${org.bufistov.autocomplete.retry_delay_strategy}") String retryDelayStrategy,
+            @Value("${org.bufistov.autocomplete.base_retry_delay_millis}") Long baseRetryDelayMillis) {
+        log.info("Retry delay strategy: {}", retryDelayStrategy);
+        if (EXPONENTIAL_JITTER.equals(retryDelayStrategy)) {
+            return new ExponentialJitterInterval(new Random(0), baseRetryDelayMillis, maxRetryDelayMillis,
+                    MAX_TRACKED_CONFLICT_PREFIXES);
+        }
         return new UniformRandomInterval(new Random(0), maxRetryDelayMillis);
     }
 
+    @Bean
+    public RetryBudget provideRetryBudget(
+            @Value("${org.bufistov.autocomplete.retry_budget_ratio}") Double retryRatio,
+            @Value("${org.bufistov.autocomplete.retry_budget_max_tokens}") Long maxTokens) {
+        log.info("Retry budget ratio: {} max tokens: {}", retryRatio, maxTokens);
+        return new RetryBudget(retryRatio, maxTokens);
+    }
+
     @Bean
     public QueryHandlerConfig provideQueryHandlerConfig() {
         var result = QueryHandlerConfig.builder()
@@ -98,11 +264,133 @@ public class SpringConfiguration {
                 .queryUpdateMillis(queryUpdateMillis)
                 .queryUpdateCount(queryUpdateCount)
                 .firstQueryUpdateCount(firstQueryUpdateCount)
+                .maxBatchPrefixes(maxBatchPrefixes)
+                .maxLookahead(maxLookahead)
+                .maxPrefixLength(maxPrefixLength)
+                .cappedPrefixTopKFactor(cappedPrefixTopKFactor)
                 .build();
         log.info(result);
         return result;
     }
 
+    @Bean(name = QueryHandlerImpl.TOPK_UPDATE_EXECUTOR)
+    public TopKUpdateExecutor provideTopKUpdateExecutor() {
+        log.info("TopK update pool size: {} queue size: {} rejection policy: {}",
+                maxThreadPoolSize, topKUpdateQueueSize, topKUpdateRejectionPolicy);
+        return new TopKUpdateExecutor(maxThreadPoolSize, topKUpdateQueueSize, topKUpdateRejectionPolicy);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "shutdown")
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.counter_buffer_enabled", havingValue = "true")
+    public CounterBuffer provideCounterBuffer(Storage storage,
+                                              @Value("${org.bufistov.autocomplete.counter_flush_millis}") Long flushMillis,
+                                              @Value("${org.bufistov.autocomplete.counter_buffer_max_keys}") Integer maxKeys,
+                                              @Value("${org.bufistov.autocomplete.counter_flush_max_in_flight}") Integer maxInFlight) {
+        log.info("Counter buffer flush interval: {} millis, max buffered keys: {}, max writes in flight: {}",
+                flushMillis, maxKeys, maxInFlight);
+        return new CounterBuffer(storage, flushMillis, maxKeys, maxInFlight);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "shutdown")
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.update_suffixes_strategy", havingValue = CANDIDATES)
+    public CandidateCompactor provideCandidateCompactor(Storage storage,
+            @Value("${org.bufistov.autocomplete.candidates_compaction_millis}") Long compactionMillis) {
+        log.info("Candidates factor: {}, compaction interval: {} millis", candidatesFactor, compactionMillis);
+        return new CandidateCompactor(storage, topK * candidatesFactor, compactionMillis);
+    }
+
+    @Bean(destroyMethod = "shutdown")
+    public TopKRetryScheduler provideTopKRetryScheduler(
+            @Value("${org.bufistov.autocomplete.max_pending_retries}") Integer maxPendingRetries) {
+        return new TopKRetryScheduler(maxPendingRetries);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.topk_near_cache_enabled", havingValue = "true")
+    public PrefixTopKNearCache providePrefixTopKNearCache(
+            @Value("${org.bufistov.autocomplete.topk_near_cache_size}") Long maxSize,
+            @Value("${org.bufistov.autocomplete.topk_near_cache_ttl_millis}") Long ttlMillis) {
+        log.info("TopK near cache size: {} ttl: {} millis", maxSize, ttlMillis);
+        return new PrefixTopKNearCache(maxSize, ttlMillis);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.queries_cache_enabled", havingValue = "true")
+    public TopKQueriesCache provideTopKQueriesCache(
+            @Value("${org.bufistov.autocomplete.queries_cache_max_bytes}") Long maxBytes,
+            @Value("${org.bufistov.autocomplete.queries_cache_ttl_millis}") Long ttlMillis) {
+        log.info("Queries cache max bytes: {} ttl: {} millis", maxBytes, ttlMillis);
+        return new TopKQueriesCache(maxBytes, ttlMillis);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.stale_reads_enabled", havingValue = "true")
+    public StaleWhileRevalidateReader provideStaleWhileRevalidateReader(
+            Clock clock,
+            @Value("${org.bufistov.autocomplete.read_latency_budget_millis}") Long latencyBudgetMillis,
+            @Value("${org.bufistov.autocomplete.stale_cache_size}") Long maxSize,
+            @Value("${org.bufistov.autocomplete.breaker_error_rate}") Double errorRate,
+            @Value("${org.bufistov.autocomplete.breaker_min_requests}") Long minRequests,
+            @Value("${org.bufistov.autocomplete.breaker_window_millis}") Long windowMillis,
+            @Value("${org.bufistov.autocomplete.breaker_open_millis}") Long openMillis) {
+        log.info("Read latency budget: {} millis, circuit breaker error rate: {} min requests: {} window: {} millis "
+                + "open: {} millis", latencyBudgetMillis, errorRate, minRequests, windowMillis, openMillis);
+        return new StaleWhileRevalidateReader(clock, latencyBudgetMillis, maxSize,
+                new CircuitBreaker(clock, errorRate, minRequests, windowMillis, openMillis));
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.json_cache_enabled", havingValue = "true")
+    public TopKQueriesJsonConverter provideTopKQueriesJsonConverter(
+            ObjectMapper objectMapper,
+            @Value("${org.bufistov.autocomplete.json_cache_max_bytes}") Long maxBytes) {
+        log.info("Encoded queries cache max bytes: {}", maxBytes);
+        return new TopKQueriesJsonConverter(objectMapper, maxBytes);
+    }
+
+    @Bean(initMethod = "start", destroyMethod = "shutdown")
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.aggregation_enabled", havingValue = "true")
+    public PrefixAggregator providePrefixAggregator(UpdateSuffixes updateSuffixes,
+            @Value("${org.bufistov.autocomplete.aggregation_depth}") Integer depth,
+            @Value("${org.bufistov.autocomplete.aggregation_interval_millis}") Long intervalMillis) {
+        log.info("Prefixes shorter than {} are aggregated every {} millis", depth, intervalMillis);
+        return new PrefixAggregator(updateSuffixes, topK, depth, intervalMillis);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.autocomplete.hot_prefixes_enabled", havingValue = "true")
+    public HotPrefixes provideHotPrefixes(
+            Clock clock,
+            @Value("${org.bufistov.autocomplete.hot_prefixes}") String prefixes,
+            @Value("${org.bufistov.autocomplete.hot_prefix_shards}") Integer shards,
+            @Value("${org.bufistov.autocomplete.hot_prefix_auto_max_length}") Integer autoMaxLength,
+            @Value("${org.bufistov.autocomplete.hot_prefix_conflict_threshold}") Long conflictThreshold,
+            @Value("${org.bufistov.autocomplete.hot_prefix_window_millis}") Long windowMillis) {
+        log.info("Hot prefixes: [{}] shards: {} auto max length: {} conflict threshold: {} per {} millis",
+                prefixes, shards, autoMaxLength, conflictThreshold, windowMillis);
+        return new HotPrefixes(Arrays.asList(prefixes.split(",")), shards, autoMaxLength, conflictThreshold,
+                windowMillis, clock);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.cluster.enabled", havingValue = "true")
+    public QueryOwnership provideQueryOwnership(
+            @Value("${org.bufistov.cluster.self}") String self,
+            @Value("${org.bufistov.cluster.members}") String members,
+            @Value("${org.bufistov.cluster.virtual_nodes}") Integer virtualNodes) {
+        log.info("Query ownership self: {} members: {} virtual nodes: {}", self, members, virtualNodes);
+        return new QueryOwnership(self, Arrays.asList(members.split(",")), virtualNodes, MAX_TRACKED_OWNED_QUERIES);
+    }
+
+    @Bean
+    @ConditionalOnProperty(value = "org.bufistov.cluster.enabled", havingValue = "true")
+    public QueryForwarder provideQueryForwarder(
+            ObjectMapper objectMapper,
+            @Value("${org.bufistov.cluster.forward_timeout_millis}") Long timeoutMillis,
+            @Value("${org.bufistov.cluster.secret}") String secret) {
+        return new HttpQueryForwarder(objectMapper, Duration.ofMillis(timeoutMillis), secret);
+    }
+
     @Bean
     public Clock provideClock() {
         return Clock.systemUTC();
@@ -0,0 +1,134 @@
+package org.bufistov.autocomplete;
+
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.CandidateCompactorStats;
+import org.bufistov.stats.StatsSource;
+import org.bufistov.storage.Storage;
+
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Prunes candidate suffixes of the prefixes that grew above factor * K candidates.
+ * Prefixes are collected between runs, so a prefix is compacted once no matter how often it overflows.
+ */
+@Log4j2
+public class CandidateCompactor implements StatsSource {
+
+    private final Storage storage;
+
+    private final long capacity;
+
+    private final long intervalMillis;
+
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService compactionScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "candidate-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final AtomicLong scheduled = new AtomicLong();
+
+    private final AtomicLong compactions = new AtomicLong();
+
+    private final AtomicLong prunedCandidates = new AtomicLong();
+
+    private final AtomicLong compactionErrors = new AtomicLong();
+
+    private final AtomicLong lastCompactionMillis = new AtomicLong();
+
+    public CandidateCompactor(Storage storage, long capacity, long intervalMillis) {
+        this.storage = storage;
+        this.capacity = capacity;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        compactionScheduler.scheduleWithFixedDelay(this::compactAndLogErrors,
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        compactionScheduler.shutdown();
+        try {
+            compactionScheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Compact candidates of the prefix on the next run.
+     * @param prefix The prefix.
+     */
+    public void schedule(String prefix) {
+        if (pending.add(prefix)) {
+            scheduled.incrementAndGet();
+        }
+    }
+
+    /**
+     * Prune candidates of all scheduled prefixes. Prefixes which compaction failed are left for the next run.
+     */
+    public void compact() {
+        long start = System.currentTimeMillis();
+        var prefixes = new ArrayList<String>(pending.size());
+        for (var iterator = pending.iterator(); iterator.hasNext(); ) {
+            prefixes.add(iterator.next());
+            iterator.remove();
+        }
+        var failed = new ArrayList<String>();
+        for (var prefix : prefixes) {
+            try {
+                var candidates = storage.getTopKQueries(prefix).getTopK5();
+                if (candidates == null) {
+                    continue;
+                }
+                var toRemove = UpdateSuffixesCandidates.overflow(candidates, capacity);
+                if (!toRemove.isEmpty()) {
+                    storage.removeCandidates(prefix, toRemove);
+                }
+                compactions.incrementAndGet();
+                prunedCandidates.addAndGet(toRemove.size());
+            } catch (RuntimeException exception) {
+                compactionErrors.incrementAndGet();
+                log.error("Failed to compact candidates of prefix {}", prefix, exception);
+                failed.add(prefix);
+            }
+        }
+        pending.addAll(failed);
+        lastCompactionMillis.set(System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "candidateCompactor";
+    }
+
+    @Override
+    public CandidateCompactorStats getStats() {
+        return CandidateCompactorStats.builder()
+                .pendingPrefixes(pending.size())
+                .scheduled(scheduled.get())
+                .compactions(compactions.get())
+                .prunedCandidates(prunedCandidates.get())
+                .compactionErrors(compactionErrors.get())
+                .lastCompactionMillis(lastCompactionMillis.get())
+                .build();
+    }
+
+    private void compactAndLogErrors() {
+        try {
+            compact();
+        } catch (Throwable throwable) {
+            log.error("Error: ", throwable);
+        }
+    }
+}
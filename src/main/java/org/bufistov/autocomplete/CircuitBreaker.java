@@ -0,0 +1,88 @@
+package org.bufistov.autocomplete;
+
+import java.time.Clock;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Error rate circuit breaker over tumbling windows. Opens when the share of failed calls in the
+ * current window reaches the threshold, and closes with a new window once the open time is over.
+ */
+public class CircuitBreaker {
+
+    private final Clock clock;
+
+    private final double errorRateThreshold;
+
+    private final long minRequests;
+
+    private final long windowMillis;
+
+    private final long openMillis;
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong trips = new AtomicLong();
+
+    private volatile long windowStartMillis;
+
+    private volatile long openUntilMillis;
+
+    public CircuitBreaker(Clock clock, double errorRateThreshold, long minRequests, long windowMillis, long openMillis) {
+        this.clock = clock;
+        this.errorRateThreshold = errorRateThreshold;
+        this.minRequests = minRequests;
+        this.windowMillis = windowMillis;
+        this.openMillis = openMillis;
+        this.windowStartMillis = clock.millis();
+    }
+
+    public boolean isOpen() {
+        return clock.millis() < openUntilMillis;
+    }
+
+    public void recordSuccess() {
+        record(false);
+    }
+
+    public void recordFailure() {
+        record(true);
+    }
+
+    public long getTrips() {
+        return trips.get();
+    }
+
+    private void record(boolean failure) {
+        long now = clock.millis();
+        if (now - windowStartMillis >= windowMillis) {
+            resetWindow(now);
+        }
+        long total = requests.incrementAndGet();
+        long failed = failure ? failures.incrementAndGet() : failures.get();
+        if (failure && total >= minRequests && failed >= errorRateThreshold * total && !isOpen()) {
+            open(now);
+        }
+    }
+
+    private synchronized void open(long now) {
+        if (now < openUntilMillis) {
+            return;
+        }
+        trips.incrementAndGet();
+        openUntilMillis = now + openMillis;
+        // Calls made while open do not count, the breaker starts a new window once closed.
+        windowStartMillis = openUntilMillis;
+        requests.set(0);
+        failures.set(0);
+    }
+
+    private synchronized void resetWindow(long now) {
+        if (now - windowStartMillis >= windowMillis) {
+            windowStartMillis = now;
+            requests.set(0);
+            failures.set(0);
+        }
+    }
+}
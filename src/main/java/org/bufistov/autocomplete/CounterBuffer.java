@@ -0,0 +1,227 @@
+package org.bufistov.autocomplete;
+
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.exception.WriteNotAppliedException;
+import org.bufistov.model.CounterBufferStats;
+import org.bufistov.model.QueryCount;
+import org.bufistov.stats.StatsSource;
+import org.bufistov.storage.Storage;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Aggregates query counter increments in memory and periodically flushes them into the storage
+ * as one increment per query. Increments are striped LongAdder updates and never block.
+ * Flush writes are asynchronous, at most maxInFlight of them are in flight at once. If the buffer is full
+ * the increment is written through when a write slot is free and dropped otherwise, add never waits for one.
+ * Every flushed counter value is passed to the listener, so topK checks run on the flushed totals.
+ * Failed increments are buffered again only if they are known to be not applied, otherwise
+ * they might be counted twice.
+ */
+@Log4j2
+public class CounterBuffer implements StatsSource {
+
+    private final Storage storage;
+
+    private final long flushIntervalMillis;
+
+    private final int maxBufferedKeys;
+
+    private final int maxInFlight;
+
+    private final Semaphore inFlight;
+
+    private final ConcurrentHashMap<String, LongAdder> counters = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService flushScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "counter-buffer-flush");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Called on the thread that completed the write, must not block.
+     */
+    @Setter
+    private Consumer<QueryCount> listener = queryCount -> {};
+
+    private final AtomicLong increments = new AtomicLong();
+
+    private final AtomicLong storageWrites = new AtomicLong();
+
+    private final AtomicLong writeThroughs = new AtomicLong();
+
+    private final AtomicLong droppedIncrements = new AtomicLong();
+
+    private final AtomicLong flushErrors = new AtomicLong();
+
+    private final AtomicLong ambiguousErrors = new AtomicLong();
+
+    private final AtomicLong lastFlushMillis = new AtomicLong();
+
+    public CounterBuffer(Storage storage, long flushIntervalMillis, int maxBufferedKeys, int maxInFlight) {
+        this.storage = storage;
+        this.flushIntervalMillis = flushIntervalMillis;
+        this.maxBufferedKeys = maxBufferedKeys;
+        this.maxInFlight = maxInFlight;
+        this.inFlight = new Semaphore(maxInFlight);
+    }
+
+    public void start() {
+        flushScheduler.scheduleWithFixedDelay(this::flushAndLogErrors,
+                flushIntervalMillis, flushIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        flushScheduler.shutdown();
+        try {
+            flushScheduler.awaitTermination(flushIntervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * Add increment to the query counter. If the buffer is full the increment is written through,
+     * or dropped if maxInFlight writes are already in flight.
+     * @param query The query.
+     * @param increment Value of the increment.
+     */
+    public void add(String query, long increment) {
+        increments.addAndGet(increment);
+        while (increment != 0) {
+            LongAdder adder = counters.get(query);
+            if (adder == null) {
+                if (counters.size() >= maxBufferedKeys) {
+                    if (inFlight.tryAcquire()) {
+                        writeThroughs.incrementAndGet();
+                        send(query, increment);
+                    } else {
+                        droppedIncrements.addAndGet(increment);
+                        log.debug("Counter buffer is full and saturated, increment of query {} dropped", query);
+                    }
+                    return;
+                }
+                adder = counters.computeIfAbsent(query, key -> new LongAdder());
+            }
+            adder.add(increment);
+            if (counters.get(query) == adder) {
+                return;
+            }
+            // Flush removed idle adder concurrently, increment might be missed by the flush.
+            increment = drain(adder);
+        }
+    }
+
+    /**
+     * Write all buffered increments into the storage, returns once all the writes are completed.
+     */
+    public void flush() {
+        long start = System.currentTimeMillis();
+        for (var entry : counters.entrySet()) {
+            var adder = entry.getValue();
+            long delta = drain(adder);
+            if (delta == 0 && counters.remove(entry.getKey(), adder)) {
+                delta = drain(adder);
+            }
+            if (delta != 0) {
+                write(entry.getKey(), delta);
+            }
+        }
+        inFlight.acquireUninterruptibly(maxInFlight);
+        inFlight.release(maxInFlight);
+        lastFlushMillis.set(System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "counterBuffer";
+    }
+
+    @Override
+    public CounterBufferStats getStats() {
+        return CounterBufferStats.builder()
+                .bufferedKeys(counters.size())
+                .increments(increments.get())
+                .storageWrites(storageWrites.get())
+                .writeThroughs(writeThroughs.get())
+                .droppedIncrements(droppedIncrements.get())
+                .flushErrors(flushErrors.get())
+                .ambiguousErrors(ambiguousErrors.get())
+                .lastFlushMillis(lastFlushMillis.get())
+                .build();
+    }
+
+    private void write(String query, long delta) {
+        inFlight.acquireUninterruptibly();
+        send(query, delta);
+    }
+
+    /**
+     * Send the increment holding a write slot, the slot is released once the write is completed.
+     */
+    private void send(String query, long delta) {
+        CompletionStage<QueryCount> result;
+        try {
+            result = storage.addQueryAsync(query, delta);
+        } catch (RuntimeException exception) {
+            result = CompletableFuture.failedFuture(exception);
+        }
+        result.whenComplete((queryCount, throwable) -> {
+            try {
+                if (throwable == null) {
+                    storageWrites.incrementAndGet();
+                    listener.accept(queryCount);
+                } else {
+                    onWriteFailed(query, delta, throwable);
+                }
+            } catch (RuntimeException exception) {
+                log.error("Error: ", exception);
+            } finally {
+                inFlight.release();
+            }
+        });
+    }
+
+    private void onWriteFailed(String query, long delta, Throwable throwable) {
+        flushErrors.incrementAndGet();
+        Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null
+                ? throwable.getCause() : throwable;
+        if (cause instanceof WriteNotAppliedException) {
+            log.warn("Failed to flush counter for query {}, delta: {}, retry on next flush", query, delta, cause);
+            counters.computeIfAbsent(query, key -> new LongAdder()).add(delta);
+        } else {
+            ambiguousErrors.incrementAndGet();
+            log.error("Counter increment for query {}, delta: {} might be applied, not retried", query, delta, cause);
+        }
+    }
+
+    private void flushAndLogErrors() {
+        try {
+            flush();
+        } catch (Throwable throwable) {
+            log.error("Error: ", throwable);
+        }
+    }
+
+    private static long drain(LongAdder adder) {
+        // Draining is serialized, concurrent increments are left in the adder for the next flush.
+        synchronized (adder) {
+            long sum = adder.sum();
+            adder.add(-sum);
+            return sum;
+        }
+    }
+}
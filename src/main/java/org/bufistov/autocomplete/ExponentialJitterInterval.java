@@ -0,0 +1,90 @@
+package org.bufistov.autocomplete;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.SneakyThrows;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Exponential backoff with decorrelated jitter, delay = min(max delay, random(base delay, previous delay * 3)),
+ * the first retry of an update starts from the base delay. Upper bound of the random delay also grows with
+ * the recent conflict rate of the prefix, so hot prefixes spread their retries wider than the cold ones.
+ * Previous delay is tracked per prefix, concurrent updates of the prefix continue from each other's delay.
+ */
+public class ExponentialJitterInterval implements RandomInterval {
+
+    /**
+     * Weight of the recent updates in the conflict rate moving average.
+     */
+    static final double CONFLICT_RATE_ALPHA = 0.1;
+
+    /**
+     * Upper bound of the delay is multiplied by up to (1 + CONTENTION_FACTOR) for the prefix that always conflicts.
+     */
+    static final double CONTENTION_FACTOR = 3.0;
+
+    private final Random random;
+
+    private final long baseDelayMillis;
+
+    private final long maxDelayMillis;
+
+    private final Cache<String, AtomicLong> conflictRates;
+
+    private final Cache<String, AtomicLong> previousDelays;
+
+    public ExponentialJitterInterval(Random random, long baseDelayMillis, long maxDelayMillis,
+                                     long maxTrackedPrefixes) {
+        this.random = random;
+        this.baseDelayMillis = Math.max(1, baseDelayMillis);
+        this.maxDelayMillis = Math.max(this.baseDelayMillis, maxDelayMillis);
+        this.conflictRates = CacheBuilder.newBuilder()
+                .maximumSize(maxTrackedPrefixes)
+                .build();
+        this.previousDelays = CacheBuilder.newBuilder()
+                .maximumSize(maxTrackedPrefixes)
+                .build();
+    }
+
+    @Override
+    public long getMillis() {
+        return getMillis(null, 1);
+    }
+
+    @Override
+    @SneakyThrows
+    public long getMillis(String prefix, int retry) {
+        if (prefix == null) {
+            return nextDelay(baseDelayMillis, 0.0);
+        }
+        var previous = previousDelays.get(prefix, () -> new AtomicLong(baseDelayMillis));
+        double conflictRate = getConflictRate(prefix);
+        return previous.updateAndGet(previousMillis ->
+                nextDelay(retry <= 1 ? baseDelayMillis : previousMillis, conflictRate));
+    }
+
+    private long nextDelay(long previousMillis, double conflictRate) {
+        double upperBound = previousMillis * 3 * (1 + CONTENTION_FACTOR * conflictRate);
+        long upper = (long) Math.min(maxDelayMillis, upperBound);
+        return baseDelayMillis + (long) (random.nextDouble() * (upper - baseDelayMillis));
+    }
+
+    @Override
+    @SneakyThrows
+    public void recordUpdate(String prefix, TopKUpdateStatus status) {
+        double sample = status == TopKUpdateStatus.CONDITION_FAILED ? 1.0 : 0.0;
+        var rate = conflictRates.get(prefix, () -> new AtomicLong(Double.doubleToLongBits(0.0)));
+        rate.updateAndGet(bits -> Double.doubleToLongBits(
+                Double.longBitsToDouble(bits) * (1 - CONFLICT_RATE_ALPHA) + sample * CONFLICT_RATE_ALPHA));
+    }
+
+    double getConflictRate(String prefix) {
+        if (prefix == null) {
+            return 0.0;
+        }
+        var rate = conflictRates.getIfPresent(prefix);
+        return rate == null ? 0.0 : Double.longBitsToDouble(rate.get());
+    }
+}
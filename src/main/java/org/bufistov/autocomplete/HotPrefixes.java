@@ -0,0 +1,192 @@
+package org.bufistov.autocomplete;
+
+import com.google.common.hash.Hashing;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.HotPrefixesStats;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.stats.StatsSource;
+
+import java.time.Clock;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
+
+/**
+ * Splits hot short prefixes into shards. A query always goes to the same shard of every hot prefix,
+ * the shard keeps topK of its queries, so writers contend only within the shard and the global topK
+ * is the topK of the union of the shard topKs. Prefixes are configured as hot or promoted when their
+ * conflicts within the window reach the threshold. Promotion is local to the process and is lost on restart,
+ * so other nodes keep writing the unsharded item of the prefix. Hence every prefix that might be sharded
+ * by any node, i.e. configured or not longer than the auto promotion length, is read as the merge of the
+ * unsharded item and all the shards, whether or not this node has promoted it. The price is the read
+ * amplification: a read of such a prefix reads 1 + shards partitions even when no prefix is hot.
+ * Shard keys are the prefix followed by the NUL character and the shard number.
+ */
+@Log4j2
+public class HotPrefixes implements StatsSource {
+
+    static final char SHARD_SEPARATOR = '\u0000';
+
+    private final int shards;
+
+    private final int autoMaxLength;
+
+    private final long conflictThreshold;
+
+    private final long windowMillis;
+
+    private final Clock clock;
+
+    private final Set<String> hot = ConcurrentHashMap.newKeySet();
+
+    private final ConcurrentHashMap<String, AtomicLong> conflicts = new ConcurrentHashMap<>();
+
+    private final AtomicLong windowStartMillis;
+
+    private final int configured;
+
+    private final AtomicLong autoPromoted = new AtomicLong();
+
+    private final AtomicLong shardedUpdates = new AtomicLong();
+
+    private final AtomicLong mergedReads = new AtomicLong();
+
+    /**
+     * @param configured Prefixes sharded from the start.
+     * @param shards Number of shards of every hot prefix.
+     * @param autoMaxLength Max length of the automatically promoted prefixes, 0 disables promotion.
+     * @param conflictThreshold Conflicts of the prefix within the window that promote it.
+     * @param windowMillis Length of the conflict counting window.
+     * @param clock Clock of the window.
+     */
+    public HotPrefixes(Collection<String> configured, int shards, int autoMaxLength, long conflictThreshold,
+                       long windowMillis, Clock clock) {
+        this.shards = shards;
+        this.autoMaxLength = autoMaxLength;
+        this.conflictThreshold = conflictThreshold;
+        this.windowMillis = windowMillis;
+        this.clock = clock;
+        this.windowStartMillis = new AtomicLong(clock.millis());
+        configured.stream().filter(prefix -> !prefix.isEmpty()).forEach(hot::add);
+        this.configured = hot.size();
+    }
+
+    /**
+     * Updates of the hot prefix are written into the shards by this node.
+     */
+    public boolean isHot(String prefix) {
+        return hot.contains(prefix);
+    }
+
+    /**
+     * Some node might write the prefix into the shards, so reads must merge the shards.
+     */
+    public boolean mightBeSharded(String prefix) {
+        return prefix.length() <= autoMaxLength || hot.contains(prefix);
+    }
+
+    /**
+     * Key of the prefix shard the query belongs to. The shard depends only on the query,
+     * so it is the same on every node and for every hot prefix of the query.
+     */
+    public String shardKey(String prefix, String query) {
+        shardedUpdates.incrementAndGet();
+        return prefix + SHARD_SEPARATOR + Math.floorMod(query.hashCode(), shards);
+    }
+
+    /**
+     * Keys merged on read of the prefix that might be sharded: the unsharded prefix followed by all its shards.
+     */
+    public List<String> partitionKeys(String prefix) {
+        mergedReads.incrementAndGet();
+        var result = new ArrayList<String>(shards + 1);
+        result.add(prefix);
+        for (int shard = 0; shard < shards; ++shard) {
+            result.add(prefix + SHARD_SEPARATOR + shard);
+        }
+        return result;
+    }
+
+    /**
+     * Length of the longest prefix of the query not longer than maxLength that might be sharded,
+     * 0 if there is none.
+     */
+    public int longestShardedPrefix(String query, int maxLength) {
+        for (int length = Math.min(maxLength, query.length()); length > 0; --length) {
+            if (mightBeSharded(query.substring(0, length))) {
+                return length;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Count conflicts of the short prefixes and promote the ones that reach the threshold.
+     */
+    public void recordUpdate(String prefix, TopKUpdateStatus status) {
+        if (status != CONDITION_FAILED || prefix.length() > autoMaxLength || hot.contains(prefix)) {
+            return;
+        }
+        long now = clock.millis();
+        long start = windowStartMillis.get();
+        if (now - start >= windowMillis && windowStartMillis.compareAndSet(start, now)) {
+            conflicts.clear();
+        }
+        long prefixConflicts = conflicts.computeIfAbsent(prefix, key -> new AtomicLong()).incrementAndGet();
+        if (prefixConflicts >= conflictThreshold && hot.add(prefix)) {
+            autoPromoted.incrementAndGet();
+            conflicts.remove(prefix);
+            log.info("Prefix '{}' is hot after {} conflicts, split into {} shards", prefix, prefixConflicts, shards);
+        }
+    }
+
+    @Override
+    public String getStatsName() {
+        return "hotPrefixes";
+    }
+
+    @Override
+    public HotPrefixesStats getStats() {
+        return HotPrefixesStats.builder()
+                .shards(shards)
+                .hotPrefixes(hot.size())
+                .configured(configured)
+                .autoPromoted(autoPromoted.get())
+                .shardedUpdates(shardedUpdates.get())
+                .mergedReads(mergedReads.get())
+                .build();
+    }
+
+    /**
+     * Version of the merged item, a hash of the shard versions in the partition key order. A sum could
+     * return to an already served value, e.g. when a shard expires and another one advances.
+     * @param versions Versions of the partition keys, null for the missing items.
+     */
+    static long version(List<Long> versions) {
+        var hasher = Hashing.murmur3_128().newHasher();
+        for (Long version : versions) {
+            hasher.putBoolean(version != null).putLong(version == null ? 0 : version);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * TopK of the union of the sorted lists, the max count of every suffix is taken.
+     * @return topK suffixes sorted by count ascending.
+     */
+    static List<SuffixCount> merge(Collection<List<SuffixCount>> lists, long topK) {
+        var counts = new HashMap<String, Long>();
+        lists.forEach(list -> list.forEach(suffixCount ->
+                counts.merge(suffixCount.getSuffix(), suffixCount.getCount(), Math::max)));
+        var result = new ArrayList<SuffixCount>(counts.size());
+        counts.forEach((suffix, count) -> result.add(SuffixCount.builder().suffix(suffix).count(count).build()));
+        result.sort(null);
+        return result.subList((int) Math.max(0, result.size() - topK), result.size());
+    }
+}
@@ -0,0 +1,202 @@
+package org.bufistov.autocomplete;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.PrefixAggregatorStats;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.stats.StatsSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+
+/**
+ * Maintains topK of the prefixes shorter than the depth bottom up instead of per query updates.
+ * Query updates stop at the depth and mark the parent of the last updated prefix, every run merges
+ * topK of the children one character longer into the marked parents, the longest parents first,
+ * so a run propagates changes up to the first character. Children are the ones seen by this process,
+ * the current topK of the parent is merged as well, so nothing is lost after a restart. With several
+ * webservers a parent misses the children only the other ones have seen, so it is disabled by default.
+ */
+@Log4j2
+public class PrefixAggregator implements StatsSource {
+
+    private final UpdateSuffixes updateSuffixes;
+
+    private final long topK;
+
+    @Getter
+    private final int depth;
+
+    private final long intervalMillis;
+
+    private final ConcurrentHashMap<String, Set<String>> children = new ConcurrentHashMap<>();
+
+    private final Set<String> dirty = ConcurrentHashMap.newKeySet();
+
+    private final ScheduledExecutorService aggregationScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "prefix-aggregator");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * Reads topK suffixes of the prefix sorted by count ascending.
+     */
+    @Setter
+    private Function<String, List<SuffixCount>> reader;
+
+    /**
+     * Receives the prefixes which topK was changed by the aggregation.
+     */
+    @Setter
+    private Consumer<String> listener = prefix -> {};
+
+    private final AtomicLong cutPropagations = new AtomicLong();
+
+    private final AtomicLong runs = new AtomicLong();
+
+    private final AtomicLong aggregatedPrefixes = new AtomicLong();
+
+    private final AtomicLong childReads = new AtomicLong();
+
+    private final AtomicLong writes = new AtomicLong();
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final AtomicLong errors = new AtomicLong();
+
+    private final AtomicLong lastRunMillis = new AtomicLong();
+
+    private final AtomicLong maxRunMillis = new AtomicLong();
+
+    public PrefixAggregator(UpdateSuffixes updateSuffixes, long topK, int depth, long intervalMillis) {
+        this.updateSuffixes = updateSuffixes;
+        this.topK = topK;
+        this.depth = depth;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void start() {
+        aggregationScheduler.scheduleWithFixedDelay(this::aggregateAndLogErrors,
+                intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        aggregationScheduler.shutdown();
+        try {
+            aggregationScheduler.awaitTermination(intervalMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record that the query update stopped at the prefix, its parent is aggregated on the next run.
+     * @param prefix The shortest updated prefix.
+     */
+    public void markUpdated(String prefix) {
+        cutPropagations.incrementAndGet();
+        markParent(prefix);
+    }
+
+    /**
+     * Aggregate all marked parents.
+     */
+    public void aggregate() {
+        long start = System.currentTimeMillis();
+        runs.incrementAndGet();
+        for (int length = depth - 1; length > 0; --length) {
+            for (var parent : dirty) {
+                if (parent.length() == length && dirty.remove(parent)) {
+                    aggregate(parent);
+                }
+            }
+        }
+        long millis = System.currentTimeMillis() - start;
+        lastRunMillis.set(millis);
+        maxRunMillis.accumulateAndGet(millis, Math::max);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "prefixAggregator";
+    }
+
+    @Override
+    public PrefixAggregatorStats getStats() {
+        return PrefixAggregatorStats.builder()
+                .depth(depth)
+                .intervalMillis(intervalMillis)
+                .dirtyPrefixes(dirty.size())
+                .cutPropagations(cutPropagations.get())
+                .runs(runs.get())
+                .aggregatedPrefixes(aggregatedPrefixes.get())
+                .childReads(childReads.get())
+                .writes(writes.get())
+                .conflicts(conflicts.get())
+                .errors(errors.get())
+                .lastRunMillis(lastRunMillis.get())
+                .maxRunMillis(maxRunMillis.get())
+                .build();
+    }
+
+    private void aggregate(String parent) {
+        try {
+            var lists = new ArrayList<List<SuffixCount>>();
+            for (var child : children.getOrDefault(parent, Set.of())) {
+                String extension = child.substring(parent.length());
+                lists.add(reader.apply(child).stream()
+                        .map(suffixCount -> SuffixCount.builder()
+                                .suffix(extension + suffixCount.getSuffix())
+                                .count(suffixCount.getCount())
+                                .build())
+                        .collect(Collectors.toList()));
+                childReads.incrementAndGet();
+            }
+            var status = updateSuffixes.mergeTopKSuffixes(parent, HotPrefixes.merge(lists, topK), topK);
+            aggregatedPrefixes.incrementAndGet();
+            if (status == SUCCESS) {
+                writes.incrementAndGet();
+                listener.accept(parent);
+                markParent(parent);
+            } else if (status == CONDITION_FAILED) {
+                conflicts.incrementAndGet();
+                dirty.add(parent);
+            }
+        } catch (RuntimeException exception) {
+            errors.incrementAndGet();
+            log.error("Failed to aggregate prefix {}", parent, exception);
+            dirty.add(parent);
+        }
+    }
+
+    private void markParent(String prefix) {
+        if (prefix.length() < 2) {
+            return;
+        }
+        String parent = prefix.substring(0, prefix.length() - 1);
+        children.computeIfAbsent(parent, key -> ConcurrentHashMap.newKeySet()).add(prefix);
+        dirty.add(parent);
+    }
+
+    private void aggregateAndLogErrors() {
+        try {
+            aggregate();
+        } catch (Throwable throwable) {
+            log.error("Error: ", throwable);
+        }
+    }
+}
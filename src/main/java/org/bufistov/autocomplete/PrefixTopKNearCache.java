@@ -0,0 +1,129 @@
+package org.bufistov.autocomplete;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+import org.bufistov.model.PrefixTopKNearCacheStats;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.stats.StatsSource;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Write path cache of the last seen topK suffixes of each prefix.
+ * Answers whether the query count can enter topK of the prefix without reading the prefix from the storage.
+ * TopK minimum only grows while the prefix item lives, so a cached item can only make the answer more
+ * permissive. The entries expire to bound the staleness caused by the TTL of the prefix items.
+ */
+public class PrefixTopKNearCache implements StatsSource {
+
+    @AllArgsConstructor
+    static class Entry {
+        final Long version;
+        final Map<String, Long> counts;
+        final long minCount;
+    }
+
+    private final Cache<String, Entry> cache;
+
+    private final AtomicLong lookups = new AtomicLong();
+
+    private final AtomicLong skippedReads = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public PrefixTopKNearCache(long maxSize, long expireAfterWriteMillis) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * @return true if cached topK of the prefix proves that the suffix with given count is not in topK.
+     */
+    public boolean cannotEnter(String prefix, String suffix, long count, long topK) {
+        lookups.incrementAndGet();
+        var entry = cache.getIfPresent(prefix);
+        if (entry == null) {
+            misses.incrementAndGet();
+            return false;
+        }
+        Long currentCount = entry.counts.get(suffix);
+        boolean result = currentCount != null
+                ? currentCount >= count
+                : entry.counts.size() == topK && count <= entry.minCount;
+        if (result) {
+            skippedReads.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Remember prefix item read from the storage.
+     * @param prefix The prefix.
+     * @param version Version of the item.
+     * @param suffixes TopK suffixes of the item.
+     */
+    public void put(String prefix, Long version, List<SuffixCount> suffixes) {
+        var counts = new HashMap<String, Long>();
+        suffixes.forEach(suffixCount -> counts.put(suffixCount.getSuffix(), suffixCount.getCount()));
+        cache.put(prefix, new Entry(version, counts, minCount(counts)));
+    }
+
+    /**
+     * Apply our own successful conditional update to the cached item.
+     * @param prefix Updated prefix.
+     * @param readVersion Version the update was conditioned on.
+     * @param suffix Updated suffix.
+     * @param count New count of the suffix.
+     * @param topK topK value.
+     */
+    public void recordSuccess(String prefix, Long readVersion, String suffix, long count, long topK) {
+        cache.asMap().computeIfPresent(prefix, (key, entry) -> {
+            if (!Objects.equals(entry.version, readVersion) || entry.counts.size() > topK) {
+                return null;
+            }
+            var counts = new HashMap<>(entry.counts);
+            counts.put(suffix, count);
+            if (counts.size() > topK) {
+                counts.entrySet().stream()
+                        .min(Map.Entry.<String, Long>comparingByValue().thenComparing(Map.Entry.comparingByKey()))
+                        .ifPresent(min -> counts.remove(min.getKey()));
+            }
+            return new Entry(readVersion == null ? 1 : readVersion + 1, counts, minCount(counts));
+        });
+    }
+
+    public void invalidate(String prefix) {
+        invalidations.incrementAndGet();
+        cache.invalidate(prefix);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "prefixTopKNearCache";
+    }
+
+    @Override
+    public PrefixTopKNearCacheStats getStats() {
+        return PrefixTopKNearCacheStats.builder()
+                .entries(cache.size())
+                .lookups(lookups.get())
+                .skippedReads(skippedReads.get())
+                .misses(misses.get())
+                .invalidations(invalidations.get())
+                .build();
+    }
+
+    private static long minCount(Map<String, Long> counts) {
+        return counts.values().stream().mapToLong(Long::longValue).min().orElse(0);
+    }
+}
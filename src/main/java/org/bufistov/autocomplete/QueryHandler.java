@@ -1,10 +1,55 @@
 package org.bufistov.autocomplete;
 
+import org.bufistov.model.QueryCount;
 import org.bufistov.model.TopKQueries;
 
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.CompletionStage;
+
 public interface QueryHandler {
 
     void addQuery(String query);
 
+    /**
+     * Add batch of queries. Duplicates are counted once with their multiplicity.
+     * @param queries The queries, might contain duplicates.
+     * @throws IllegalArgumentException if there is a null or empty query, nothing is added then.
+     */
+    void addQueries(Collection<String> queries);
+
     TopKQueries getQueries(String prefix);
+
+    /**
+     * Same as {@link #getQueries} but does not block the calling thread while reading the storage.
+     */
+    CompletionStage<TopKQueries> getQueriesAsync(String prefix);
+
+    /**
+     * Version of the prefix item the queries of the prefix are built from, without reading the queries.
+     * @return Stage completed with the version, null if the prefix does not exist.
+     */
+    CompletionStage<Long> getQueriesVersionAsync(String prefix);
+
+    /**
+     * Read queries of the prefix together with queries of its most likely next character extensions.
+     * @param prefix The prefix.
+     * @param lookahead Number of extensions to read, capped by the configuration.
+     * @return Queries of the prefix, extensions are in the lookahead map ordered by their total count.
+     */
+    CompletionStage<TopKQueries> getQueriesAsync(String prefix, int lookahead);
+
+    /**
+     * Read queries of several prefixes in parallel.
+     * @param prefixes The prefixes, duplicates are read once.
+     * @return Queries of every prefix in the order of the first occurrence.
+     * @throws IllegalArgumentException if there are more prefixes than allowed.
+     */
+    CompletionStage<Map<String, TopKQueries>> getQueriesBatchAsync(Collection<String> prefixes);
+
+    /**
+     * Propagate topK update forwarded by a webserver which does not own the query.
+     * @param queryCount Counter state that triggered the update.
+     */
+    void onForwardedQuery(QueryCount queryCount);
 }
@@ -22,4 +22,25 @@ public class QueryHandlerConfig {
     private Long queryUpdateCount;
 
     private Long firstQueryUpdateCount;
+
+    /**
+     * Max number of prefixes in one batch lookup, not limited if null.
+     */
+    private Integer maxBatchPrefixes;
+
+    /**
+     * Max number of next character extensions read by a look-ahead lookup, not limited if null.
+     */
+    private Integer maxLookahead;
+
+    /**
+     * Max length of the indexed prefixes, longer prefixes are served by filtering the candidates
+     * of the longest indexed prefix. Not limited if null.
+     */
+    private Integer maxPrefixLength;
+
+    /**
+     * Candidates kept by the longest indexed prefixes in multiples of topK, topK is kept if null.
+     */
+    private Integer cappedPrefixTopKFactor;
 }
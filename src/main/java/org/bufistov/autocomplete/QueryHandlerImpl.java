@@ -1,28 +1,51 @@
 package org.bufistov.autocomplete;
 
-import lombok.AllArgsConstructor;
+import com.google.common.util.concurrent.MoreExecutors;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
+import org.bufistov.cluster.QueryForwarder;
+import org.bufistov.cluster.QueryOwnership;
+import org.bufistov.exception.DependencyException;
+import org.bufistov.model.PrefixTopK;
 import org.bufistov.model.QueryCount;
 import org.bufistov.model.SuffixCount;
 import org.bufistov.model.TopKQueries;
 import org.bufistov.storage.Storage;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 
 import java.time.Clock;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executor;
+import java.util.function.Function;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
 import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
 
 @Log4j2
-@AllArgsConstructor
 @NoArgsConstructor
 public class QueryHandlerImpl implements QueryHandler {
 
+    public static final String TOPK_UPDATE_EXECUTOR = "topKUpdateExecutor";
+
+    static final int DEFAULT_MAX_PENDING_RETRIES = 10000;
+
     @Autowired
     private Storage storage;
 
@@ -38,30 +61,435 @@ public class QueryHandlerImpl implements QueryHandler {
     @Autowired
     private Clock clock;
 
+    /**
+     * Runs topK propagation, so that add query returns right after the counter increment.
+     * Updates run on the calling thread unless executor is set.
+     */
+    @Autowired
+    @Qualifier(TOPK_UPDATE_EXECUTOR)
+    @Setter
+    private Executor topKUpdateExecutor = MoreExecutors.directExecutor();
+
+    private CounterBuffer counterBuffer;
+
+    @Autowired
+    private TopKRetryScheduler retryScheduler;
+
+    /**
+     * Retry scheduler created by the constructor, it's shut down together with the handler.
+     */
+    private boolean ownsRetryScheduler;
+
+    @Autowired
+    @Setter
+    private RetryBudget retryBudget;
+
+    /**
+     * Skips prefix reads when the cached prefix item proves that the query can't enter topK.
+     */
+    @Autowired(required = false)
+    @Setter
+    private PrefixTopKNearCache nearCache;
+
+    /**
+     * Caches GET /queries responses, prefixes are invalidated on successful local writes.
+     */
+    @Autowired(required = false)
+    @Setter
+    private TopKQueriesCache queriesCache;
+
+    /**
+     * Serves last known prefix items when the storage is slow or failing, asynchronous reads only.
+     */
+    @Autowired(required = false)
+    @Setter
+    private StaleWhileRevalidateReader staleReader;
+
+    /**
+     * When set, topK updates of a query are propagated only by its owner without the query_update LWT.
+     */
+    @Autowired(required = false)
+    @Setter
+    private QueryOwnership queryOwnership;
+
+    @Autowired(required = false)
+    @Setter
+    private QueryForwarder queryForwarder;
+
+    /**
+     * When set, hot prefixes are updated in shards and every prefix that might be sharded is merged on read.
+     */
+    @Autowired(required = false)
+    @Setter
+    private HotPrefixes hotPrefixes;
+
+    private PrefixAggregator prefixAggregator;
+
+    public QueryHandlerImpl(Storage storage, QueryHandlerConfig config, UpdateSuffixes updateSuffixes,
+                            RandomInterval randomInterval, Clock clock) {
+        this.storage = storage;
+        this.config = config;
+        this.updateSuffixes = updateSuffixes;
+        this.randomInterval = randomInterval;
+        this.clock = clock;
+        this.retryScheduler = new TopKRetryScheduler(DEFAULT_MAX_PENDING_RETRIES);
+        this.ownsRetryScheduler = true;
+        this.retryBudget = RetryBudget.unlimited();
+    }
+
+    public void setRetryScheduler(TopKRetryScheduler retryScheduler) {
+        shutdown();
+        this.retryScheduler = retryScheduler;
+    }
+
+    /**
+     * Shut down the retry scheduler created by the constructor, an injected one is shut down by its owner.
+     */
+    public void shutdown() {
+        if (ownsRetryScheduler) {
+            ownsRetryScheduler = false;
+            retryScheduler.shutdown();
+        }
+    }
+
+    /**
+     * Aggregate query increments in the buffer, topK checks then run on the flushed counter values.
+     */
+    @Autowired(required = false)
+    public void setCounterBuffer(CounterBuffer counterBuffer) {
+        this.counterBuffer = counterBuffer;
+        // Listener runs on the flush callbacks, the update is handed off and never runs inline.
+        counterBuffer.setListener(queryCount -> onQueryCounted(queryCount.getQuery(), queryCount, this::handOff));
+    }
+
+    /**
+     * Prefixes shorter than the aggregation depth are updated by the aggregator instead of query updates.
+     */
+    @Autowired(required = false)
+    public void setPrefixAggregator(PrefixAggregator prefixAggregator) {
+        this.prefixAggregator = prefixAggregator;
+        prefixAggregator.setReader(this::readSortedSuffixes);
+        prefixAggregator.setListener(prefix -> {
+            if (queriesCache != null) {
+                queriesCache.invalidate(prefix);
+            }
+        });
+    }
+
     @Override
     public void addQuery(String query) {
-        String truncatedQuery = query.length() > config.getMaxQuerySize() ?
-                query.substring(0, config.getMaxQuerySize()) : query;
+        String truncatedQuery = truncate(query);
         log.debug("Adding query: {}", query);
-        var result = storage.addQuery(truncatedQuery);
+        if (counterBuffer != null) {
+            counterBuffer.add(truncatedQuery, 1);
+            return;
+        }
+        onQueryCounted(truncatedQuery, storage.addQuery(truncatedQuery), this::submit);
+    }
+
+    @Override
+    public void addQueries(Collection<String> queries) {
+        Map<String, Long> counted = new HashMap<>();
+        for (String query : queries) {
+            if (query == null || query.isEmpty()) {
+                throw new IllegalArgumentException("Null or empty query in the batch");
+            }
+            counted.merge(truncate(query), 1L, Long::sum);
+        }
+        log.debug("Adding {} queries, {} unique", queries.size(), counted.size());
+        if (counterBuffer != null) {
+            counted.forEach(counterBuffer::add);
+            return;
+        }
+        // Counters of the batch are written concurrently, topK updates are submitted from the request thread.
+        var results = new HashMap<String, CompletableFuture<QueryCount>>();
+        counted.forEach((query, increment) ->
+                results.put(query, storage.addQueryAsync(query, increment).toCompletableFuture()));
+        RuntimeException failure = null;
+        for (var result : results.entrySet()) {
+            try {
+                onQueryCounted(result.getKey(), result.getValue().join(), this::submit);
+            } catch (CompletionException exception) {
+                failure = exception.getCause() instanceof RuntimeException
+                        ? (RuntimeException) exception.getCause()
+                        : new DependencyException("Failed to add query " + result.getKey(), exception.getCause());
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public TopKQueries getQueries(String prefix) {
+        log.debug("Getting queries for prefix: {}", prefix);
+        if (queriesCache != null) {
+            return queriesCache.get(prefix, this::loadQueries);
+        }
+        return loadQueries(prefix);
+    }
+
+    @Override
+    public CompletionStage<TopKQueries> getQueriesAsync(String prefix) {
+        log.debug("Getting queries asynchronously for prefix: {}", prefix);
+        if (queriesCache == null) {
+            return loadQueriesAsync(prefix);
+        }
+        TopKQueries cached = queriesCache.getIfPresent(prefix);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        return loadQueriesAsync(prefix).thenApply(queries -> {
+            if (queries.getStalenessMillis() == null) {
+                queriesCache.put(prefix, queries);
+            }
+            return queries;
+        });
+    }
+
+    private CompletionStage<TopKQueries> loadQueriesAsync(String prefix) {
+        String indexedPrefix = indexedPrefix(prefix);
+        if (!mightBeSharded(indexedPrefix)) {
+            return readPrefixAsync(indexedPrefix).thenApply(result -> {
+                var queries = toTopKQueries(prefix, result.getValue());
+                queries.setStalenessMillis(result.getStalenessMillis());
+                return queries;
+            });
+        }
+        return allOf(hotPrefixes.partitionKeys(indexedPrefix), this::readPrefixAsync).thenApply(results -> {
+            var queries = mergeTopKQueries(prefix, results.stream()
+                    .map(StaleWhileRevalidateReader.Result::getValue)
+                    .collect(Collectors.toList()));
+            results.stream()
+                    .map(StaleWhileRevalidateReader.Result::getStalenessMillis)
+                    .filter(Objects::nonNull)
+                    .max(Long::compare)
+                    .ifPresent(queries::setStalenessMillis);
+            return queries;
+        });
+    }
+
+    private CompletionStage<StaleWhileRevalidateReader.Result> readPrefixAsync(String prefix) {
+        if (staleReader == null) {
+            return storage.getTopKQueriesAsync(prefix)
+                    .thenApply(prefixTopK -> new StaleWhileRevalidateReader.Result(prefixTopK, null));
+        }
+        return staleReader.read(prefix, storage::getTopKQueriesAsync);
+    }
+
+    @Override
+    public CompletionStage<Long> getQueriesVersionAsync(String prefix) {
+        TopKQueries cached = queriesCache == null ? null : queriesCache.getIfPresent(prefix);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached.getVersion());
+        }
+        String indexedPrefix = indexedPrefix(prefix);
+        if (mightBeSharded(indexedPrefix)) {
+            return allOf(hotPrefixes.partitionKeys(indexedPrefix), this::readVersionAsync)
+                    .thenApply(HotPrefixes::version);
+        }
+        return readVersionAsync(indexedPrefix);
+    }
+
+    private CompletionStage<Long> readVersionAsync(String prefix) {
+        if (staleReader == null) {
+            return storage.getTopKVersionAsync(prefix);
+        }
+        return staleReader.readVersion(prefix, storage::getTopKVersionAsync);
+    }
+
+    @Override
+    public CompletionStage<TopKQueries> getQueriesAsync(String prefix, int lookahead) {
+        int extensions = config.getMaxLookahead() == null ? lookahead : Math.min(lookahead, config.getMaxLookahead());
+        if (extensions <= 0) {
+            return getQueriesAsync(prefix);
+        }
+        return getQueriesAsync(prefix).thenCompose(queries ->
+                readQueries(likelyExtensions(prefix, queries.getQueries(), extensions))
+                        .thenApply(extensionQueries -> TopKQueries.builder()
+                                .queries(queries.getQueries())
+                                .lookahead(extensionQueries)
+                                .stalenessMillis(queries.getStalenessMillis())
+                                .build()));
+    }
+
+    @Override
+    public CompletionStage<Map<String, TopKQueries>> getQueriesBatchAsync(Collection<String> prefixes) {
+        var uniquePrefixes = new LinkedHashSet<>(prefixes);
+        if (config.getMaxBatchPrefixes() != null && uniquePrefixes.size() > config.getMaxBatchPrefixes()) {
+            throw new IllegalArgumentException(String.format("Too many prefixes: %d, max: %d",
+                    uniquePrefixes.size(), config.getMaxBatchPrefixes()));
+        }
+        log.debug("Getting queries for {} prefixes", uniquePrefixes.size());
+        return readQueries(uniquePrefixes);
+    }
+
+    private CompletionStage<Map<String, TopKQueries>> readQueries(Collection<String> uniquePrefixes) {
+        var futures = new LinkedHashMap<String, CompletableFuture<TopKQueries>>();
+        uniquePrefixes.forEach(prefix -> futures.put(prefix, getQueriesAsync(prefix).toCompletableFuture()));
+        return CompletableFuture.allOf(futures.values().toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> {
+                    var result = new LinkedHashMap<String, TopKQueries>();
+                    futures.forEach((prefix, future) -> result.put(prefix, future.join()));
+                    return result;
+                });
+    }
+
+    private TopKQueries loadQueries(String prefix) {
+        String indexedPrefix = indexedPrefix(prefix);
+        if (mightBeSharded(indexedPrefix)) {
+            var keys = hotPrefixes.partitionKeys(indexedPrefix);
+            var items = storage.getTopKQueries(keys);
+            return mergeTopKQueries(prefix, keys.stream().map(items::get).collect(Collectors.toList()));
+        }
+        return toTopKQueries(prefix, storage.getTopKQueries(indexedPrefix));
+    }
+
+    /**
+     * Version of the merged item is derived from the versions of all the shards, it changes whenever any shard
+     * changes.
+     * @param items Items in the partition key order.
+     */
+    private TopKQueries mergeTopKQueries(String prefix, List<PrefixTopK> items) {
+        int indexedLength = indexedLength(prefix);
+        var lists = items.stream().map(updateSuffixes::toSortedCandidates).collect(Collectors.toList());
+        var candidates = HotPrefixes.merge(lists, prefixTopK(indexedLength));
+        return TopKQueries.builder()
+                .queries(addPrefix(select(prefix, candidates), prefix.substring(0, indexedLength)))
+                .prefix(prefix)
+                .version(HotPrefixes.version(items.stream()
+                        .map(item -> item == null ? null : item.getVersion())
+                        .collect(Collectors.toList())))
+                .build();
+    }
+
+    private List<SuffixCount> readSortedSuffixes(String prefix) {
+        if (mightBeSharded(prefix)) {
+            var items = storage.getTopKQueries(hotPrefixes.partitionKeys(prefix)).values();
+            return HotPrefixes.merge(items.stream().map(updateSuffixes::toSortedList).collect(Collectors.toList()),
+                    config.getTopK());
+        }
+        return updateSuffixes.toSortedList(storage.getTopKQueries(prefix));
+    }
+
+    private boolean isHot(String prefix) {
+        return hotPrefixes != null && hotPrefixes.isHot(prefix);
+    }
+
+    /**
+     * Other nodes, or this node before restart, might have promoted the prefix, so reads merge its shards.
+     */
+    private boolean mightBeSharded(String prefix) {
+        return hotPrefixes != null && hotPrefixes.mightBeSharded(prefix);
+    }
+
+    private TopKQueries toTopKQueries(String prefix, PrefixTopK prefixTopK) {
+        var candidates = updateSuffixes.toSortedCandidates(prefixTopK);
+        return TopKQueries.builder()
+                .queries(addPrefix(select(prefix, candidates), indexedPrefix(prefix)))
+                .prefix(prefix)
+                .version(prefixTopK.getVersion())
+                .build();
+    }
+
+    /**
+     * TopK of the candidates of the indexed prefix that extend the prefix.
+     * Results of the prefixes longer than the indexed ones are exact while the capped prefix holds
+     * less candidates than its capacity, otherwise queries that never made it into the candidates are missed.
+     */
+    private List<SuffixCount> select(String prefix, List<SuffixCount> candidates) {
+        String rest = prefix.substring(indexedLength(prefix));
+        var selected = rest.isEmpty() ? candidates : candidates.stream()
+                .filter(candidate -> candidate.getSuffix().startsWith(rest))
+                .collect(Collectors.toList());
+        return selected.subList((int) Math.max(0, selected.size() - config.getTopK()), selected.size());
+    }
+
+    private int indexedLength(String prefix) {
+        return config.getMaxPrefixLength() == null ? prefix.length()
+                : Math.min(prefix.length(), config.getMaxPrefixLength());
+    }
+
+    private String indexedPrefix(String prefix) {
+        return prefix.substring(0, indexedLength(prefix));
+    }
+
+    /**
+     * The longest indexed prefixes keep more candidates, so the longer prefixes have queries to filter.
+     */
+    private Long prefixTopK(int prefixLength) {
+        if (config.getMaxPrefixLength() == null || config.getCappedPrefixTopKFactor() == null
+                || prefixLength != config.getMaxPrefixLength()) {
+            return config.getTopK();
+        }
+        return config.getTopK() * config.getCappedPrefixTopKFactor();
+    }
+
+    private String truncate(String query) {
+        return query.length() > config.getMaxQuerySize() ?
+                query.substring(0, config.getMaxQuerySize()) : query;
+    }
+
+    private void onQueryCounted(String query, QueryCount result, Predicate<Runnable> executor) {
         log.debug("New count value: {}", result);
         if (topKUpdateRequired(result)) {
             log.debug("Update is required, {}", result);
-            if (storage.lockQueryForTopKUpdate(query, result.getLastUpdateTime(), Date.from(clock.instant()))) {
-                storage.updateTemporalCounter(query, -result.getSinceLastUpdate());
-                updateTopKSuffixesAndLogErrors(truncatedQuery, result.getCount());
+            boolean submitted = true;
+            if (queryOwnership == null) {
+                submitted = executor.test(() -> lockAndUpdateTopKSuffixes(query, result));
+            } else if (queryOwnership.isOwner(query)) {
+                submitted = executor.test(() -> updateOwnedTopKSuffixes(query, result));
+            } else {
+                forward(query, result);
+            }
+            if (!submitted) {
+                // Temporal counter was not reset, so the next count of the query triggers the update again.
+                log.debug("TopK update queue is full, update of query '{}' dropped", query);
             }
         } else {
             log.debug("Skip topk update, {}", result);
         }
     }
 
+    private boolean submit(Runnable update) {
+        topKUpdateExecutor.execute(update);
+        return true;
+    }
+
+    /**
+     * Submit the update from the thread that must not run it, e.g. a timer or a storage callback.
+     * @param update The update.
+     * @return false if the update executor is saturated and the update was not accepted.
+     */
+    private boolean handOff(Runnable update) {
+        if (topKUpdateExecutor instanceof TopKUpdateExecutor) {
+            return ((TopKUpdateExecutor) topKUpdateExecutor).tryExecute(update);
+        }
+        return submit(update);
+    }
+
     @Override
-    public TopKQueries getQueries(String prefix) {
-        log.debug("Getting queries for prefix: {}", prefix);
-        return TopKQueries.builder()
-                .queries(addPrefix(updateSuffixes.toSortedList(storage.getTopKQueries(prefix)), prefix))
-                .build();
+    public void onForwardedQuery(QueryCount queryCount) {
+        String query = truncate(queryCount.getQuery());
+        log.debug("Forwarded topK update: {}", queryCount);
+        if (queryOwnership != null && queryOwnership.isOwner(query)) {
+            topKUpdateExecutor.execute(() -> updateOwnedTopKSuffixes(query, queryCount));
+        } else {
+            // Members changed while the update was in flight, fall back to the query lock.
+            topKUpdateExecutor.execute(() -> lockAndUpdateTopKSuffixes(query, queryCount));
+        }
+    }
+
+    private void forward(String query, QueryCount queryCount) {
+        String owner = queryOwnership.ownerOf(query);
+        queryOwnership.recordForwarded();
+        queryForwarder.forward(owner, queryCount).whenComplete((ignored, error) -> {
+            if (error != null) {
+                queryOwnership.recordForwardFailure();
+                log.warn("Failed to forward query '{}' to {}, updating with the query lock", query, owner, error);
+                topKUpdateExecutor.execute(() -> lockAndUpdateTopKSuffixes(query, queryCount));
+            }
+        });
     }
 
     private boolean topKUpdateRequired(QueryCount currentCount) {
@@ -82,40 +510,193 @@ public class QueryHandlerImpl implements QueryHandler {
                 .collect(Collectors.toList());
     }
 
-    private void updateTopKSuffixesAndLogErrors(String query, Long count) {
+    private void lockAndUpdateTopKSuffixes(String query, QueryCount queryCount) {
         try {
-            updateTopKSuffixes(query, count);
+            if (storage.lockQueryForTopKUpdate(query, queryCount.getLastUpdateTime(), Date.from(clock.instant()))) {
+                storage.updateTemporalCounter(query, -queryCount.getSinceLastUpdate());
+                updateTopKSuffixes(query, queryCount.getCount());
+            }
         } catch (Throwable throwable) {
             log.error("Error: ", throwable);
         }
     }
+
+    /**
+     * Concurrent updates of the owned query are deduplicated in memory on the last update time they are
+     * based on, so only one of them contends for the query_update LWT. The LWT is still taken, the
+     * update time cell is only ever written conditionally and other nodes may propagate the query
+     * during a membership change or after a failed forward.
+     */
+    private void updateOwnedTopKSuffixes(String query, QueryCount queryCount) {
+        try {
+            var updateTime = queryOwnership.tryStartPropagation(query, queryCount.getLastUpdateTime(),
+                    Date.from(clock.instant()));
+            if (updateTime == null) {
+                return;
+            }
+            if (!storage.lockQueryForTopKUpdate(query, queryCount.getLastUpdateTime(), updateTime)) {
+                queryOwnership.abortPropagation(query, updateTime);
+                return;
+            }
+            storage.updateTemporalCounter(query, -queryCount.getSinceLastUpdate());
+            updateTopKSuffixes(query, queryCount.getCount());
+        } catch (Throwable throwable) {
+            log.error("Error: ", throwable);
+        }
+    }
+
     private void updateTopKSuffixes(String query, Long count) {
-        for (int prefixLength = query.length(); prefixLength > 0; --prefixLength) {
+        updateTopKSuffixes(query, count, indexedLength(query), 0, null);
+    }
+
+    private void resumeTopKUpdateAndLogErrors(String query, Long count, int prefixLength, int retry,
+                                              Map<String, PrefixTopK> prefetched) {
+        try {
+            updateTopKSuffixes(query, count, prefixLength, retry, prefetched);
+        } catch (Throwable throwable) {
+            log.error("Error: ", throwable);
+        }
+    }
+
+    /**
+     * Update topK suffixes starting from the given prefix length down to the first character.
+     * On CONDITION_FAILED the rest of the update is rescheduled as a continuation from the same prefix.
+     * Most updates stop at the longest prefix, so the rest of the prefixes are read in one batch only
+     * once the longest prefix was updated. Prefixes which update failed are read again on retry.
+     * Hot prefixes are updated in the shard of the query. A shard holds a subset of the prefix queries,
+     * so the query that can't enter topK of a longer prefix still might enter topK of a shorter prefix
+     * that might be sharded by any node.
+     * With the aggregator the update stops at the aggregation depth and the aggregator updates the rest.
+     * Prefixes longer than the max prefix length are not updated.
+     */
+    private void updateTopKSuffixes(String query, Long count, int prefixLength, int retry,
+                                    Map<String, PrefixTopK> prefetched) {
+        int indexedLength = indexedLength(query);
+        int minLength = prefixAggregator == null ? 1
+                : Math.max(1, Math.min(indexedLength, prefixAggregator.getDepth()));
+        for (; prefixLength >= minLength; --prefixLength, retry = 0) {
             String prefix = query.substring(0, prefixLength);
-            int retry = 0;
-            for (; retry < config.getMaxRetriesToUpdateTopK(); ++retry) {
-                TopKUpdateStatus status = updateSuffixes.updateTopKSuffixes(query, count, prefix, config.getTopK());
-                if (status == CONDITION_FAILED) {
-                    long sleepInterval = randomInterval.getMillis();
-                    log.debug("Race updating prefix {} retry number {} after {} millis", prefix, retry + 1, sleepInterval);
-                    try {
-                        Thread.sleep(sleepInterval);
-                    } catch (InterruptedException exception) {
-                        log.error("Interrupted while sleeping");
-                        Thread.currentThread().interrupt();
-                        throw new RuntimeException(exception);
+            boolean hot = isHot(prefix);
+            String key = hot ? hotPrefixes.shardKey(prefix, query) : prefix;
+            String keyQuery = hot ? key + query.substring(prefixLength) : query;
+            if (retry == 0) {
+                retryBudget.recordFirstAttempt();
+                if (prefetched == null && prefixLength < indexedLength) {
+                    prefetched = new HashMap<>(storage.getTopKQueries(prefixes(query, minLength, prefixLength)));
+                }
+            }
+            PrefixTopK current = prefetched == null ? null : prefetched.remove(prefix);
+            if (hot) {
+                // Prefetched item is the unsharded one.
+                current = null;
+            }
+            Long topK = prefixTopK(prefixLength);
+            TopKUpdateStatus status;
+            if (nearCache != null) {
+                status = updateTopKSuffixesNearCached(keyQuery, count, key, topK, current);
+            } else {
+                status = current == null
+                        ? updateSuffixes.updateTopKSuffixes(keyQuery, count, key, topK)
+                        : updateSuffixes.updateTopKSuffixes(keyQuery, count, key, topK, current);
+            }
+            randomInterval.recordUpdate(prefix, status);
+            if (hotPrefixes != null) {
+                hotPrefixes.recordUpdate(prefix, status);
+            }
+            if (status == SUCCESS && queriesCache != null) {
+                queriesCache.invalidate(prefix);
+            }
+            if (status == CONDITION_FAILED) {
+                if (retry + 1 >= config.getMaxRetriesToUpdateTopK()) {
+                    log.warn("Update topk suffixes for prefix {} failed {} times, give up", prefix, retry + 1);
+                } else if (!retryBudget.tryAcquireRetry()) {
+                    log.debug("Retry budget is exhausted, give up updating prefix {}", prefix);
+                } else {
+                    long delay = randomInterval.getMillis(prefix, retry + 1);
+                    log.debug("Race updating prefix {} retry number {} after {} millis", prefix, retry + 1, delay);
+                    final int resumeLength = prefixLength;
+                    final int nextRetry = retry + 1;
+                    final var resumePrefetched = prefetched;
+                    final String retryPrefix = prefix;
+                    // The timer thread only hands the retry off, the update never runs on it.
+                    if (retryScheduler.schedule(() -> {
+                        if (!handOff(() -> resumeTopKUpdateAndLogErrors(
+                                query, count, resumeLength, nextRetry, resumePrefetched))) {
+                            log.warn("TopK update queue is full, retry of prefix {} dropped", retryPrefix);
+                        }
+                    }, delay)) {
+                        return;
                     }
-                } else if (status == NO_UPDATE_REQUIRED) {
-                    log.debug("{} updates finished for query '{}'", query.length() - prefixLength, query);
+                    log.warn("Too many pending retries, give up updating prefix {}", prefix);
+                }
+            } else if (status == NO_UPDATE_REQUIRED) {
+                int shardedLength = hotPrefixes == null ? 0
+                        : hotPrefixes.longestShardedPrefix(query, prefixLength - 1);
+                if (shardedLength < minLength) {
+                    log.debug("{} updates finished for query '{}'", indexedLength - prefixLength, query);
                     return;
-                } else {
-                    break;
                 }
+                // Continue from the prefix that might be sharded, the loop decrements the length.
+                prefixLength = shardedLength + 1;
+            }
+        }
+        if (prefixAggregator != null && minLength > 1) {
+            prefixAggregator.markUpdated(query.substring(0, minLength));
+        }
+        log.debug("{} updates finished for query '{}' ALL", indexedLength - minLength + 1, query);
+    }
+
+    private TopKUpdateStatus updateTopKSuffixesNearCached(String query, Long count, String prefix, Long topK,
+                                                          PrefixTopK current) {
+        String suffix = query.substring(prefix.length());
+        if (current == null) {
+            if (nearCache.cannotEnter(prefix, suffix, count, topK)) {
+                return NO_UPDATE_REQUIRED;
             }
-            if (retry == config.getMaxRetriesToUpdateTopK()) {
-                log.warn("Update topk suffixes for prefix {} failed {} times, give up", prefix, retry);
+            current = storage.getTopKQueries(prefix);
+        }
+        nearCache.put(prefix, current.getVersion(), updateSuffixes.toSortedList(current));
+        var status = updateSuffixes.updateTopKSuffixes(query, count, prefix, topK, current);
+        if (status == SUCCESS) {
+            nearCache.recordSuccess(prefix, current.getVersion(), suffix, count, topK);
+        } else if (status == CONDITION_FAILED) {
+            nearCache.invalidate(prefix);
+        }
+        return status;
+    }
+
+    /**
+     * Next character extensions of the prefix ordered by the total count of the topK queries they lead to.
+     */
+    static List<String> likelyExtensions(String prefix, List<SuffixCount> queries, int limit) {
+        var extensionCounts = new HashMap<String, Long>();
+        for (SuffixCount query : queries) {
+            if (query.getSuffix().length() > prefix.length()) {
+                extensionCounts.merge(query.getSuffix().substring(0, prefix.length() + 1), query.getCount(), Long::sum);
             }
         }
-        log.debug("{} updates finished for query '{}' ALL", query.length(), query);
+        return extensionCounts.entrySet().stream()
+                .sorted(Map.Entry.<String, Long>comparingByValue().reversed()
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .limit(limit)
+                .map(Map.Entry::getKey)
+                .collect(Collectors.toList());
+    }
+
+    private static <T> CompletionStage<List<T>> allOf(List<String> keys,
+                                                      Function<String, CompletionStage<T>> read) {
+        var futures = keys.stream()
+                .map(key -> read.apply(key).toCompletableFuture())
+                .collect(Collectors.toList());
+        return CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .thenApply(ignored -> futures.stream().map(CompletableFuture::join).collect(Collectors.toList()));
+    }
+
+    private static List<String> prefixes(String query, int minLength, int maxLength) {
+        var result = new ArrayList<String>(maxLength);
+        for (int length = maxLength; length >= minLength; --length) {
+            result.add(query.substring(0, length));
+        }
+        return result;
     }
 }
@@ -2,4 +2,22 @@ package org.bufistov.autocomplete;
 
 public interface RandomInterval {
     long getMillis();
+
+    /**
+     * Delay before the next attempt to update given prefix.
+     * @param prefix Prefix which update failed.
+     * @param retry Retry number, starts from 1.
+     * @return Delay in milliseconds.
+     */
+    default long getMillis(String prefix, int retry) {
+        return getMillis();
+    }
+
+    /**
+     * Record result of the prefix update attempt, used to track per prefix contention.
+     * @param prefix Updated prefix.
+     * @param status Result of the update.
+     */
+    default void recordUpdate(String prefix, TopKUpdateStatus status) {
+    }
 }
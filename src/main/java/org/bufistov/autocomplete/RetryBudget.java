@@ -0,0 +1,84 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.RetryBudgetStats;
+import org.bufistov.stats.StatsSource;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node wide token bucket that caps topK update retries as a fraction of the first attempts.
+ * Every first attempt deposits retryRatio tokens, every retry withdraws one token.
+ * Under overload the bucket drains, and updates give up early instead of multiplying the load.
+ */
+public class RetryBudget implements StatsSource {
+
+    private static final long MILLI_TOKENS = 1000;
+
+    private final long depositMilliTokens;
+
+    private final long maxMilliTokens;
+
+    private final AtomicLong milliTokens;
+
+    private final AtomicLong firstAttempts = new AtomicLong();
+
+    private final AtomicLong retriesAllowed = new AtomicLong();
+
+    private final AtomicLong retriesDenied = new AtomicLong();
+
+    /**
+     * @param retryRatio Allowed number of retries per first attempt, negative value means no limit.
+     * @param maxTokens Maximum number of retries that can be accumulated, bucket starts full.
+     */
+    public RetryBudget(double retryRatio, long maxTokens) {
+        this.depositMilliTokens = retryRatio < 0 ? -1 : (long) (retryRatio * MILLI_TOKENS);
+        this.maxMilliTokens = maxTokens * MILLI_TOKENS;
+        this.milliTokens = new AtomicLong(maxMilliTokens);
+    }
+
+    public static RetryBudget unlimited() {
+        return new RetryBudget(-1, 0);
+    }
+
+    public void recordFirstAttempt() {
+        firstAttempts.incrementAndGet();
+        if (depositMilliTokens > 0) {
+            milliTokens.accumulateAndGet(depositMilliTokens, (current, deposit) -> Math.min(maxMilliTokens, current + deposit));
+        }
+    }
+
+    /**
+     * @return true if retry is allowed, false if budget is exhausted.
+     */
+    public boolean tryAcquireRetry() {
+        if (depositMilliTokens < 0) {
+            retriesAllowed.incrementAndGet();
+            return true;
+        }
+        long current;
+        do {
+            current = milliTokens.get();
+            if (current < MILLI_TOKENS) {
+                retriesDenied.incrementAndGet();
+                return false;
+            }
+        } while (!milliTokens.compareAndSet(current, current - MILLI_TOKENS));
+        retriesAllowed.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public String getStatsName() {
+        return "retryBudget";
+    }
+
+    @Override
+    public RetryBudgetStats getStats() {
+        return RetryBudgetStats.builder()
+                .availableRetries(depositMilliTokens < 0 ? -1 : milliTokens.get() / MILLI_TOKENS)
+                .firstAttempts(firstAttempts.get())
+                .retriesAllowed(retriesAllowed.get())
+                .retriesDenied(retriesDenied.get())
+                .build();
+    }
+}
@@ -0,0 +1,159 @@
+package org.bufistov.autocomplete;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.StaleWhileRevalidateStats;
+import org.bufistov.stats.StatsSource;
+
+import java.time.Clock;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Keeps the last known good prefix item of every read prefix. If the storage does not answer
+ * within the latency budget, or fails, the last known item is returned and the storage read
+ * keeps running in background to refresh it. While the circuit breaker is open prefixes with a
+ * known item are served without reading the storage at all.
+ */
+@Log4j2
+public class StaleWhileRevalidateReader implements StatsSource {
+
+    @Getter
+    @AllArgsConstructor
+    public static class Result {
+        private final PrefixTopK value;
+        /**
+         * Age of the served item, null if the item was read by this request.
+         */
+        private final Long stalenessMillis;
+    }
+
+    @AllArgsConstructor
+    static class Entry {
+        final PrefixTopK value;
+        final long readTimeMillis;
+    }
+
+    private final Clock clock;
+
+    private final long latencyBudgetMillis;
+
+    private final CircuitBreaker circuitBreaker;
+
+    private final Cache<String, Entry> lastKnownGood;
+
+    private final AtomicLong freshReads = new AtomicLong();
+
+    private final AtomicLong staleReads = new AtomicLong();
+
+    private final AtomicLong slowReads = new AtomicLong();
+
+    private final AtomicLong failedReads = new AtomicLong();
+
+    private final AtomicLong skippedReads = new AtomicLong();
+
+    public StaleWhileRevalidateReader(Clock clock, long latencyBudgetMillis, long maxSize,
+                                      CircuitBreaker circuitBreaker) {
+        this.clock = clock;
+        this.latencyBudgetMillis = latencyBudgetMillis;
+        this.circuitBreaker = circuitBreaker;
+        this.lastKnownGood = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .build();
+    }
+
+    public CompletionStage<Result> read(String prefix, Function<String, CompletionStage<PrefixTopK>> loader) {
+        return read(prefix, loader, true);
+    }
+
+    /**
+     * Read only the version of the prefix item, e.g. for If-None-Match checks. Served from the last known
+     * item the same way as the item itself, but the version alone does not refresh the last known item.
+     */
+    public CompletionStage<Long> readVersion(String prefix, Function<String, CompletionStage<Long>> loader) {
+        return read(prefix, key -> loader.apply(key).thenApply(version -> PrefixTopK.builder()
+                .version(version)
+                .build()), false)
+                .thenApply(served -> served.getValue().getVersion());
+    }
+
+    private CompletionStage<Result> read(String prefix, Function<String, CompletionStage<PrefixTopK>> loader,
+                                         boolean refresh) {
+        Entry known = lastKnownGood.getIfPresent(prefix);
+        long start = clock.millis();
+        if (known != null && circuitBreaker.isOpen()) {
+            skippedReads.incrementAndGet();
+            staleReads.incrementAndGet();
+            return CompletableFuture.completedFuture(new Result(known.value, start - known.readTimeMillis));
+        }
+        var result = new CompletableFuture<Result>();
+        CompletionStage<PrefixTopK> load;
+        try {
+            load = loader.apply(prefix);
+        } catch (RuntimeException exception) {
+            load = CompletableFuture.failedFuture(exception);
+        }
+        load.whenComplete((value, error) -> {
+            long elapsed = clock.millis() - start;
+            if (error != null) {
+                failedReads.incrementAndGet();
+                circuitBreaker.recordFailure();
+                if (known == null) {
+                    result.completeExceptionally(error);
+                } else {
+                    log.warn("Failed to read prefix {}, serving last known item", prefix, error);
+                    result.complete(new Result(known.value, clock.millis() - known.readTimeMillis));
+                }
+                return;
+            }
+            if (elapsed > latencyBudgetMillis) {
+                slowReads.incrementAndGet();
+                circuitBreaker.recordFailure();
+            } else {
+                circuitBreaker.recordSuccess();
+            }
+            if (refresh) {
+                lastKnownGood.put(prefix, new Entry(value, clock.millis()));
+            }
+            result.complete(new Result(value, null));
+        });
+        if (known != null) {
+            result.completeOnTimeout(new Result(known.value, start + latencyBudgetMillis - known.readTimeMillis),
+                    latencyBudgetMillis, TimeUnit.MILLISECONDS);
+        }
+        return result.thenApply(served -> {
+            if (served.getStalenessMillis() == null) {
+                freshReads.incrementAndGet();
+            } else {
+                staleReads.incrementAndGet();
+            }
+            return served;
+        });
+    }
+
+    @Override
+    public String getStatsName() {
+        return "staleWhileRevalidate";
+    }
+
+    @Override
+    public StaleWhileRevalidateStats getStats() {
+        return StaleWhileRevalidateStats.builder()
+                .entries(lastKnownGood.size())
+                .freshReads(freshReads.get())
+                .staleReads(staleReads.get())
+                .slowReads(slowReads.get())
+                .failedReads(failedReads.get())
+                .skippedReads(skippedReads.get())
+                .circuitBreakerOpen(circuitBreaker.isOpen())
+                .circuitBreakerTrips(circuitBreaker.getTrips())
+                .build();
+    }
+}
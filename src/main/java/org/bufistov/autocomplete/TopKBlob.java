@@ -0,0 +1,220 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.SuffixCount;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Binary encoding of the topK suffixes of a prefix kept in one blob cell: format version, number of
+ * suffixes and the suffixes in ascending (count, suffix) order, each as varint count, varint length
+ * and UTF-8 bytes of the suffix. The smallest suffix goes first, so reads need no sort and updates
+ * are single pass merges over the encoded bytes.
+ */
+public final class TopKBlob {
+
+    static final byte FORMAT_VERSION = 1;
+
+    private TopKBlob() {
+    }
+
+    /**
+     * @return Number of suffixes in the blob, null blob is empty.
+     */
+    public static int size(ByteBuffer blob) {
+        return isEmpty(blob) ? 0 : new Cursor(blob).remaining;
+    }
+
+    /**
+     * @return Count of the suffix or null if the blob does not contain it.
+     */
+    public static Long countOf(ByteBuffer blob, String suffix) {
+        if (isEmpty(blob)) {
+            return null;
+        }
+        var suffixBytes = suffix.getBytes(StandardCharsets.UTF_8);
+        var cursor = new Cursor(blob);
+        while (cursor.next()) {
+            if (cursor.suffixEquals(suffixBytes)) {
+                return cursor.count;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return Smallest count in the blob, or 0 if the blob is empty.
+     */
+    public static long minCount(ByteBuffer blob) {
+        if (isEmpty(blob)) {
+            return 0;
+        }
+        var cursor = new Cursor(blob);
+        return cursor.next() ? cursor.count : 0;
+    }
+
+    /**
+     * Decode suffixes in ascending (count, suffix) order.
+     */
+    public static List<SuffixCount> toSortedList(ByteBuffer blob) {
+        if (isEmpty(blob)) {
+            return List.of();
+        }
+        var cursor = new Cursor(blob);
+        var result = new ArrayList<SuffixCount>(cursor.remaining);
+        while (cursor.next()) {
+            result.add(SuffixCount.builder()
+                    .count(cursor.count)
+                    .suffix(cursor.suffix())
+                    .build());
+        }
+        return result;
+    }
+
+    /**
+     * Encode suffixes that are already in ascending (count, suffix) order.
+     */
+    public static ByteBuffer encode(List<SuffixCount> sortedSuffixes) {
+        var out = new ByteArrayOutputStream();
+        out.write(FORMAT_VERSION);
+        writeVarLong(out, sortedSuffixes.size());
+        for (var suffixCount : sortedSuffixes) {
+            var bytes = suffixCount.getSuffix().getBytes(StandardCharsets.UTF_8);
+            writeEntry(out, suffixCount.getCount(), bytes, 0, bytes.length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Set count of the suffix to the max of the given and the current one and keep topK largest suffixes.
+     * Suffixes above the limit are dropped, this also prunes the blob when topK was decreased.
+     * @return New blob, equal to the old one if nothing has changed.
+     */
+    public static ByteBuffer merge(ByteBuffer blob, String suffix, long count, int topK) {
+        var suffixBytes = suffix.getBytes(StandardCharsets.UTF_8);
+        int size = size(blob);
+        Long currentCount = countOf(blob, suffix);
+        long newCount = currentCount == null ? count : Math.max(count, currentCount);
+        int total = currentCount == null ? size + 1 : size;
+        int toDrop = Math.max(0, total - topK);
+        var out = new ByteArrayOutputStream();
+        out.write(FORMAT_VERSION);
+        writeVarLong(out, total - toDrop);
+        int index = 0;
+        boolean inserted = false;
+        if (size > 0) {
+            var cursor = new Cursor(blob);
+            while (cursor.next()) {
+                if (cursor.suffixEquals(suffixBytes)) {
+                    continue;
+                }
+                if (!inserted && (newCount < cursor.count
+                        || newCount == cursor.count && suffix.compareTo(cursor.suffix()) < 0)) {
+                    if (index++ >= toDrop) {
+                        writeEntry(out, newCount, suffixBytes, 0, suffixBytes.length);
+                    }
+                    inserted = true;
+                }
+                if (index++ >= toDrop) {
+                    cursor.writeTo(out);
+                }
+            }
+        }
+        if (!inserted && index >= toDrop) {
+            writeEntry(out, newCount, suffixBytes, 0, suffixBytes.length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    private static boolean isEmpty(ByteBuffer blob) {
+        return blob == null || !blob.hasRemaining();
+    }
+
+    private static void writeEntry(ByteArrayOutputStream out, long count, byte[] suffix, int offset, int length) {
+        writeVarLong(out, count);
+        writeVarLong(out, length);
+        out.write(suffix, offset, length);
+    }
+
+    private static void writeVarLong(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarLong(ByteBuffer buffer) {
+        long value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte current = buffer.get();
+            value |= (long) (current & 0x7F) << shift;
+            if (current >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * Reads entries in place, suffix bytes are decoded only when asked for.
+     */
+    private static class Cursor {
+        private final ByteBuffer buffer;
+        private int remaining;
+        private long count;
+        private int suffixOffset;
+        private int suffixLength;
+
+        Cursor(ByteBuffer blob) {
+            buffer = blob.duplicate();
+            byte format = buffer.get();
+            if (format != FORMAT_VERSION) {
+                throw new IllegalStateException("Unknown topK blob format: " + format);
+            }
+            remaining = (int) readVarLong(buffer);
+        }
+
+        boolean next() {
+            if (remaining == 0) {
+                return false;
+            }
+            --remaining;
+            count = readVarLong(buffer);
+            suffixLength = (int) readVarLong(buffer);
+            suffixOffset = buffer.position();
+            buffer.position(suffixOffset + suffixLength);
+            return true;
+        }
+
+        boolean suffixEquals(byte[] suffix) {
+            if (suffix.length != suffixLength) {
+                return false;
+            }
+            for (int i = 0; i < suffixLength; ++i) {
+                if (buffer.get(suffixOffset + i) != suffix[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        String suffix() {
+            var bytes = new byte[suffixLength];
+            var suffix = buffer.duplicate();
+            suffix.position(suffixOffset);
+            suffix.get(bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        void writeTo(ByteArrayOutputStream out) {
+            writeVarLong(out, count);
+            writeVarLong(out, suffixLength);
+            for (int i = 0; i < suffixLength; ++i) {
+                out.write(buffer.get(suffixOffset + i));
+            }
+        }
+    }
+}
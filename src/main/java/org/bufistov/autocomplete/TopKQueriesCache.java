@@ -0,0 +1,95 @@
+package org.bufistov.autocomplete;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import org.bufistov.exception.DependencyException;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.model.TopKQueries;
+import org.bufistov.model.TopKQueriesCacheStats;
+import org.bufistov.stats.StatsSource;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+/**
+ * Read-through cache of GET /queries responses. Bounded by the approximate heap size of the cached
+ * responses, entries expire after the TTL so writes of other webservers become visible.
+ * Successful writes of this webserver invalidate the prefix immediately.
+ */
+public class TopKQueriesCache implements StatsSource {
+
+    private static final int ENTRY_OVERHEAD_BYTES = 128;
+
+    private static final int SUFFIX_OVERHEAD_BYTES = 64;
+
+    private final Cache<String, TopKQueries> cache;
+
+    private final AtomicLong invalidations = new AtomicLong();
+
+    public TopKQueriesCache(long maxWeightBytes, long expireAfterWriteMillis) {
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeightBytes)
+                .weigher(TopKQueriesCache::weigh)
+                .expireAfterWrite(expireAfterWriteMillis, TimeUnit.MILLISECONDS)
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Get cached queries of the prefix, concurrent misses of the same prefix load it once.
+     */
+    public TopKQueries get(String prefix, Function<String, TopKQueries> loader) {
+        try {
+            return cache.get(prefix, () -> loader.apply(prefix));
+        } catch (ExecutionException | UncheckedExecutionException exception) {
+            if (exception.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exception.getCause();
+            }
+            throw new DependencyException("Failed to load queries for prefix " + prefix, exception.getCause());
+        }
+    }
+
+    public TopKQueries getIfPresent(String prefix) {
+        return cache.getIfPresent(prefix);
+    }
+
+    public void put(String prefix, TopKQueries queries) {
+        cache.put(prefix, queries);
+    }
+
+    public void invalidate(String prefix) {
+        invalidations.incrementAndGet();
+        cache.invalidate(prefix);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "topKQueriesCache";
+    }
+
+    @Override
+    public TopKQueriesCacheStats getStats() {
+        var stats = cache.stats();
+        return TopKQueriesCacheStats.builder()
+                .entries(cache.size())
+                .hits(stats.hitCount())
+                .misses(stats.missCount())
+                .hitRate(stats.hitRate())
+                .evictions(stats.evictionCount())
+                .invalidations(invalidations.get())
+                .loadErrors(stats.loadExceptionCount())
+                .avgLoadMillis(stats.averageLoadPenalty() / 1e6)
+                .build();
+    }
+
+    static int weigh(String prefix, TopKQueries queries) {
+        int weight = ENTRY_OVERHEAD_BYTES + 2 * prefix.length();
+        for (SuffixCount suffixCount : queries.getQueries()) {
+            weight += SUFFIX_OVERHEAD_BYTES + 2 * suffixCount.getSuffix().length();
+        }
+        return weight;
+    }
+}
@@ -0,0 +1,91 @@
+package org.bufistov.autocomplete;
+
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.TopKRetrySchedulerStats;
+import org.bufistov.stats.StatsSource;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Timer that resumes topK updates after CONDITION_FAILED, no thread is held while the retry is waiting.
+ * Number of pending retries is bounded.
+ */
+@Log4j2
+public class TopKRetryScheduler implements StatsSource {
+
+    private final ScheduledExecutorService scheduler;
+
+    private final int maxPendingRetries;
+
+    private final AtomicInteger pendingRetries = new AtomicInteger();
+
+    private final AtomicLong scheduledRetries = new AtomicLong();
+
+    private final AtomicLong rejectedRetries = new AtomicLong();
+
+    public TopKRetryScheduler(int maxPendingRetries) {
+        this(Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "topk-retry-scheduler");
+            thread.setDaemon(true);
+            return thread;
+        }), maxPendingRetries);
+    }
+
+    public TopKRetryScheduler(ScheduledExecutorService scheduler, int maxPendingRetries) {
+        this.scheduler = scheduler;
+        this.maxPendingRetries = maxPendingRetries;
+    }
+
+    /**
+     * Schedule retry.
+     * @param retry Continuation of the topK update.
+     * @param delayMillis Delay before the retry.
+     * @return false if there are too many pending retries and retry was not scheduled.
+     */
+    public boolean schedule(Runnable retry, long delayMillis) {
+        if (pendingRetries.incrementAndGet() > maxPendingRetries) {
+            pendingRetries.decrementAndGet();
+            rejectedRetries.incrementAndGet();
+            return false;
+        }
+        scheduledRetries.incrementAndGet();
+        try {
+            scheduler.schedule(() -> {
+                pendingRetries.decrementAndGet();
+                retry.run();
+            }, delayMillis, TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException exception) {
+            pendingRetries.decrementAndGet();
+            rejectedRetries.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    public void shutdown() {
+        var dropped = scheduler.shutdownNow();
+        if (!dropped.isEmpty()) {
+            log.warn("{} pending topK update retries dropped on shutdown", dropped.size());
+        }
+    }
+
+    @Override
+    public String getStatsName() {
+        return "topKRetryScheduler";
+    }
+
+    @Override
+    public TopKRetrySchedulerStats getStats() {
+        return TopKRetrySchedulerStats.builder()
+                .pendingRetries(pendingRetries.get())
+                .maxPendingRetries(maxPendingRetries)
+                .scheduledRetries(scheduledRetries.get())
+                .rejectedRetries(rejectedRetries.get())
+                .build();
+    }
+}
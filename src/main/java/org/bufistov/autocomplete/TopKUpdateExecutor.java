@@ -0,0 +1,155 @@
+package org.bufistov.autocomplete;
+
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.TopKUpdateExecutorStats;
+import org.bufistov.stats.StatsSource;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded worker pool that runs topK propagation off the request threads.
+ * Tracks queue depth, rejections and the lag between submission and start of execution.
+ */
+@Log4j2
+public class TopKUpdateExecutor implements Executor, StatsSource {
+
+    public enum RejectionPolicy {
+        /**
+         * Run the update on the submitting thread, this gives back pressure to the clients.
+         */
+        CALLER_RUNS,
+        /**
+         * Drop the update. The query will be propagated on its next topK update.
+         */
+        DISCARD
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private final ThreadPoolExecutor threadPool;
+
+    private final RejectionPolicy rejectionPolicy;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong totalLagMillis = new AtomicLong();
+
+    private final AtomicLong maxLagMillis = new AtomicLong();
+
+    private final AtomicLong lastLagMillis = new AtomicLong();
+
+    public TopKUpdateExecutor(int maxThreadPoolSize, int queueSize, RejectionPolicy rejectionPolicy) {
+        this.rejectionPolicy = rejectionPolicy;
+        this.threadPool = new ThreadPoolExecutor(maxThreadPoolSize, maxThreadPoolSize,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(queueSize),
+                threadFactory());
+        this.threadPool.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Runnable task = track(command);
+        try {
+            threadPool.execute(task);
+        } catch (RejectedExecutionException exception) {
+            rejected.incrementAndGet();
+            if (rejectionPolicy == RejectionPolicy.CALLER_RUNS && !threadPool.isShutdown()) {
+                log.debug("TopK update queue is full, running update on the caller thread");
+                task.run();
+            } else {
+                log.warn("TopK update queue is full, update discarded");
+            }
+        }
+    }
+
+    /**
+     * Submit the update regardless of the rejection policy, the update never runs on the caller thread.
+     * Used by the threads that must not block, e.g. timers and storage callbacks.
+     * @param command The update.
+     * @return false if the queue is full and the update was not accepted.
+     */
+    public boolean tryExecute(Runnable command) {
+        try {
+            threadPool.execute(track(command));
+            return true;
+        } catch (RejectedExecutionException exception) {
+            rejected.incrementAndGet();
+            return false;
+        }
+    }
+
+    @Override
+    public String getStatsName() {
+        return "topKUpdateExecutor";
+    }
+
+    @Override
+    public TopKUpdateExecutorStats getStats() {
+        long done = completed.get();
+        return TopKUpdateExecutorStats.builder()
+                .queueDepth(threadPool.getQueue().size())
+                .queueRemainingCapacity(threadPool.getQueue().remainingCapacity())
+                .activeThreads(threadPool.getActiveCount())
+                .poolSize(threadPool.getPoolSize())
+                .rejectionPolicy(rejectionPolicy.name())
+                .submitted(submitted.get())
+                .completed(done)
+                .rejected(rejected.get())
+                .lastLagMillis(lastLagMillis.get())
+                .maxLagMillis(maxLagMillis.get())
+                .avgLagMillis(done == 0 ? 0 : totalLagMillis.get() / done)
+                .build();
+    }
+
+    public void shutdown() {
+        threadPool.shutdown();
+        try {
+            if (!threadPool.awaitTermination(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS)) {
+                log.warn("{} topK updates were not finished before shutdown", threadPool.shutdownNow().size());
+            }
+        } catch (InterruptedException exception) {
+            threadPool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private Runnable track(Runnable command) {
+        submitted.incrementAndGet();
+        long submitTime = System.currentTimeMillis();
+        return () -> {
+            recordLag(System.currentTimeMillis() - submitTime);
+            try {
+                command.run();
+            } finally {
+                completed.incrementAndGet();
+            }
+        };
+    }
+
+    private void recordLag(long lagMillis) {
+        lastLagMillis.set(lagMillis);
+        totalLagMillis.addAndGet(lagMillis);
+        maxLagMillis.accumulateAndGet(lagMillis, Math::max);
+    }
+
+    private static ThreadFactory threadFactory() {
+        var threadNumber = new AtomicInteger();
+        return runnable -> {
+            Thread thread = new Thread(runnable, "topk-update-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
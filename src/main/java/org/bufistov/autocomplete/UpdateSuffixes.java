@@ -17,10 +17,53 @@ public interface UpdateSuffixes {
      */
     TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK);
 
+    /**
+     *  Update topK suffixes for given query prefix using already read prefix item.
+     * @param query The query.
+     * @param count New query count.
+     * @param prefix Query prefix.
+     * @param topK topK value.
+     * @param current Current topK suffixes of the prefix, conditional update fails if it is stale.
+     * @return Result of the update which might be: Success, No update required or condition failed.
+     */
+    TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK, PrefixTopK current);
+
+    /**
+     *  Merge suffix counts into topK suffixes of the prefix, the max count of every suffix is kept.
+     *  The default implementation updates the suffixes one by one and stops on the first failed update.
+     * @param prefix Query prefix.
+     * @param suffixCounts Suffix counts to merge.
+     * @param topK topK value.
+     * @return Success if topK changed, no update required or condition failed if an update failed.
+     */
+    default TopKUpdateStatus mergeTopKSuffixes(String prefix, List<SuffixCount> suffixCounts, Long topK) {
+        var result = TopKUpdateStatus.NO_UPDATE_REQUIRED;
+        for (var suffixCount : suffixCounts) {
+            var status = updateTopKSuffixes(prefix + suffixCount.getSuffix(), suffixCount.getCount(), prefix, topK);
+            if (status == TopKUpdateStatus.CONDITION_FAILED) {
+                return status;
+            }
+            if (status == TopKUpdateStatus.SUCCESS) {
+                result = status;
+            }
+        }
+        return result;
+    }
+
     /**
      *  Tnransforms internal cassandra representation of topK suffixes to general representation.
      * @param suffixCount topK suffixes from cassandra table.
      * @return List of Suffix counts.
      */
     List<SuffixCount> toSortedList(PrefixTopK suffixCount);
+
+    /**
+     *  All suffixes of the prefix item sorted by count ascending, strategies that keep more than topK
+     *  suffixes return the ones that are cut off by toSortedList as well.
+     * @param suffixCount topK suffixes from cassandra table.
+     * @return List of Suffix counts.
+     */
+    default List<SuffixCount> toSortedCandidates(PrefixTopK suffixCount) {
+        return toSortedList(suffixCount);
+    }
 }
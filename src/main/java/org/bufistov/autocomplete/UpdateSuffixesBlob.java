@@ -0,0 +1,55 @@
+package org.bufistov.autocomplete;
+
+import lombok.AllArgsConstructor;
+import lombok.NoArgsConstructor;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.storage.Storage;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.List;
+
+import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+
+/**
+ * Keeps topK suffixes of a prefix in one blob cell encoded by {@link TopKBlob}. The whole blob is
+ * replaced on update, so there are no collection cell tombstones, and pruning after topK decrease
+ * is part of the same write.
+ */
+@NoArgsConstructor
+@AllArgsConstructor
+public class UpdateSuffixesBlob implements UpdateSuffixes {
+
+    @Autowired
+    protected Storage storage;
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK) {
+        return updateTopKSuffixes(query, count, prefix, topK, storage.getTopKQueries(prefix));
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK, PrefixTopK result) {
+        var blob = result.getTopK3();
+        String suffix = query.substring(prefix.length());
+        int size = TopKBlob.size(blob);
+        if (size == topK && count <= TopKBlob.minCount(blob) && TopKBlob.countOf(blob, suffix) == null) {
+            return NO_UPDATE_REQUIRED;
+        }
+        var newBlob = TopKBlob.merge(blob, suffix, count, topK.intValue());
+        if (newBlob.equals(blob)) {
+            return NO_UPDATE_REQUIRED;
+        }
+        return storage.updateTopK3Queries(prefix, newBlob, result.getVersion()) ? SUCCESS : CONDITION_FAILED;
+    }
+
+    @Override
+    public List<SuffixCount> toSortedList(PrefixTopK suffixCount) {
+        if (suffixCount == null) {
+            return List.of();
+        }
+        return TopKBlob.toSortedList(suffixCount.getTopK3());
+    }
+}
@@ -0,0 +1,122 @@
+package org.bufistov.autocomplete;
+
+import lombok.Setter;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.storage.Storage;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+
+/**
+ * Keeps up to factor * K candidate suffixes of a prefix in a map merged by max count. Writes are
+ * unconditional idempotent upserts, so they never conflict and never retry. Reads trim the candidates
+ * to the topK, the candidates above the capacity are pruned lazily by the compactor.
+ */
+public class UpdateSuffixesCandidates implements UpdateSuffixes {
+
+    @Autowired
+    protected Storage storage;
+
+    @Autowired(required = false)
+    @Setter
+    private CandidateCompactor compactor;
+
+    private final long topK;
+
+    private final int candidatesFactor;
+
+    public UpdateSuffixesCandidates(long topK, int candidatesFactor) {
+        this.topK = topK;
+        this.candidatesFactor = candidatesFactor;
+    }
+
+    public UpdateSuffixesCandidates(Storage storage, long topK, int candidatesFactor) {
+        this(topK, candidatesFactor);
+        this.storage = storage;
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK) {
+        return updateTopKSuffixes(query, count, prefix, topK, storage.getTopKQueries(prefix));
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK, PrefixTopK result) {
+        String suffix = query.substring(prefix.length());
+        var candidates = candidates(result);
+        var currentCount = candidates.get(suffix);
+        if (currentCount != null && currentCount >= count) {
+            return NO_UPDATE_REQUIRED;
+        }
+        long capacity = topK * candidatesFactor;
+        boolean full = candidates.size() >= capacity;
+        if (currentCount == null && full && count <= minCount(candidates)) {
+            return NO_UPDATE_REQUIRED;
+        }
+        storage.mergeCandidate(prefix, suffix, count, currentCount);
+        if (currentCount == null && full) {
+            if (compactor != null) {
+                compactor.schedule(prefix);
+            } else {
+                var merged = new HashMap<>(candidates);
+                merged.put(suffix, count);
+                storage.removeCandidates(prefix, overflow(merged, capacity));
+            }
+        }
+        return SUCCESS;
+    }
+
+    @Override
+    public List<SuffixCount> toSortedList(PrefixTopK suffixCount) {
+        if (suffixCount == null) {
+            return List.of();
+        }
+        var sorted = sorted(candidates(suffixCount));
+        return sorted.subList((int) Math.max(0, sorted.size() - topK), sorted.size());
+    }
+
+    @Override
+    public List<SuffixCount> toSortedCandidates(PrefixTopK suffixCount) {
+        return suffixCount == null ? List.of() : sorted(candidates(suffixCount));
+    }
+
+    /**
+     * Candidates with counts below the capacity-th largest one.
+     * @param candidates Candidate suffixes with their counts
+     * @param capacity Number of the candidates to keep
+     * @return Candidates to remove
+     */
+    static Map<String, Long> overflow(Map<String, Long> candidates, long capacity) {
+        if (candidates.size() <= capacity) {
+            return Map.of();
+        }
+        var sorted = sorted(candidates);
+        var result = new HashMap<String, Long>();
+        for (var candidate : sorted.subList(0, (int) (sorted.size() - capacity))) {
+            result.put(candidate.getSuffix(), candidate.getCount());
+        }
+        return result;
+    }
+
+    private static List<SuffixCount> sorted(Map<String, Long> candidates) {
+        var result = new ArrayList<SuffixCount>(candidates.size());
+        candidates.forEach((suffix, count) -> result.add(SuffixCount.builder().suffix(suffix).count(count).build()));
+        result.sort(null);
+        return result;
+    }
+
+    private static long minCount(Map<String, Long> candidates) {
+        return candidates.values().stream().mapToLong(Long::longValue).min().orElse(0);
+    }
+
+    private static Map<String, Long> candidates(PrefixTopK result) {
+        return result.getTopK5() == null ? Map.of() : result.getTopK5();
+    }
+}
@@ -0,0 +1,114 @@
+package org.bufistov.autocomplete;
+
+import lombok.AllArgsConstructor;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.storage.Storage;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+
+/**
+ * Keeps topK suffixes of a prefix as rows clustered by count descending. Updates are unconditional
+ * max merges: the new row of the suffix is written together with removal of its old row, so there
+ * are no conflicts. Concurrent updates of the same suffix can leave rows with its older counts, reads
+ * take the first row of every suffix and updates remove the stale rows and the rows pushed out of the topK.
+ */
+@AllArgsConstructor
+public class UpdateSuffixesClustered implements UpdateSuffixes {
+
+    @Autowired
+    protected Storage storage;
+
+    private final long topK;
+
+    public UpdateSuffixesClustered(long topK) {
+        this.topK = topK;
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK) {
+        return updateTopKSuffixes(query, count, prefix, topK, storage.getTopKQueries(prefix));
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK, PrefixTopK result) {
+        String suffix = query.substring(prefix.length());
+        var rows = rows(result);
+        var seen = new HashSet<String>();
+        var toRemove = new ArrayList<SuffixCount>();
+        Long currentCount = null;
+        SuffixCount last = null;
+        for (var row : rows) {
+            if (!seen.add(row.getSuffix())) {
+                toRemove.add(row);
+            } else if (seen.size() > topK) {
+                toRemove.add(row);
+            } else {
+                last = row;
+            }
+            if (currentCount == null && row.getSuffix().equals(suffix)) {
+                currentCount = row.getCount();
+            }
+        }
+        if (currentCount != null && currentCount >= count) {
+            return NO_UPDATE_REQUIRED;
+        }
+        boolean full = seen.size() >= topK;
+        if (currentCount == null && full && count <= last.getCount()) {
+            return NO_UPDATE_REQUIRED;
+        }
+        storage.mergeSuffixRow(prefix, suffix, count, currentCount);
+        if (currentCount == null && full && !last.getSuffix().equals(suffix)) {
+            // The new suffix pushes the smallest one out of the topK.
+            toRemove.add(last);
+        }
+        toRemove.removeIf(row -> row.getSuffix().equals(suffix) && row.getCount() == count.longValue());
+        if (!toRemove.isEmpty()) {
+            storage.removeSuffixRows(prefix, toRemove);
+        }
+        return SUCCESS;
+    }
+
+    /**
+     * Rows are read in descending order, the result is filled from the end, so no sort is needed.
+     */
+    @Override
+    public List<SuffixCount> toSortedList(PrefixTopK suffixCount) {
+        return toSortedList(suffixCount, topK);
+    }
+
+    @Override
+    public List<SuffixCount> toSortedCandidates(PrefixTopK suffixCount) {
+        return toSortedList(suffixCount, Long.MAX_VALUE);
+    }
+
+    private static List<SuffixCount> toSortedList(PrefixTopK suffixCount, long limit) {
+        if (suffixCount == null) {
+            return List.of();
+        }
+        var rows = rows(suffixCount);
+        var seen = new HashSet<String>();
+        var result = new SuffixCount[(int) Math.min(limit, rows.size())];
+        int size = 0;
+        for (var row : rows) {
+            if (size == result.length) {
+                break;
+            }
+            if (seen.add(row.getSuffix())) {
+                result[result.length - ++size] = row;
+            }
+        }
+        return Arrays.asList(result).subList(result.length - size, result.length);
+    }
+
+    private static List<SuffixCount> rows(PrefixTopK result) {
+        return result.getTopK4() == null ? List.of() : result.getTopK4();
+    }
+}
@@ -9,6 +9,7 @@ import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -30,7 +31,11 @@ public class UpdateSuffixesMap implements UpdateSuffixes {
 
     @Override
     public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK) {
-        var result = storage.getTopKQueries(prefix);
+        return updateTopKSuffixes(query, count, prefix, topK, storage.getTopKQueries(prefix));
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK, PrefixTopK result) {
         var topKSuffixes = result.getTopK();
         Long currentVersion = result.getVersion();
         if (topKSuffixes.size() > topK) {
@@ -62,6 +67,32 @@ public class UpdateSuffixesMap implements UpdateSuffixes {
         return NO_UPDATE_REQUIRED;
     }
 
+    /**
+     * The merged topK is written in one conditional update.
+     */
+    @Override
+    public TopKUpdateStatus mergeTopKSuffixes(String prefix, List<SuffixCount> suffixCounts, Long topK) {
+        var current = storage.getTopKQueries(prefix);
+        var merged = new HashMap<>(current.getTopK());
+        suffixCounts.forEach(suffixCount -> merged.merge(suffixCount.getSuffix(), suffixCount.getCount(), Math::max));
+        var newTopK = merged.entrySet().stream()
+                .sorted(suffixComparator().reversed())
+                .limit(topK)
+                .collect(Collectors.toMap(Map.Entry::getKey, Map.Entry::getValue));
+        if (newTopK.equals(current.getTopK())) {
+            return NO_UPDATE_REQUIRED;
+        }
+        var toRemove = new HashSet<>(current.getTopK().keySet());
+        toRemove.removeAll(newTopK.keySet());
+        var toAdd = new HashMap<String, Long>();
+        newTopK.forEach((suffix, count) -> {
+            if (!count.equals(current.getTopK().get(suffix))) {
+                toAdd.put(suffix, count);
+            }
+        });
+        return getStatus(storage.updateTopKQueries(prefix, toRemove, toAdd, current.getVersion()));
+    }
+
     @Override
     public List<SuffixCount> toSortedList(PrefixTopK suffixCount) {
         if (suffixCount == null) {
@@ -30,7 +30,11 @@ public class UpdateSuffixesTupleSet implements UpdateSuffixes {
 
     @Override
     public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK) {
-        var result = storage.getTopKQueries(prefix);
+        return updateTopKSuffixes(query, count, prefix, topK, storage.getTopKQueries(prefix));
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK, PrefixTopK result) {
         var topKSuffixes = result.getTopK2();
         Long currentVersion = result.getVersion();
         if (topKSuffixes.size() > topK) {
@@ -25,8 +25,13 @@ public class UpdateSuffixesUdtSet implements UpdateSuffixes {
 
     @Override
     public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK) {
+        return updateTopKSuffixes(query, count, prefix, topK, storage.getTopKQueries(prefix));
+    }
+
+    @Override
+    public TopKUpdateStatus updateTopKSuffixes(String query, Long count, String prefix, Long topK,
+                                               PrefixTopK topKSuffixes) {
         String suffix = query.substring(prefix.length());
-        var topKSuffixes = storage.getTopKQueries(prefix);
         var finalSet = new TreeSet<>(topKSuffixes.getTopK1());
         while (finalSet.size() > topK) {
             finalSet.remove(finalSet.first());
@@ -0,0 +1,63 @@
+package org.bufistov.cluster;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bufistov.exception.DependencyException;
+import org.bufistov.handler.ClusterInternal;
+import org.bufistov.model.QueryCount;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Forwards topK updates to the owner's /internal/propagate endpoint, member is host:port.
+ * Requests carry the cluster secret the endpoint authenticates them with.
+ */
+public class HttpQueryForwarder implements QueryForwarder {
+
+    private final HttpClient httpClient;
+
+    private final ObjectMapper objectMapper;
+
+    private final Duration timeout;
+
+    private final String secret;
+
+    public HttpQueryForwarder(ObjectMapper objectMapper, Duration timeout, String secret) {
+        this.objectMapper = objectMapper;
+        this.timeout = timeout;
+        this.secret = secret;
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1)
+                .connectTimeout(timeout)
+                .build();
+    }
+
+    @Override
+    public CompletableFuture<Void> forward(String owner, QueryCount queryCount) {
+        String body;
+        try {
+            body = objectMapper.writeValueAsString(queryCount);
+        } catch (JsonProcessingException exception) {
+            return CompletableFuture.failedFuture(exception);
+        }
+        HttpRequest request = HttpRequest.newBuilder()
+                .uri(URI.create(String.format("http://%s/internal/propagate", owner)))
+                .timeout(timeout)
+                .header("content-type", "application/json")
+                .header(ClusterInternal.SECRET_HEADER, secret)
+                .POST(HttpRequest.BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+                .build();
+        return httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .thenAccept(response -> {
+                    if (response.statusCode() / 100 != 2) {
+                        throw new DependencyException("Owner " + owner + " responded " + response.statusCode(), null);
+                    }
+                });
+    }
+}
@@ -0,0 +1,18 @@
+package org.bufistov.cluster;
+
+import org.bufistov.model.QueryCount;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends topK update of the query to the webserver that owns the query.
+ */
+public interface QueryForwarder {
+
+    /**
+     * @param owner Owner member as listed in the member list.
+     * @param queryCount Counter state that triggered the topK update.
+     * @return Future completed once the owner accepted the update.
+     */
+    CompletableFuture<Void> forward(String owner, QueryCount queryCount);
+}
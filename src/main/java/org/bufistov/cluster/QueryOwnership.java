@@ -0,0 +1,179 @@
+package org.bufistov.cluster;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.hash.Hashing;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.QueryOwnershipStats;
+import org.bufistov.stats.StatsSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Assigns every query to exactly one webserver using consistent hashing over the member list.
+ * The owner propagates topK updates of the query and deduplicates them before the query_update LWT.
+ * Ring depends only on the set of members, so every node computes the same owner,
+ * and a membership change moves only the queries of the added or removed member.
+ * Members are always chosen among the configured seeds, so the member list can't point
+ * the forwarded updates to arbitrary hosts.
+ */
+@Log4j2
+public class QueryOwnership implements StatsSource {
+
+    @Getter
+    private final String self;
+
+    private final int virtualNodes;
+
+    private final Set<String> seeds;
+
+    private volatile NavigableMap<Long, String> ring;
+
+    @Getter
+    private volatile List<String> members;
+
+    /**
+     * Last topK update time per owned query, filters duplicates before the query_update LWT.
+     */
+    private final Cache<String, Date> updateTimes;
+
+    private final AtomicLong owned = new AtomicLong();
+
+    private final AtomicLong forwarded = new AtomicLong();
+
+    private final AtomicLong forwardFailures = new AtomicLong();
+
+    private final AtomicLong duplicatesSkipped = new AtomicLong();
+
+    public QueryOwnership(String self, Collection<String> members, int virtualNodes, long maxTrackedQueries) {
+        this.self = self;
+        this.virtualNodes = virtualNodes;
+        this.updateTimes = CacheBuilder.newBuilder()
+                .maximumSize(maxTrackedQueries)
+                .build();
+        this.seeds = Set.copyOf(normalize(members));
+        setMembers(members);
+    }
+
+    /**
+     * Replace the member list.
+     * @param newMembers Members, every one of them must be a configured seed.
+     */
+    public synchronized void setMembers(Collection<String> newMembers) {
+        var sortedMembers = normalize(newMembers);
+        if (sortedMembers.isEmpty()) {
+            throw new IllegalArgumentException("Member list is empty");
+        }
+        var unknown = sortedMembers.stream()
+                .filter(member -> !seeds.contains(member))
+                .collect(Collectors.toList());
+        if (!unknown.isEmpty()) {
+            throw new IllegalArgumentException("Members " + unknown + " are not among the configured seeds");
+        }
+        if (!sortedMembers.contains(self)) {
+            log.warn("{} is not a member of {}, all queries are forwarded", self, sortedMembers);
+        }
+        var newRing = new TreeMap<Long, String>();
+        for (String member : sortedMembers) {
+            for (int i = 0; i < virtualNodes; ++i) {
+                newRing.put(hash(member + "#" + i), member);
+            }
+        }
+        ring = newRing;
+        members = List.copyOf(sortedMembers);
+        log.info("Query ownership members: {}", members);
+    }
+
+    public String ownerOf(String query) {
+        var currentRing = ring;
+        var entry = currentRing.ceilingEntry(hash(query));
+        return entry != null ? entry.getValue() : currentRing.firstEntry().getValue();
+    }
+
+    public boolean isOwner(String query) {
+        return self.equals(ownerOf(query));
+    }
+
+    /**
+     * Start propagation of the owned query. Mirrors the query_update LWT: propagation starts only if it is
+     * based on the last update time known to the owner, so overlapping forwards of the same counter state
+     * reach the LWT once. Query that is not tracked, e.g. after restart, is always started.
+     * @param query The query.
+     * @param lastUpdateTime Last topK update time the counted state was read with, null if never updated.
+     * @param currentTime Current time.
+     * @return Update time the caller must write and propagate with, null if the propagation is a duplicate.
+     */
+    public Date tryStartPropagation(String query, Date lastUpdateTime, Date currentTime) {
+        // New time always differs from the last one, so the same state can't be propagated twice.
+        var updateTime = lastUpdateTime != null && !currentTime.after(lastUpdateTime)
+                ? new Date(lastUpdateTime.getTime() + 1) : currentTime;
+        var started = new boolean[1];
+        updateTimes.asMap().compute(query, (key, previous) -> {
+            started[0] = previous == null || previous.equals(lastUpdateTime);
+            return started[0] ? updateTime : previous;
+        });
+        if (started[0]) {
+            owned.incrementAndGet();
+            return updateTime;
+        }
+        duplicatesSkipped.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Forget the update time of the propagation that lost the query_update LWT, so the next
+     * propagation based on the time in the storage starts.
+     * @param query The query.
+     * @param updateTime Update time returned by tryStartPropagation.
+     */
+    public void abortPropagation(String query, Date updateTime) {
+        updateTimes.asMap().remove(query, updateTime);
+    }
+
+    public void recordForwarded() {
+        forwarded.incrementAndGet();
+    }
+
+    public void recordForwardFailure() {
+        forwardFailures.incrementAndGet();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "queryOwnership";
+    }
+
+    @Override
+    public QueryOwnershipStats getStats() {
+        return QueryOwnershipStats.builder()
+                .self(self)
+                .members(members)
+                .ownedPropagations(owned.get())
+                .duplicatesSkipped(duplicatesSkipped.get())
+                .forwarded(forwarded.get())
+                .forwardFailures(forwardFailures.get())
+                .build();
+    }
+
+    private static List<String> normalize(Collection<String> members) {
+        return members.stream()
+                .map(member -> member == null ? "" : member.trim())
+                .filter(member -> !member.isEmpty())
+                .distinct()
+                .sorted()
+                .collect(Collectors.toList());
+    }
+
+    static long hash(String value) {
+        return Hashing.murmur3_128().hashString(value, StandardCharsets.UTF_8).asLong();
+    }
+}
@@ -0,0 +1,10 @@
+package org.bufistov.exception;
+
+/**
+ * Write failed before it reached the storage, so it's safe to retry even when it's not idempotent.
+ */
+public class WriteNotAppliedException extends DependencyException {
+    public WriteNotAppliedException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
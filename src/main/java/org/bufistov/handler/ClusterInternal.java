@@ -0,0 +1,90 @@
+package org.bufistov.handler;
+
+import org.bufistov.autocomplete.QueryHandler;
+import org.bufistov.cluster.QueryOwnership;
+import org.bufistov.model.QueryCount;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestHeader;
+import org.springframework.web.bind.annotation.ResponseStatus;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.List;
+
+/**
+ * Endpoints used between webservers in the query ownership mode. Every request must carry
+ * the cluster secret shared by the members in the X-Cluster-Secret header.
+ */
+@RestController
+@ConditionalOnProperty(value = "org.bufistov.cluster.enabled", havingValue = "true")
+public class ClusterInternal {
+
+    public static final String SECRET_HEADER = "X-Cluster-Secret";
+
+    @Autowired
+    private QueryHandler queryHandler;
+
+    @Autowired
+    private QueryOwnership queryOwnership;
+
+    private final byte[] secret;
+
+    public ClusterInternal(QueryHandler queryHandler, QueryOwnership queryOwnership,
+                           @Value("${org.bufistov.cluster.secret}") String secret) {
+        if (secret == null || secret.isEmpty()) {
+            throw new IllegalArgumentException("org.bufistov.cluster.secret must be set in the cluster mode");
+        }
+        this.queryHandler = queryHandler;
+        this.queryOwnership = queryOwnership;
+        this.secret = secret.getBytes(StandardCharsets.UTF_8);
+    }
+
+    @PostMapping(value = "/internal/propagate", consumes = {MediaType.APPLICATION_JSON_VALUE})
+    public void propagate(@RequestHeader(value = SECRET_HEADER, required = false) String requestSecret,
+                          @RequestBody QueryCount queryCount) {
+        authenticate(requestSecret);
+        queryHandler.onForwardedQuery(queryCount);
+    }
+
+    @GetMapping(value = "/internal/members", produces = {MediaType.APPLICATION_JSON_VALUE})
+    public List<String> members(@RequestHeader(value = SECRET_HEADER, required = false) String requestSecret) {
+        authenticate(requestSecret);
+        return queryOwnership.getMembers();
+    }
+
+    /**
+     * Replace member list, every member must receive the same list to agree on the owners.
+     * Members must be among the configured seeds.
+     */
+    @PutMapping(value = "/internal/members", consumes = {MediaType.APPLICATION_JSON_VALUE})
+    public void setMembers(@RequestHeader(value = SECRET_HEADER, required = false) String requestSecret,
+                           @RequestBody List<String> members) {
+        authenticate(requestSecret);
+        queryOwnership.setMembers(members);
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String badRequest(IllegalArgumentException exception) {
+        return exception.getMessage();
+    }
+
+    private void authenticate(String requestSecret) {
+        // Constant time comparison, the response time does not tell how much of the secret matched.
+        if (requestSecret == null
+                || !MessageDigest.isEqual(secret, requestSecret.getBytes(StandardCharsets.UTF_8))) {
+            throw new ResponseStatusException(HttpStatus.UNAUTHORIZED, "Missing or wrong " + SECRET_HEADER);
+        }
+    }
+}
@@ -1,26 +1,94 @@
 package org.bufistov.handler;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import lombok.AllArgsConstructor;
+import com.google.common.hash.Hashing;
+import lombok.Setter;
 import org.bufistov.autocomplete.QueryHandler;
 import org.bufistov.model.TopKQueries;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
 
-@AllArgsConstructor
 @RestController
 public class QueryComplete {
 
     @Autowired
     private QueryHandler queryHandler;
 
+    /**
+     * Max age of /queries responses in client and intermediate caches.
+     */
+    @Value("${org.bufistov.autocomplete.queries_max_age_seconds:0}")
+    @Setter
+    private long maxAgeSeconds;
+
+    /**
+     * Max number of queries in one /add_queries request, larger batches are rejected with 400.
+     */
+    @Value("${org.bufistov.autocomplete.max_add_queries_batch:1000}")
+    @Setter
+    private int maxAddQueriesBatch;
+
+    public QueryComplete(QueryHandler queryHandler) {
+        this.queryHandler = queryHandler;
+    }
+
+    /**
+     * Queries of the prefix with ETag derived from the prefix item version. If-None-Match is checked
+     * against the version alone, so unchanged prefixes are answered with 304 without reading the queries.
+     */
     @GetMapping(value = "/queries", produces = {MediaType.APPLICATION_JSON_VALUE})
+    @CrossOrigin(originPatterns = {"*"}, exposedHeaders = {HttpHeaders.ETAG, StalenessHeaderAdvice.STALENESS_HEADER})
+    public CompletableFuture<ResponseEntity<TopKQueries>> queries(
+            @RequestParam("prefix") String prefix,
+            @RequestHeader(value = HttpHeaders.IF_NONE_MATCH, required = false) String ifNoneMatch) {
+        if (ifNoneMatch == null) {
+            return queryHandler.getQueriesAsync(prefix)
+                    .thenApply(queries -> withETag(prefix, queries))
+                    .toCompletableFuture();
+        }
+        return queryHandler.getQueriesVersionAsync(prefix).thenCompose(version -> {
+            String etag = etag(prefix, version);
+            if (etagMatches(ifNoneMatch, etag)) {
+                return CompletableFuture.completedFuture(ResponseEntity.status(HttpStatus.NOT_MODIFIED)
+                        .eTag(etag)
+                        .cacheControl(cacheControl())
+                        .<TopKQueries>build());
+            }
+            return queryHandler.getQueriesAsync(prefix).thenApply(queries -> withETag(prefix, queries));
+        }).toCompletableFuture();
+    }
+
+    @GetMapping(value = "/queries", params = "lookahead", produces = {MediaType.APPLICATION_JSON_VALUE})
+    @CrossOrigin(originPatterns = {"*"}, exposedHeaders = {StalenessHeaderAdvice.STALENESS_HEADER})
+    public CompletableFuture<TopKQueries> queriesWithLookahead(@RequestParam("prefix") String prefix,
+                                                               @RequestParam("lookahead") int lookahead) {
+        return queryHandler.getQueriesAsync(prefix, lookahead).toCompletableFuture();
+    }
+
+    @GetMapping(value = "/queries/batch", produces = {MediaType.APPLICATION_JSON_VALUE})
     @CrossOrigin(originPatterns = {"*"})
-    public TopKQueries queries(@RequestParam("prefix") String prefix) {
-        return queryHandler.getQueries(prefix);
+    public CompletableFuture<Map<String, TopKQueries>> queriesBatch(@RequestParam("prefixes") List<String> prefixes) {
+        return queryHandler.getQueriesBatchAsync(prefixes).toCompletableFuture();
+    }
+
+    @PostMapping(value = "/queries/batch", consumes = {MediaType.APPLICATION_JSON_VALUE},
+            produces = {MediaType.APPLICATION_JSON_VALUE})
+    @CrossOrigin(originPatterns = {"*"})
+    public CompletableFuture<Map<String, TopKQueries>> queriesBatchPost(@RequestBody List<String> prefixes) {
+        return queryHandler.getQueriesBatchAsync(prefixes).toCompletableFuture();
     }
 
     @PostMapping(value = "/add_query", consumes = {MediaType.TEXT_PLAIN_VALUE})
@@ -28,4 +96,69 @@ public class QueryComplete {
     public void addQuery(@RequestBody String query) {
         queryHandler.addQuery(query);
     }
+
+    @PostMapping(value = "/add_queries", consumes = {MediaType.TEXT_PLAIN_VALUE})
+    @CrossOrigin(originPatterns = {"*"})
+    public void addQueries(@RequestBody String queries) {
+        var batch = queries.lines()
+                .filter(query -> !query.isEmpty())
+                .collect(Collectors.toList());
+        checkBatchSize(batch);
+        queryHandler.addQueries(batch);
+    }
+
+    @PostMapping(value = "/add_queries", consumes = {MediaType.APPLICATION_JSON_VALUE})
+    @CrossOrigin(originPatterns = {"*"})
+    public void addQueries(@RequestBody List<String> queries) {
+        checkBatchSize(queries);
+        if (queries.stream().anyMatch(query -> query == null || query.isEmpty())) {
+            throw new IllegalArgumentException("Queries must not be null or empty");
+        }
+        queryHandler.addQueries(queries);
+    }
+
+    @ExceptionHandler(IllegalArgumentException.class)
+    @ResponseStatus(HttpStatus.BAD_REQUEST)
+    public String badRequest(IllegalArgumentException exception) {
+        return exception.getMessage();
+    }
+
+    static String etag(String prefix, Long version) {
+        return String.format("\"%s-%d\"", Hashing.murmur3_32_fixed().hashString(prefix, StandardCharsets.UTF_8),
+                version == null ? 0 : version);
+    }
+
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        for (String candidate : ifNoneMatch.split(",")) {
+            candidate = candidate.trim();
+            if (candidate.startsWith("W/")) {
+                candidate = candidate.substring(2);
+            }
+            if (candidate.equals("*") || candidate.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void checkBatchSize(List<String> queries) {
+        if (queries.isEmpty()) {
+            throw new IllegalArgumentException("Queries must not be empty");
+        }
+        if (queries.size() > maxAddQueriesBatch) {
+            throw new IllegalArgumentException(String.format("At most %d queries are allowed in a batch, got %d",
+                    maxAddQueriesBatch, queries.size()));
+        }
+    }
+
+    private ResponseEntity<TopKQueries> withETag(String prefix, TopKQueries queries) {
+        return ResponseEntity.ok()
+                .eTag(etag(prefix, queries.getVersion()))
+                .cacheControl(cacheControl())
+                .body(queries);
+    }
+
+    private CacheControl cacheControl() {
+        return CacheControl.maxAge(maxAgeSeconds, TimeUnit.SECONDS);
+    }
 }
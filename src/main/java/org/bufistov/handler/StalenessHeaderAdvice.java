@@ -0,0 +1,34 @@
+package org.bufistov.handler;
+
+import org.bufistov.model.TopKQueries;
+import org.springframework.core.MethodParameter;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.http.server.ServerHttpResponse;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.servlet.mvc.method.annotation.ResponseBodyAdvice;
+
+/**
+ * Reports age of the queries served from the last known good copy in the X-Stale-Millis header.
+ */
+@ControllerAdvice
+public class StalenessHeaderAdvice implements ResponseBodyAdvice<Object> {
+
+    public static final String STALENESS_HEADER = "X-Stale-Millis";
+
+    @Override
+    public boolean supports(MethodParameter returnType, Class<? extends HttpMessageConverter<?>> converterType) {
+        return true;
+    }
+
+    @Override
+    public Object beforeBodyWrite(Object body, MethodParameter returnType, MediaType selectedContentType,
+                                  Class<? extends HttpMessageConverter<?>> selectedConverterType,
+                                  ServerHttpRequest request, ServerHttpResponse response) {
+        if (body instanceof TopKQueries && ((TopKQueries) body).getStalenessMillis() != null) {
+            response.getHeaders().set(STALENESS_HEADER, ((TopKQueries) body).getStalenessMillis().toString());
+        }
+        return body;
+    }
+}
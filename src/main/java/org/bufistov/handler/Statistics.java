@@ -0,0 +1,29 @@
+package org.bufistov.handler;
+
+import lombok.AllArgsConstructor;
+import org.bufistov.stats.StatsSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+@AllArgsConstructor
+@RestController
+public class Statistics {
+
+    @Autowired
+    private List<StatsSource> statsSources;
+
+    @GetMapping(value = "/stats", produces = {MediaType.APPLICATION_JSON_VALUE})
+    @CrossOrigin(originPatterns = {"*"})
+    public Map<String, Object> stats() {
+        var result = new TreeMap<String, Object>();
+        statsSources.forEach(source -> result.put(source.getStatsName(), source.getStats()));
+        return result;
+    }
+}
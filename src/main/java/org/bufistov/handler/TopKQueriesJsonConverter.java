@@ -0,0 +1,123 @@
+package org.bufistov.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import lombok.AllArgsConstructor;
+import org.bufistov.model.TopKQueries;
+import org.bufistov.model.TopKQueriesJsonCacheStats;
+import org.bufistov.stats.StatsSource;
+import org.springframework.http.HttpInputMessage;
+import org.springframework.http.HttpOutputMessage;
+import org.springframework.http.MediaType;
+import org.springframework.http.converter.AbstractHttpMessageConverter;
+import org.springframework.http.converter.HttpMessageNotReadableException;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes GET /queries responses from cached UTF-8 JSON bytes. The bytes are keyed by prefix and
+ * version of the prefix item, so they stay valid until the prefix is updated. Concurrent misses
+ * of the same prefix encode the response once. Cached bytes are written to the response stream as is.
+ */
+public class TopKQueriesJsonConverter extends AbstractHttpMessageConverter<TopKQueries> implements StatsSource {
+
+    private static final int ENTRY_OVERHEAD_BYTES = 64;
+
+    @AllArgsConstructor
+    static class Entry {
+        final Long version;
+        final byte[] json;
+    }
+
+    private final ObjectMapper objectMapper;
+
+    private final Cache<String, Entry> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong encodes = new AtomicLong();
+
+    private final AtomicLong uncached = new AtomicLong();
+
+    public TopKQueriesJsonConverter(ObjectMapper objectMapper, long maxWeightBytes) {
+        super(MediaType.APPLICATION_JSON);
+        this.objectMapper = objectMapper;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeightBytes)
+                .weigher((String prefix, Entry entry) -> ENTRY_OVERHEAD_BYTES + 2 * prefix.length() + entry.json.length)
+                .build();
+    }
+
+    /**
+     * @return JSON encoding of the queries, cached if the queries carry their prefix.
+     */
+    public byte[] encode(TopKQueries queries) {
+        String prefix = queries.getPrefix();
+        if (prefix == null) {
+            uncached.incrementAndGet();
+            return write(queries);
+        }
+        Entry entry = cache.getIfPresent(prefix);
+        if (entry != null && Objects.equals(entry.version, queries.getVersion())) {
+            hits.incrementAndGet();
+            return entry.json;
+        }
+        return cache.asMap().compute(prefix, (key, current) -> {
+            if (current != null && Objects.equals(current.version, queries.getVersion())) {
+                hits.incrementAndGet();
+                return current;
+            }
+            encodes.incrementAndGet();
+            return new Entry(queries.getVersion(), write(queries));
+        }).json;
+    }
+
+    @Override
+    protected boolean supports(Class<?> clazz) {
+        return TopKQueries.class.equals(clazz);
+    }
+
+    @Override
+    protected boolean canRead(MediaType mediaType) {
+        return false;
+    }
+
+    @Override
+    protected TopKQueries readInternal(Class<? extends TopKQueries> clazz, HttpInputMessage inputMessage) {
+        throw new HttpMessageNotReadableException("TopKQueries are write only", inputMessage);
+    }
+
+    @Override
+    protected void writeInternal(TopKQueries queries, HttpOutputMessage outputMessage) throws IOException {
+        byte[] json = encode(queries);
+        outputMessage.getHeaders().setContentLength(json.length);
+        outputMessage.getBody().write(json);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "topKQueriesJsonCache";
+    }
+
+    @Override
+    public TopKQueriesJsonCacheStats getStats() {
+        return TopKQueriesJsonCacheStats.builder()
+                .entries(cache.size())
+                .hits(hits.get())
+                .encodes(encodes.get())
+                .uncached(uncached.get())
+                .build();
+    }
+
+    private byte[] write(TopKQueries queries) {
+        try {
+            return objectMapper.writeValueAsBytes(queries);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+}
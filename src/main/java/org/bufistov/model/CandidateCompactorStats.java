@@ -0,0 +1,19 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CandidateCompactorStats {
+    private int pendingPrefixes;
+    private long scheduled; // prefixes scheduled for compaction
+    private long compactions;
+    private long prunedCandidates;
+    private long compactionErrors;
+    private long lastCompactionMillis;
+}
@@ -0,0 +1,21 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CounterBufferStats {
+    private int bufferedKeys;
+    private long increments; // increments added into the buffer
+    private long storageWrites; // counter updates written into the storage
+    private long writeThroughs; // increments written directly because the buffer was full
+    private long droppedIncrements; // increments dropped because the buffer was full and the writes saturated
+    private long flushErrors;
+    private long ambiguousErrors; // failed increments that might be applied, they are not retried
+    private long lastFlushMillis;
+}
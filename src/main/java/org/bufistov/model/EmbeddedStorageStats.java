@@ -0,0 +1,23 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class EmbeddedStorageStats {
+    private String fsyncPolicy;
+    private long logSegment;
+    private long logAppends;
+    private long logBytes;
+    private long fsyncs;
+    private long snapshots;
+    private long snapshotErrors;
+    private long lastSnapshotMillis;
+    private long recoveredRecords;
+    private long recoveryMillis;
+}
@@ -0,0 +1,19 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class HotPrefixesStats {
+    private int shards;
+    private int hotPrefixes;
+    private int configured; // prefixes configured as hot
+    private long autoPromoted; // prefixes promoted because of conflicts
+    private long shardedUpdates; // prefix updates written into a shard
+    private long mergedReads; // reads that merged the shards of a prefix
+}
@@ -0,0 +1,25 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PrefixAggregatorStats {
+    private int depth; // prefixes shorter than the depth are aggregated
+    private long intervalMillis;
+    private int dirtyPrefixes;
+    private long cutPropagations; // query updates that stopped at the depth
+    private long runs;
+    private long aggregatedPrefixes;
+    private long childReads;
+    private long writes; // aggregations that changed the prefix topK
+    private long conflicts;
+    private long errors;
+    private long lastRunMillis;
+    private long maxRunMillis;
+}
@@ -5,6 +5,7 @@ import lombok.Builder;
 import lombok.Data;
 import lombok.NoArgsConstructor;
 
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -17,5 +18,8 @@ public class PrefixTopK {
     private Map<String, Long> topK; // top K suffixes for given prefix
     private Set<SuffixCount> topK1;
     private List<SuffixCount> topK2;
+    private ByteBuffer topK3; // topK suffixes encoded by TopKBlob, null if absent
+    private List<SuffixCount> topK4; // clustered rows in descending count order, null if not read
+    private Map<String, Long> topK5; // max merged candidate suffixes, null if absent
     private Long version;
 }
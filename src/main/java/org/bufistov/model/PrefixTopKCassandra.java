@@ -9,6 +9,7 @@ import lombok.Data;
 import lombok.NoArgsConstructor;
 import org.bufistov.Constants;
 
+import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Set;
 
@@ -27,5 +28,8 @@ public class PrefixTopKCassandra {
     private Map<String, Long> topK; // top K suffixes for given prefix
     private Set<SuffixCount> topK1;
     private Set<TupleValue> topK2;
+    private ByteBuffer topK3;
+    private Set<TupleValue> topK5;
+    private Long topK5Version; // Version of the unconditional candidate writes, never written with LWTs
     private Long version; // Version for the atomic updates
 }
@@ -0,0 +1,18 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class PrefixTopKNearCacheStats {
+    private long entries;
+    private long lookups;
+    private long skippedReads; // lookups answered without reading the prefix
+    private long misses;
+    private long invalidations;
+}
@@ -0,0 +1,21 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class QueryOwnershipStats {
+    private String self;
+    private List<String> members;
+    private long ownedPropagations;
+    private long duplicatesSkipped; // propagations skipped because the same count was already propagated
+    private long forwarded;
+    private long forwardFailures;
+}
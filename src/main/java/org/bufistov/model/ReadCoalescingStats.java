@@ -0,0 +1,17 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ReadCoalescingStats {
+    private long requests;
+    private long storageReads;
+    private double coalescingRatio; // share of prefix reads served by a concurrent read
+    private int inFlight;
+}
@@ -0,0 +1,17 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class RetryBudgetStats {
+    private long availableRetries; // -1 if retries are not limited
+    private long firstAttempts;
+    private long retriesAllowed;
+    private long retriesDenied;
+}
@@ -0,0 +1,21 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class StaleWhileRevalidateStats {
+    private long entries;
+    private long freshReads;
+    private long staleReads;
+    private long slowReads; // storage reads slower than the latency budget
+    private long failedReads;
+    private long skippedReads; // storage reads skipped while the circuit breaker is open
+    private boolean circuitBreakerOpen;
+    private long circuitBreakerTrips;
+}
@@ -1,11 +1,15 @@
 package org.bufistov.model;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 
 import java.util.List;
+import java.util.Map;
 
 @Data
 @Builder
@@ -13,4 +17,28 @@ import java.util.List;
 @AllArgsConstructor
 public class TopKQueries {
     private List<SuffixCount> queries;
+
+    /**
+     * Queries of the most likely next character extensions of the prefix, present only if requested.
+     */
+    @JsonInclude(JsonInclude.Include.NON_NULL)
+    private Map<String, TopKQueries> lookahead;
+
+    /**
+     * Prefix and version of the prefix item the queries were built from, used to cache encoded responses.
+     */
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    private String prefix;
+
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    private Long version;
+
+    /**
+     * Age of the prefix item if it was served from the last known good copy, null if it is fresh.
+     */
+    @JsonIgnore
+    @EqualsAndHashCode.Exclude
+    private Long stalenessMillis;
 }
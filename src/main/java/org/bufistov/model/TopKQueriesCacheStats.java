@@ -0,0 +1,21 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TopKQueriesCacheStats {
+    private long entries;
+    private long hits;
+    private long misses;
+    private double hitRate;
+    private long evictions; // size and TTL evictions, invalidations are not included
+    private long invalidations;
+    private long loadErrors;
+    private double avgLoadMillis;
+}
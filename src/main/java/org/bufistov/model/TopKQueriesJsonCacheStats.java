@@ -0,0 +1,17 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TopKQueriesJsonCacheStats {
+    private long entries;
+    private long hits;
+    private long encodes; // cache misses and version changes
+    private long uncached; // responses without prefix, encoded on every request
+}
@@ -0,0 +1,17 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TopKRetrySchedulerStats {
+    private int pendingRetries;
+    private int maxPendingRetries;
+    private long scheduledRetries;
+    private long rejectedRetries; // retries given up because too many were pending
+}
@@ -0,0 +1,24 @@
+package org.bufistov.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class TopKUpdateExecutorStats {
+    private int queueDepth;
+    private int queueRemainingCapacity;
+    private int activeThreads;
+    private int poolSize;
+    private String rejectionPolicy;
+    private long submitted;
+    private long completed;
+    private long rejected;
+    private long lastLagMillis; // time between submission and start of the last update
+    private long maxLagMillis;
+    private long avgLagMillis;
+}
@@ -0,0 +1,17 @@
+package org.bufistov.stats;
+
+/**
+ * Component that exposes its runtime statistics on the /stats endpoint.
+ */
+public interface StatsSource {
+
+    /**
+     * @return Name of the statistics section, must be unique.
+     */
+    String getStatsName();
+
+    /**
+     * @return Current statistics snapshot, serialized to json as is.
+     */
+    Object getStats();
+}
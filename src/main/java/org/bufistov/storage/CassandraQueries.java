@@ -1,18 +1,22 @@
 package org.bufistov.storage;
 
 import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.core.Statement;
 import com.datastax.driver.core.TupleValue;
 import com.datastax.driver.mapping.annotations.Accessor;
 import com.datastax.driver.mapping.annotations.Param;
 import com.datastax.driver.mapping.annotations.Query;
 import org.bufistov.model.SuffixCount;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 import java.util.Map;
 import java.util.Set;
 
 import static org.bufistov.Constants.CASSANDRA_KEYSPACE;
 import static org.bufistov.Constants.PREFIX_TOPK;
+import static org.bufistov.Constants.PREFIX_TOPK_CLUSTERED;
 import static org.bufistov.Constants.QUERY_COUNT;
 import static org.bufistov.Constants.QUERY_UPDATE;
 
@@ -22,12 +26,21 @@ public interface CassandraQueries {
     @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + QUERY_COUNT + " SET count = count + :d, sinceLastUpdate = sinceLastUpdate+:d WHERE query=:q")
     void incrementCounter(@Param("d") long increment, @Param("q") String query);
 
+    @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + QUERY_COUNT + " SET count = count + :d, sinceLastUpdate = sinceLastUpdate+:d WHERE query=:q")
+    ResultSetFuture incrementCounterAsync(@Param("d") long increment, @Param("q") String query);
+
     @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + QUERY_COUNT + " SET sinceLastUpdate=sinceLastUpdate+:d WHERE query=:q")
     void updateTemporalCounter(@Param("d") long increment, @Param("q") String query);
 
+    @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + QUERY_COUNT + " SET sinceLastUpdate=sinceLastUpdate+:d WHERE query=:q")
+    ResultSetFuture updateTemporalCounterAsync(@Param("d") long increment, @Param("q") String query);
+
     @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + QUERY_UPDATE + " SET topkUpdate=:ct WHERE query=:q IF topkUpdate=:lut")
     ResultSet lockForTopKUpdate(@Param("q") String query, @Param("lut") Date lastUpdate, @Param("ct") Date currentTime);
 
+    @Query("SELECT version, topk5version FROM " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK + " WHERE prefix=:p")
+    ResultSetFuture getTopKVersionAsync(@Param("p") String prefix);
+
     @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK + " SET topK1=:t,version=:nv WHERE prefix=:p IF version=:v")
     ResultSet updateTopK1(@Param("p") String prefix, @Param("t") Set<SuffixCount> suffixCounts,
                           @Param("v") Long version, @Param("nv") Long newVersion);
@@ -45,5 +58,31 @@ public interface CassandraQueries {
                           @Param("ns")Set<TupleValue> suffixesToAdd,
                           @Param("v") Long version, @Param("nv") Long newVersion);
 
+    @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK + " USING TTL :ttl SET topk3=:t, version=:nv WHERE prefix=:p IF version=:v")
+    ResultSet updateTopK3(@Param("p") String prefix, @Param("t") ByteBuffer topK,
+                          @Param("v") Long version, @Param("nv") Long newVersion,
+                          @Param("ttl") Integer ttlSeconds);
+
+    @Query("SELECT count, suffix, version FROM " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK_CLUSTERED + " WHERE prefix=:p LIMIT :l")
+    ResultSetFuture getSuffixRowsAsync(@Param("p") String prefix, @Param("l") int limit);
+
+    @Query("SELECT version FROM " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK_CLUSTERED + " WHERE prefix=:p LIMIT 1")
+    ResultSetFuture getSuffixRowsVersionAsync(@Param("p") String prefix);
+
+    @Query("INSERT INTO " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK_CLUSTERED + " (prefix, count, suffix, version) VALUES (:p, :c, :s, :v) USING TTL :ttl")
+    Statement insertSuffixRow(@Param("p") String prefix, @Param("c") long count, @Param("s") String suffix,
+                              @Param("v") long version, @Param("ttl") Integer ttlSeconds);
+
+    @Query("DELETE FROM " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK_CLUSTERED + " WHERE prefix=:p AND count=:c AND suffix=:s")
+    Statement deleteSuffixRow(@Param("p") String prefix, @Param("c") long count, @Param("s") String suffix);
+
+    @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK + " USING TTL :ttl SET topk5 = topk5 - :kr, topk5 = topk5 + :ns, topk5version=:v WHERE prefix=:p")
+    Statement mergeCandidate(@Param("p") String prefix,
+                             @Param("kr") Set<TupleValue> candidatesToRemove,
+                             @Param("ns") Set<TupleValue> candidatesToAdd,
+                             @Param("v") long version,
+                             @Param("ttl") Integer ttlSeconds);
 
+    @Query("UPDATE " + CASSANDRA_KEYSPACE + "." + PREFIX_TOPK + " SET topk5 = topk5 - :kr WHERE prefix=:p")
+    Statement removeCandidates(@Param("p") String prefix, @Param("kr") Set<TupleValue> candidatesToRemove);
 }
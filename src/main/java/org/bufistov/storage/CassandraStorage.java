@@ -1,13 +1,28 @@
 package org.bufistov.storage;
 
+import com.datastax.driver.core.BatchStatement;
 import com.datastax.driver.core.CodecRegistry;
 import com.datastax.driver.core.DataType;
 import com.datastax.driver.core.ProtocolVersion;
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.Session;
 import com.datastax.driver.core.TupleType;
 import com.datastax.driver.core.TupleValue;
+import com.datastax.driver.core.exceptions.BusyPoolException;
+import com.datastax.driver.core.exceptions.NoHostAvailableException;
+import com.datastax.driver.core.exceptions.OverloadedException;
+import com.datastax.driver.core.exceptions.QueryValidationException;
+import com.datastax.driver.core.exceptions.UnavailableException;
 import com.datastax.driver.mapping.Mapper;
 import com.datastax.driver.mapping.MappingManager;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Uninterruptibles;
+import lombok.extern.log4j.Log4j2;
 import org.bufistov.exception.DependencyException;
+import org.bufistov.exception.WriteNotAppliedException;
 import org.bufistov.model.PrefixTopK;
 import org.bufistov.model.PrefixTopKCassandra;
 import org.bufistov.model.QueryCount;
@@ -15,13 +30,21 @@ import org.bufistov.model.QueryCountCassandra;
 import org.bufistov.model.QueryUpdateCassandra;
 import org.bufistov.model.SuffixCount;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Collectors;
 
+@Log4j2
 public class CassandraStorage implements Storage {
 
     static final TupleType SUFFIX_TUPLE_TYPE = TupleType.of(ProtocolVersion.V4, CodecRegistry.DEFAULT_INSTANCE,
@@ -32,49 +55,84 @@ public class CassandraStorage implements Storage {
 
     private final Mapper<QueryUpdateCassandra> queryUpdateMapper;
 
-    private final CassandraQueries cassandraQueries;
+    protected final CassandraQueries cassandraQueries;
+
+    private final Session session;
 
     private final Integer topKTtl;
 
+    private final AtomicLong lastUnconditionalVersion = new AtomicLong();
+
     public CassandraStorage(MappingManager manager, Integer topKTtl) {
         this.queryCounterMapper = manager.mapper(QueryCountCassandra.class);
         this.topKMapper = manager.mapper(PrefixTopKCassandra.class);
         this.queryUpdateMapper = manager.mapper(QueryUpdateCassandra.class);
         this.cassandraQueries = manager.createAccessor(CassandraQueries.class);
+        this.session = manager.getSession();
         this.topKTtl = topKTtl;
     }
 
     @Override
-    public QueryCount addQuery(String query) {
-        cassandraQueries.incrementCounter(1, query);
-        QueryCountCassandra result = queryCounterMapper.get(query);
-        if (result == null) {
-            throw new DependencyException("Cannot find query " + query, null);
-        }
-        var lastUpdate = queryUpdateMapper.get(query);
-        return QueryCount.builder()
-                .query(query)
-                .count(result.getCount())
-                .sinceLastUpdate(result.getSinceLastUpdate())
-                .lastUpdateTime(Optional.ofNullable(lastUpdate)
-                        .map(QueryUpdateCassandra::getTopkUpdate)
-                        .orElse(null))
-                .build();
+    public QueryCount addQuery(String query, long increment) {
+        cassandraQueries.incrementCounter(increment, query);
+        // Both reads are independent, so they are sent concurrently.
+        var counterFuture = queryCounterMapper.getAsync(query);
+        var lastUpdateFuture = queryUpdateMapper.getAsync(query);
+        return toQueryCount(query, join(counterFuture), join(lastUpdateFuture));
+    }
+
+    /**
+     * Counter increments are not idempotent, only the failures that happen before the coordinator
+     * accepts the increment are reported as not applied. Timeouts and failed reads are ambiguous.
+     */
+    @Override
+    public CompletionStage<QueryCount> addQueryAsync(String query, long increment) {
+        return toCompletableFuture(cassandraQueries.incrementCounterAsync(increment, query))
+                .exceptionally(throwable -> {
+                    if (isNotApplied(throwable)) {
+                        throw new WriteNotAppliedException("Counter increment of query " + query + " failed",
+                                throwable);
+                    }
+                    throw new DependencyException("Counter increment of query " + query + " might be applied",
+                            throwable);
+                })
+                .thenCompose(ignored -> toCompletableFuture(queryCounterMapper.getAsync(query))
+                        .thenCombine(toCompletableFuture(queryUpdateMapper.getAsync(query)),
+                                (counter, lastUpdate) -> toQueryCount(query, counter, lastUpdate)));
     }
 
     @Override
     public PrefixTopK getTopKQueries(String prefix) {
-        return Optional.ofNullable(topKMapper.get(prefix))
-                .map(item -> PrefixTopK.builder()
-                        .topK(Optional.ofNullable(item.getTopK()).orElse(Map.of()))
-                        .topK1(Optional.ofNullable(item.getTopK1()).orElse(Set.of()))
-                        .topK2(toSuffixCount(item.getTopK2()))
-                        .version(item.getVersion()).build())
-                .orElse(PrefixTopK.builder()
-                        .topK1(Set.of())
-                        .topK(Map.of())
-                        .topK2(List.of())
-                        .build());
+        return toPrefixTopK(topKMapper.get(prefix));
+    }
+
+    @Override
+    public CompletionStage<PrefixTopK> getTopKQueriesAsync(String prefix) {
+        return toCompletableFuture(Futures.transform(topKMapper.getAsync(prefix), this::toPrefixTopK,
+                MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public CompletionStage<Long> getTopKVersionAsync(String prefix) {
+        return toCompletableFuture(Futures.transform(cassandraQueries.getTopKVersionAsync(prefix), resultSet -> {
+            var row = resultSet.one();
+            if (row == null) {
+                return null;
+            }
+            if (!row.isNull("topk5version")) {
+                return row.getLong("topk5version");
+            }
+            return row.isNull("version") ? null : row.getLong("version");
+        }, MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public Map<String, PrefixTopK> getTopKQueries(Collection<String> prefixes) {
+        var futures = new HashMap<String, ListenableFuture<PrefixTopKCassandra>>();
+        prefixes.forEach(prefix -> futures.put(prefix, topKMapper.getAsync(prefix)));
+        var result = new HashMap<String, PrefixTopK>();
+        futures.forEach((prefix, future) -> result.put(prefix, toPrefixTopK(join(future))));
+        return result;
     }
 
     @Override
@@ -115,9 +173,84 @@ public class CassandraStorage implements Storage {
         return cassandraQueries.updateTopK2(prefix, toRemove, toAdd, version, getNewVersion(version)).wasApplied();
     }
 
+    @Override
+    public boolean updateTopK3Queries(String prefix, ByteBuffer topK, Long version) {
+        return cassandraQueries.updateTopK3(prefix, topK, version, getNewVersion(version), topKTtl).wasApplied();
+    }
+
+    /**
+     * Insert and delete go in one unlogged batch of the same partition, so they are applied atomically.
+     */
+    @Override
+    public void mergeSuffixRow(String prefix, String suffix, long count, Long replacedCount) {
+        long version = nextUnconditionalVersion();
+        var batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        batch.add(cassandraQueries.insertSuffixRow(prefix, count, suffix, version, topKTtl));
+        if (replacedCount != null) {
+            batch.add(cassandraQueries.deleteSuffixRow(prefix, replacedCount, suffix));
+        }
+        session.execute(batch);
+    }
+
+    @Override
+    public void removeSuffixRows(String prefix, Collection<SuffixCount> rows) {
+        if (rows.isEmpty()) {
+            return;
+        }
+        var batch = new BatchStatement(BatchStatement.Type.UNLOGGED);
+        rows.forEach(row -> batch.add(cassandraQueries.deleteSuffixRow(prefix, row.getCount(), row.getSuffix())));
+        session.execute(batch);
+    }
+
+    /**
+     * Every count of a candidate is its own element of the set, the max count of the suffix is resolved
+     * on read, so the result does not depend on the order the writes arrive in and the cells keep the
+     * regular write timestamps. The element of the replaced count is removed in the same statement,
+     * lower counts left by concurrent writers are skipped on read and expire with the TTL.
+     * The version goes to the own column of the candidates, the version column is written only by the LWTs.
+     */
+    @Override
+    public void mergeCandidate(String prefix, String suffix, long count, Long replacedCount) {
+        var candidate = SuffixCount.builder().suffix(suffix).count(count).build();
+        var replaced = replacedCount == null ? Set.<TupleValue>of()
+                : Set.of(toTuple(SuffixCount.builder().suffix(suffix).count(replacedCount).build()));
+        session.execute(cassandraQueries.mergeCandidate(prefix, replaced, Set.of(toTuple(candidate)),
+                nextUnconditionalVersion(), topKTtl));
+    }
+
+    /**
+     * Only the elements of the given counts are removed, a grown count is another element and stays.
+     */
+    @Override
+    public void removeCandidates(String prefix, Map<String, Long> candidates) {
+        if (candidates.isEmpty()) {
+            return;
+        }
+        var toRemove = candidates.entrySet().stream()
+                .map(candidate -> toTuple(SuffixCount.builder()
+                        .suffix(candidate.getKey())
+                        .count(candidate.getValue())
+                        .build()))
+                .collect(Collectors.toSet());
+        session.execute(cassandraQueries.removeCandidates(prefix, toRemove));
+    }
+
+    /**
+     * The reset is not awaited, failure only delays the next topK update of the query.
+     */
     @Override
     public void updateTemporalCounter(String query, Long increment) {
-        cassandraQueries.updateTemporalCounter(increment, query);
+        Futures.addCallback(cassandraQueries.updateTemporalCounterAsync(increment, query),
+                new FutureCallback<>() {
+                    @Override
+                    public void onSuccess(ResultSet result) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable throwable) {
+                        log.error("Failed to update temporal counter for query {}", query, throwable);
+                    }
+                }, MoreExecutors.directExecutor());
     }
 
     @Override
@@ -125,6 +258,81 @@ public class CassandraStorage implements Storage {
         return cassandraQueries.lockForTopKUpdate(query, lastUpdateTime, currentTime).wasApplied();
     }
 
+    private static QueryCount toQueryCount(String query, QueryCountCassandra counter,
+                                           QueryUpdateCassandra lastUpdate) {
+        if (counter == null) {
+            throw new DependencyException("Cannot find query " + query, null);
+        }
+        return QueryCount.builder()
+                .query(query)
+                .count(counter.getCount())
+                .sinceLastUpdate(counter.getSinceLastUpdate())
+                .lastUpdateTime(Optional.ofNullable(lastUpdate)
+                        .map(QueryUpdateCassandra::getTopkUpdate)
+                        .orElse(null))
+                .build();
+    }
+
+    private static boolean isNotApplied(Throwable throwable) {
+        return throwable instanceof NoHostAvailableException
+                || throwable instanceof UnavailableException
+                || throwable instanceof OverloadedException
+                || throwable instanceof BusyPoolException
+                || throwable instanceof QueryValidationException;
+    }
+
+    PrefixTopK toPrefixTopK(PrefixTopKCassandra item) {
+        return Optional.ofNullable(item)
+                .map(row -> PrefixTopK.builder()
+                        .topK(Optional.ofNullable(row.getTopK()).orElse(Map.of()))
+                        .topK1(Optional.ofNullable(row.getTopK1()).orElse(Set.of()))
+                        .topK2(toSuffixCount(row.getTopK2()))
+                        .topK3(row.getTopK3())
+                        .topK5(toCandidates(row.getTopK5()))
+                        .version(row.getTopK5Version() != null ? row.getTopK5Version() : row.getVersion())
+                        .build())
+                .orElse(PrefixTopK.builder()
+                        .topK1(Set.of())
+                        .topK(Map.of())
+                        .topK2(List.of())
+                        .build());
+    }
+
+    static <T> CompletableFuture<T> toCompletableFuture(ListenableFuture<T> future) {
+        var result = new CompletableFuture<T>();
+        Futures.addCallback(future, new FutureCallback<T>() {
+            @Override
+            public void onSuccess(T value) {
+                result.complete(value);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                result.completeExceptionally(throwable);
+            }
+        }, MoreExecutors.directExecutor());
+        return result;
+    }
+
+    static <T> T join(ListenableFuture<T> future) {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException exception) {
+            if (exception.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exception.getCause();
+            }
+            throw new DependencyException("Cassandra request failed", exception.getCause());
+        }
+    }
+
+    /**
+     * Version of unconditional writes, a client timestamp in microseconds unique within the process.
+     */
+    private long nextUnconditionalVersion() {
+        return lastUnconditionalVersion.accumulateAndGet(System.currentTimeMillis() * 1000,
+                (last, now) -> Math.max(last + 1, now));
+    }
+
     private Long getNewVersion(Long version) {
         return version == null ? 1 : version + 1;
     }
@@ -142,6 +350,18 @@ public class CassandraStorage implements Storage {
         return tuples.stream().map(this::fromTuple).collect(Collectors.toList());
     }
 
+    /**
+     * Max count of every candidate suffix.
+     */
+    static Map<String, Long> toCandidates(Set<TupleValue> tuples) {
+        if (tuples == null) {
+            return null;
+        }
+        var result = new HashMap<String, Long>();
+        tuples.forEach(tuple -> result.merge(tuple.getString(1), tuple.getLong(0), Math::max));
+        return result;
+    }
+
     public static TupleValue toTuple(SuffixCount suffixCount) {
         return SUFFIX_TUPLE_TYPE.newValue(suffixCount.getCount(), suffixCount.getSuffix());
     }
@@ -0,0 +1,89 @@
+package org.bufistov.storage;
+
+import com.datastax.driver.core.ResultSet;
+import com.datastax.driver.core.ResultSetFuture;
+import com.datastax.driver.mapping.MappingManager;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.MoreExecutors;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.SuffixCount;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Cassandra storage that reads topK suffixes from the clustered rows table instead of the prefix_topk
+ * collections. Rows are read in clustering order, count descending, with LIMIT, so the read cost does not
+ * depend on the number of rows that fell out of the topK. Version of the item is the static version column.
+ */
+public class ClusteredCassandraStorage extends CassandraStorage {
+
+    private final int readLimit;
+
+    /**
+     * @param readLimit Max number of rows read per prefix. Should be above the largest topK, the one of
+     *                  the capped prefixes, stale rows of concurrently updated suffixes are read as well.
+     */
+    public ClusteredCassandraStorage(MappingManager manager, Integer topKTtl, int readLimit) {
+        super(manager, topKTtl);
+        this.readLimit = readLimit;
+    }
+
+    @Override
+    public PrefixTopK getTopKQueries(String prefix) {
+        return fromSuffixRows(join(cassandraQueries.getSuffixRowsAsync(prefix, readLimit)));
+    }
+
+    @Override
+    public CompletionStage<PrefixTopK> getTopKQueriesAsync(String prefix) {
+        return toCompletableFuture(Futures.transform(cassandraQueries.getSuffixRowsAsync(prefix, readLimit),
+                this::fromSuffixRows, MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public CompletionStage<Long> getTopKVersionAsync(String prefix) {
+        return toCompletableFuture(Futures.transform(cassandraQueries.getSuffixRowsVersionAsync(prefix),
+                resultSet -> {
+                    var row = resultSet.one();
+                    return row == null || row.isNull("version") ? null : row.getLong("version");
+                }, MoreExecutors.directExecutor()));
+    }
+
+    @Override
+    public Map<String, PrefixTopK> getTopKQueries(Collection<String> prefixes) {
+        var futures = new HashMap<String, ResultSetFuture>();
+        prefixes.forEach(prefix -> futures.put(prefix, cassandraQueries.getSuffixRowsAsync(prefix, readLimit)));
+        var result = new HashMap<String, PrefixTopK>();
+        futures.forEach((prefix, future) -> result.put(prefix, fromSuffixRows(join(future))));
+        return result;
+    }
+
+    PrefixTopK fromSuffixRows(ResultSet resultSet) {
+        Long version = null;
+        List<SuffixCount> rows = new ArrayList<>(readLimit);
+        for (var row : resultSet) {
+            if (!row.isNull("version")) {
+                version = row.getLong("version");
+            }
+            // Partition with the static column only has a row without clustering columns.
+            if (!row.isNull("suffix")) {
+                rows.add(SuffixCount.builder()
+                        .count(row.getLong("count"))
+                        .suffix(row.getString("suffix"))
+                        .build());
+            }
+        }
+        return PrefixTopK.builder()
+                .topK(Map.of())
+                .topK1(Set.of())
+                .topK2(List.of())
+                .topK4(rows)
+                .version(version)
+                .build();
+    }
+}
@@ -0,0 +1,143 @@
+package org.bufistov.storage;
+
+import com.datastax.driver.core.TupleValue;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.QueryCount;
+import org.bufistov.model.ReadCoalescingStats;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.stats.StatsSource;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * Storage decorator that coalesces concurrent reads of the same prefix item into one storage read.
+ * Serves both GET /queries and topK updates. A writer joining a read that started before a
+ * concurrent write gets the old version and retries, the same as if it had read it itself.
+ */
+public class CoalescingStorage implements Storage, StatsSource {
+
+    private final Storage delegate;
+
+    private final SingleFlight<String, PrefixTopK> topKReads = new SingleFlight<>();
+
+    public CoalescingStorage(Storage delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public QueryCount addQuery(String query, long increment) {
+        return delegate.addQuery(query, increment);
+    }
+
+    @Override
+    public CompletionStage<QueryCount> addQueryAsync(String query, long increment) {
+        return delegate.addQueryAsync(query, increment);
+    }
+
+    @Override
+    public PrefixTopK getTopKQueries(String prefix) {
+        return topKReads.get(prefix, () -> delegate.getTopKQueries(prefix));
+    }
+
+    @Override
+    public CompletionStage<PrefixTopK> getTopKQueriesAsync(String prefix) {
+        return topKReads.getAsync(prefix, () -> delegate.getTopKQueriesAsync(prefix));
+    }
+
+    @Override
+    public CompletionStage<Long> getTopKVersionAsync(String prefix) {
+        return delegate.getTopKVersionAsync(prefix);
+    }
+
+    @Override
+    public Map<String, PrefixTopK> getTopKQueries(Collection<String> prefixes) {
+        return topKReads.getAll(prefixes, delegate::getTopKQueries);
+    }
+
+    @Override
+    public boolean updateTopK1Queries(String prefix, Set<SuffixCount> newTopK, Long version) {
+        return delegate.updateTopK1Queries(prefix, newTopK, version);
+    }
+
+    @Override
+    public boolean addSuffixes(String prefix, Map<String, Long> suffixes, Long version) {
+        return delegate.addSuffixes(prefix, suffixes, version);
+    }
+
+    @Override
+    public boolean removeSuffixes(String prefix, Set<String> suffixes, Long version) {
+        return delegate.removeSuffixes(prefix, suffixes, version);
+    }
+
+    @Override
+    public boolean updateTopKQueries(String prefix, Set<String> toRemove, Map<String, Long> toAdd, Long version) {
+        return delegate.updateTopKQueries(prefix, toRemove, toAdd, version);
+    }
+
+    @Override
+    public boolean replaceSuffixCounter(String prefix, String suffix, Long newValue, Long version) {
+        return delegate.replaceSuffixCounter(prefix, suffix, newValue, version);
+    }
+
+    @Override
+    public boolean updateTopK2Queries(String prefix, Set<TupleValue> toRemove, Set<TupleValue> toAdd, Long version) {
+        return delegate.updateTopK2Queries(prefix, toRemove, toAdd, version);
+    }
+
+    @Override
+    public boolean updateTopK3Queries(String prefix, ByteBuffer topK, Long version) {
+        return delegate.updateTopK3Queries(prefix, topK, version);
+    }
+
+    @Override
+    public void mergeSuffixRow(String prefix, String suffix, long count, Long replacedCount) {
+        delegate.mergeSuffixRow(prefix, suffix, count, replacedCount);
+    }
+
+    @Override
+    public void removeSuffixRows(String prefix, Collection<SuffixCount> rows) {
+        delegate.removeSuffixRows(prefix, rows);
+    }
+
+    @Override
+    public void mergeCandidate(String prefix, String suffix, long count, Long replacedCount) {
+        delegate.mergeCandidate(prefix, suffix, count, replacedCount);
+    }
+
+    @Override
+    public void removeCandidates(String prefix, Map<String, Long> candidates) {
+        delegate.removeCandidates(prefix, candidates);
+    }
+
+    @Override
+    public boolean lockQueryForTopKUpdate(String query, Date lastUpdateTime, Date currentTime) {
+        return delegate.lockQueryForTopKUpdate(query, lastUpdateTime, currentTime);
+    }
+
+    @Override
+    public void updateTemporalCounter(String query, Long increment) {
+        delegate.updateTemporalCounter(query, increment);
+    }
+
+    @Override
+    public String getStatsName() {
+        return "readCoalescing";
+    }
+
+    @Override
+    public ReadCoalescingStats getStats() {
+        long requests = topKReads.getRequests();
+        long loads = topKReads.getLoads();
+        return ReadCoalescingStats.builder()
+                .requests(requests)
+                .storageReads(loads)
+                .coalescingRatio(requests == 0 ? 0 : 1.0 - (double) loads / requests)
+                .inFlight(topKReads.getInFlight())
+                .build();
+    }
+}
@@ -0,0 +1,213 @@
+package org.bufistov.storage;
+
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.SuffixCount;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Binary records of the embedded storage. Every record is the full state of one key after a mutation,
+ * so applying a record is idempotent and records of the same key only need to be applied in log order.
+ */
+final class EmbeddedRecords {
+
+    static final byte COUNTER = 1;
+
+    static final byte TOPK_UPDATE_TIME = 2;
+
+    static final byte PREFIX = 3;
+
+    private EmbeddedRecords() {
+    }
+
+    static byte[] counter(String query, long count, long sinceLastUpdate) {
+        return encode(out -> {
+            out.writeByte(COUNTER);
+            out.writeUTF(query);
+            out.writeLong(count);
+            out.writeLong(sinceLastUpdate);
+        });
+    }
+
+    static byte[] topKUpdateTime(String query, Date time) {
+        return encode(out -> {
+            out.writeByte(TOPK_UPDATE_TIME);
+            out.writeUTF(query);
+            out.writeLong(time.getTime());
+        });
+    }
+
+    static byte[] prefix(String prefix, PrefixTopK item) {
+        return encode(out -> {
+            out.writeByte(PREFIX);
+            out.writeUTF(prefix);
+            out.writeBoolean(item.getVersion() != null);
+            out.writeLong(item.getVersion() == null ? 0 : item.getVersion());
+            out.writeInt(item.getTopK().size());
+            for (var entry : item.getTopK().entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+            writeSuffixCounts(out, item.getTopK1());
+            writeSuffixCounts(out, item.getTopK2());
+            var topK3 = item.getTopK3();
+            out.writeInt(topK3 == null ? -1 : topK3.remaining());
+            if (topK3 != null) {
+                var bytes = new byte[topK3.remaining()];
+                topK3.duplicate().get(bytes);
+                out.write(bytes);
+            }
+            writeSuffixCounts(out, item.getTopK4() == null ? List.of() : item.getTopK4());
+            var topK5 = item.getTopK5() == null ? Map.<String, Long>of() : item.getTopK5();
+            out.writeInt(topK5.size());
+            for (var entry : topK5.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeLong(entry.getValue());
+            }
+        });
+    }
+
+    /**
+     * Apply the record to the storage state.
+     */
+    static void apply(byte[] record, InMemoryStorage state) {
+        try (var in = new DataInputStream(new ByteArrayInputStream(record))) {
+            byte type = in.readByte();
+            switch (type) {
+                case COUNTER:
+                    state.restoreCounter(in.readUTF(), in.readLong(), in.readLong());
+                    break;
+                case TOPK_UPDATE_TIME:
+                    state.restoreTopKUpdateTime(in.readUTF(), new Date(in.readLong()));
+                    break;
+                case PREFIX:
+                    String prefix = in.readUTF();
+                    boolean hasVersion = in.readBoolean();
+                    long version = in.readLong();
+                    int size = in.readInt();
+                    var topK = new HashMap<String, Long>(size);
+                    for (int i = 0; i < size; ++i) {
+                        topK.put(in.readUTF(), in.readLong());
+                    }
+                    var topK1 = readSuffixCounts(in);
+                    var topK2 = readSuffixCounts(in);
+                    int topK3Length = in.readInt();
+                    ByteBuffer topK3 = null;
+                    if (topK3Length >= 0) {
+                        var bytes = new byte[topK3Length];
+                        in.readFully(bytes);
+                        topK3 = ByteBuffer.wrap(bytes).asReadOnlyBuffer();
+                    }
+                    var topK4 = readSuffixCounts(in);
+                    int topK5Size = in.readInt();
+                    var topK5 = new HashMap<String, Long>(topK5Size);
+                    for (int i = 0; i < topK5Size; ++i) {
+                        topK5.put(in.readUTF(), in.readLong());
+                    }
+                    state.restorePrefix(prefix, PrefixTopK.builder()
+                            .topK(topK)
+                            .topK1(new HashSet<>(topK1))
+                            .topK2(topK2)
+                            .topK3(topK3)
+                            .topK4(topK4)
+                            .topK5(topK5)
+                            .version(hasVersion ? version : null)
+                            .build());
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown record type: " + type);
+            }
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+    }
+
+    /**
+     * Write the record with its length and CRC32, the same framing as the log segments.
+     */
+    static void write(DataOutputStream out, byte[] record) throws IOException {
+        var crc = new CRC32();
+        crc.update(record);
+        out.writeInt(record.length);
+        out.writeInt((int) crc.getValue());
+        out.write(record);
+    }
+
+    /**
+     * Read records written by {@link #write} until the end of the stream.
+     * @return Number of records.
+     */
+    static long readAll(DataInputStream in, Consumer<byte[]> consumer) throws IOException {
+        long records = 0;
+        var crc = new CRC32();
+        while (true) {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException exception) {
+                return records;
+            }
+            int expectedCrc = in.readInt();
+            var record = new byte[length];
+            in.readFully(record);
+            crc.reset();
+            crc.update(record);
+            if ((int) crc.getValue() != expectedCrc) {
+                throw new IOException("Corrupted record " + records);
+            }
+            consumer.accept(record);
+            ++records;
+        }
+    }
+
+    private interface Writer {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private static byte[] encode(Writer writer) {
+        var bytes = new ByteArrayOutputStream();
+        try (var out = new DataOutputStream(bytes)) {
+            writer.write(out);
+        } catch (IOException exception) {
+            throw new UncheckedIOException(exception);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static void writeSuffixCounts(DataOutputStream out, Collection<SuffixCount> suffixCounts)
+            throws IOException {
+        out.writeInt(suffixCounts.size());
+        for (var suffixCount : suffixCounts) {
+            out.writeUTF(suffixCount.getSuffix());
+            out.writeLong(suffixCount.getCount());
+        }
+    }
+
+    private static ArrayList<SuffixCount> readSuffixCounts(DataInputStream in) throws IOException {
+        int size = in.readInt();
+        var result = new ArrayList<SuffixCount>(size);
+        for (int i = 0; i < size; ++i) {
+            result.add(SuffixCount.builder()
+                    .suffix(in.readUTF())
+                    .count(in.readLong())
+                    .build());
+        }
+        return result;
+    }
+}
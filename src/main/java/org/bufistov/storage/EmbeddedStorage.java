@@ -0,0 +1,370 @@
+package org.bufistov.storage;
+
+import com.datastax.driver.core.TupleValue;
+import com.google.common.util.concurrent.Striped;
+import lombok.extern.log4j.Log4j2;
+import org.bufistov.model.EmbeddedStorageStats;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.QueryCount;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.stats.StatsSource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Single node persistent storage: the state is kept in {@link InMemoryStorage}, every applied mutation
+ * appends the new state of the key to the {@link WriteAheadLog}. Snapshots are taken periodically,
+ * on start the latest snapshot is loaded and the log segments written after it are replayed.
+ * A mutation and its log append run under the lock of the key, so records of a key are in the log in
+ * the order they were applied and snapshots need not stop the writes.
+ * Failed conditional updates are not logged, the conditional update semantics are those of InMemoryStorage.
+ */
+@Log4j2
+public class EmbeddedStorage implements Storage, StatsSource, Closeable {
+
+    static final String SNAPSHOT_PREFIX = "snapshot-";
+
+    static final String SNAPSHOT_SUFFIX = ".bin";
+
+    private static final String SNAPSHOT_TMP = "snapshot.tmp";
+
+    private static final int LOCK_STRIPES = 1024;
+
+    private final InMemoryStorage state;
+
+    private final WriteAheadLog writeAheadLog;
+
+    private final Path directory;
+
+    private final WriteAheadLog.FsyncPolicy fsyncPolicy;
+
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+    private final ScheduledExecutorService snapshotScheduler;
+
+    private final long recoveredRecords;
+
+    private final long recoveryMillis;
+
+    private final AtomicLong snapshots = new AtomicLong();
+
+    private final AtomicLong snapshotErrors = new AtomicLong();
+
+    private final AtomicLong lastSnapshotMillis = new AtomicLong();
+
+    /**
+     * Recover the storage from the directory and start logging into it.
+     * @param directory Directory of the log segments and snapshots, created if missing.
+     * @param initialCapacity Initial capacity of the in-memory state.
+     * @param segmentBytes Size of one log segment.
+     * @param fsyncPolicy When the log is forced to disk.
+     * @param fsyncIntervalMillis Fsync period of the INTERVAL policy.
+     * @param snapshotIntervalMillis Period of snapshots, 0 to take them only with {@link #snapshot()}.
+     */
+    public static EmbeddedStorage open(Path directory, int initialCapacity, int segmentBytes,
+                                       WriteAheadLog.FsyncPolicy fsyncPolicy, long fsyncIntervalMillis,
+                                       long snapshotIntervalMillis) throws IOException {
+        long start = System.currentTimeMillis();
+        Files.createDirectories(directory);
+        Files.deleteIfExists(directory.resolve(SNAPSHOT_TMP));
+        var state = new InMemoryStorage(initialCapacity);
+        long records = 0;
+        var snapshotIds = snapshotIds(directory);
+        long snapshotId = snapshotIds.isEmpty() ? 0 : snapshotIds.get(snapshotIds.size() - 1);
+        if (!snapshotIds.isEmpty()) {
+            try (var in = new DataInputStream(new BufferedInputStream(
+                    Files.newInputStream(snapshotPath(directory, snapshotId))))) {
+                records += EmbeddedRecords.readAll(in, record -> EmbeddedRecords.apply(record, state));
+            }
+        }
+        records += WriteAheadLog.replay(directory, snapshotId, record -> EmbeddedRecords.apply(record, state));
+        var segmentIds = WriteAheadLog.segmentIds(directory);
+        long nextSegmentId = segmentIds.isEmpty() ? snapshotId
+                : Math.max(snapshotId, segmentIds.get(segmentIds.size() - 1) + 1);
+        var writeAheadLog = new WriteAheadLog(directory, nextSegmentId, segmentBytes, fsyncPolicy, fsyncIntervalMillis);
+        long recoveryMillis = System.currentTimeMillis() - start;
+        log.info("Recovered {} records from {} in {} ms", records, directory, recoveryMillis);
+        return new EmbeddedStorage(state, writeAheadLog, directory, fsyncPolicy, snapshotIntervalMillis,
+                records, recoveryMillis);
+    }
+
+    private EmbeddedStorage(InMemoryStorage state, WriteAheadLog writeAheadLog, Path directory,
+                            WriteAheadLog.FsyncPolicy fsyncPolicy, long snapshotIntervalMillis,
+                            long recoveredRecords, long recoveryMillis) {
+        this.state = state;
+        this.writeAheadLog = writeAheadLog;
+        this.directory = directory;
+        this.fsyncPolicy = fsyncPolicy;
+        this.recoveredRecords = recoveredRecords;
+        this.recoveryMillis = recoveryMillis;
+        if (snapshotIntervalMillis > 0) {
+            snapshotScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "embedded-storage-snapshot");
+                thread.setDaemon(true);
+                return thread;
+            });
+            snapshotScheduler.scheduleWithFixedDelay(this::snapshotAndLogErrors,
+                    snapshotIntervalMillis, snapshotIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            snapshotScheduler = null;
+        }
+    }
+
+    @Override
+    public QueryCount addQuery(String query, long increment) {
+        var lock = locks.get(query);
+        lock.lock();
+        try {
+            var queryCount = state.addQuery(query, increment);
+            writeAheadLog.append(EmbeddedRecords.counter(query, queryCount.getCount(), queryCount.getSinceLastUpdate()));
+            return queryCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public PrefixTopK getTopKQueries(String prefix) {
+        return state.getTopKQueries(prefix);
+    }
+
+    @Override
+    public CompletionStage<PrefixTopK> getTopKQueriesAsync(String prefix) {
+        return state.getTopKQueriesAsync(prefix);
+    }
+
+    @Override
+    public Map<String, PrefixTopK> getTopKQueries(Collection<String> prefixes) {
+        return state.getTopKQueries(prefixes);
+    }
+
+    @Override
+    public boolean updateTopK1Queries(String prefix, Set<SuffixCount> newTopK, Long version) {
+        return updatePrefix(prefix, () -> state.updateTopK1Queries(prefix, newTopK, version));
+    }
+
+    @Override
+    public boolean addSuffixes(String prefix, Map<String, Long> suffixes, Long version) {
+        return updatePrefix(prefix, () -> state.addSuffixes(prefix, suffixes, version));
+    }
+
+    @Override
+    public boolean removeSuffixes(String prefix, Set<String> suffixes, Long version) {
+        return updatePrefix(prefix, () -> state.removeSuffixes(prefix, suffixes, version));
+    }
+
+    @Override
+    public boolean updateTopKQueries(String prefix, Set<String> toRemove, Map<String, Long> toAdd, Long version) {
+        return updatePrefix(prefix, () -> state.updateTopKQueries(prefix, toRemove, toAdd, version));
+    }
+
+    @Override
+    public boolean replaceSuffixCounter(String prefix, String suffix, Long newValue, Long version) {
+        return updatePrefix(prefix, () -> state.replaceSuffixCounter(prefix, suffix, newValue, version));
+    }
+
+    @Override
+    public boolean updateTopK2Queries(String prefix, Set<TupleValue> toRemove, Set<TupleValue> toAdd, Long version) {
+        return updatePrefix(prefix, () -> state.updateTopK2Queries(prefix, toRemove, toAdd, version));
+    }
+
+    @Override
+    public boolean updateTopK3Queries(String prefix, ByteBuffer topK, Long version) {
+        return updatePrefix(prefix, () -> state.updateTopK3Queries(prefix, topK, version));
+    }
+
+    @Override
+    public void mergeSuffixRow(String prefix, String suffix, long count, Long replacedCount) {
+        updatePrefix(prefix, () -> {
+            state.mergeSuffixRow(prefix, suffix, count, replacedCount);
+            return true;
+        });
+    }
+
+    @Override
+    public void removeSuffixRows(String prefix, Collection<SuffixCount> rows) {
+        updatePrefix(prefix, () -> {
+            state.removeSuffixRows(prefix, rows);
+            return true;
+        });
+    }
+
+    @Override
+    public void mergeCandidate(String prefix, String suffix, long count, Long replacedCount) {
+        updatePrefix(prefix, () -> {
+            state.mergeCandidate(prefix, suffix, count, replacedCount);
+            return true;
+        });
+    }
+
+    @Override
+    public void removeCandidates(String prefix, Map<String, Long> candidates) {
+        updatePrefix(prefix, () -> {
+            state.removeCandidates(prefix, candidates);
+            return true;
+        });
+    }
+
+    @Override
+    public boolean lockQueryForTopKUpdate(String query, Date lastUpdateTime, Date currentTime) {
+        var lock = locks.get(query);
+        lock.lock();
+        try {
+            if (!state.lockQueryForTopKUpdate(query, lastUpdateTime, currentTime)) {
+                return false;
+            }
+            writeAheadLog.append(EmbeddedRecords.topKUpdateTime(query, currentTime));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void updateTemporalCounter(String query, Long increment) {
+        var lock = locks.get(query);
+        lock.lock();
+        try {
+            state.updateTemporalCounter(query, increment);
+            var queryCount = state.getQueryCount(query);
+            writeAheadLog.append(EmbeddedRecords.counter(query, queryCount.getCount(), queryCount.getSinceLastUpdate()));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Write the state into a new snapshot and delete the log segments and snapshots it covers.
+     * Writes continue during the snapshot, the keys changed meanwhile are replayed from the log.
+     */
+    public synchronized void snapshot() throws IOException {
+        long start = System.currentTimeMillis();
+        long segmentId = writeAheadLog.rotate();
+        var tmp = directory.resolve(SNAPSHOT_TMP);
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            for (String query : state.counterKeys()) {
+                var queryCount = state.getQueryCount(query);
+                EmbeddedRecords.write(out, EmbeddedRecords.counter(query,
+                        queryCount.getCount(), queryCount.getSinceLastUpdate()));
+            }
+            for (String query : state.topKUpdateKeys()) {
+                var time = state.getTopKUpdateTime(query);
+                if (time != null) {
+                    EmbeddedRecords.write(out, EmbeddedRecords.topKUpdateTime(query, time));
+                }
+            }
+            for (String prefix : state.prefixKeys()) {
+                EmbeddedRecords.write(out, EmbeddedRecords.prefix(prefix, state.getTopKQueries(prefix)));
+            }
+        }
+        try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, snapshotPath(directory, segmentId), StandardCopyOption.ATOMIC_MOVE);
+        for (long snapshotId : snapshotIds(directory)) {
+            if (snapshotId < segmentId) {
+                Files.deleteIfExists(snapshotPath(directory, snapshotId));
+            }
+        }
+        writeAheadLog.deleteSegmentsBefore(segmentId);
+        snapshots.incrementAndGet();
+        lastSnapshotMillis.set(System.currentTimeMillis() - start);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (snapshotScheduler != null) {
+            snapshotScheduler.shutdown();
+            try {
+                snapshotScheduler.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        writeAheadLog.close();
+    }
+
+    @Override
+    public String getStatsName() {
+        return "embeddedStorage";
+    }
+
+    @Override
+    public EmbeddedStorageStats getStats() {
+        return EmbeddedStorageStats.builder()
+                .fsyncPolicy(fsyncPolicy.name())
+                .logSegment(writeAheadLog.getSegmentId())
+                .logAppends(writeAheadLog.getAppends())
+                .logBytes(writeAheadLog.getAppendedBytes())
+                .fsyncs(writeAheadLog.getFsyncs())
+                .snapshots(snapshots.get())
+                .snapshotErrors(snapshotErrors.get())
+                .lastSnapshotMillis(lastSnapshotMillis.get())
+                .recoveredRecords(recoveredRecords)
+                .recoveryMillis(recoveryMillis)
+                .build();
+    }
+
+    private boolean updatePrefix(String prefix, BooleanSupplier update) {
+        var lock = locks.get(prefix);
+        lock.lock();
+        try {
+            if (!update.getAsBoolean()) {
+                return false;
+            }
+            writeAheadLog.append(EmbeddedRecords.prefix(prefix, state.getTopKQueries(prefix)));
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void snapshotAndLogErrors() {
+        try {
+            snapshot();
+        } catch (Throwable throwable) {
+            snapshotErrors.incrementAndGet();
+            log.error("Error: ", throwable);
+        }
+    }
+
+    static List<Long> snapshotIds(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SNAPSHOT_PREFIX) && name.endsWith(SNAPSHOT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SNAPSHOT_PREFIX.length(),
+                            name.length() - SNAPSHOT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static Path snapshotPath(Path directory, long segmentId) {
+        return directory.resolve(String.format("%s%016d%s", SNAPSHOT_PREFIX, segmentId, SNAPSHOT_SUFFIX));
+    }
+}
@@ -0,0 +1,302 @@
+package org.bufistov.storage;
+
+import com.datastax.driver.core.TupleValue;
+import lombok.AllArgsConstructor;
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.model.QueryCount;
+import org.bufistov.model.SuffixCount;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+
+/**
+ * Storage kept in process memory, for benchmarks and single node deployments.
+ * Conditional updates have the semantics of the Cassandra LWTs: an update is applied only if the
+ * current version (or topK update time) equals the expected one, null matches a missing item.
+ * Items are immutable and replaced atomically per key, so reads never block writes.
+ * Tuple sets are kept in ascending order like the Cassandra sets, the tuple set strategy relies on it.
+ * TTL of the prefix items is not supported, items live until restart.
+ */
+public class InMemoryStorage implements Storage {
+
+    @AllArgsConstructor
+    static class Counter {
+        final AtomicLong count;
+        final AtomicLong sinceLastUpdate;
+    }
+
+    @AllArgsConstructor
+    static class Item {
+        final Map<String, Long> topK;
+        final Set<SuffixCount> topK1;
+        final SortedSet<SuffixCount> topK2;
+        final ByteBuffer topK3;
+        final List<SuffixCount> topK4;
+        final Map<String, Long> topK5;
+        final Long version;
+    }
+
+    /**
+     * Order of the clustered rows: count descending, suffix descending, the reverse of SuffixCount order.
+     */
+    static final Comparator<SuffixCount> CLUSTERING_ORDER = Comparator.<SuffixCount>naturalOrder().reversed();
+
+    private static final Item EMPTY_ITEM = new Item(Map.of(), Set.of(), Collections.emptySortedSet(), null,
+            List.of(), Map.of(), null);
+
+    private final ConcurrentHashMap<String, Counter> counters;
+
+    private final ConcurrentHashMap<String, Date> topKUpdates;
+
+    private final ConcurrentHashMap<String, Item> prefixes;
+
+    public InMemoryStorage(int initialCapacity) {
+        this.counters = new ConcurrentHashMap<>(initialCapacity);
+        this.topKUpdates = new ConcurrentHashMap<>(initialCapacity);
+        this.prefixes = new ConcurrentHashMap<>(initialCapacity);
+    }
+
+    @Override
+    public QueryCount addQuery(String query, long increment) {
+        var counter = counter(query);
+        long count = counter.count.addAndGet(increment);
+        long sinceLastUpdate = counter.sinceLastUpdate.addAndGet(increment);
+        return QueryCount.builder()
+                .query(query)
+                .count(count)
+                .sinceLastUpdate(sinceLastUpdate)
+                .lastUpdateTime(topKUpdates.get(query))
+                .build();
+    }
+
+    @Override
+    public PrefixTopK getTopKQueries(String prefix) {
+        var item = prefixes.getOrDefault(prefix, EMPTY_ITEM);
+        return PrefixTopK.builder()
+                .topK(item.topK)
+                .topK1(item.topK1)
+                .topK2(List.copyOf(item.topK2))
+                .topK3(item.topK3 == null ? null : item.topK3.duplicate())
+                .topK4(item.topK4)
+                .topK5(item.topK5)
+                .version(item.version)
+                .build();
+    }
+
+    @Override
+    public boolean updateTopK1Queries(String prefix, Set<SuffixCount> newTopK, Long version) {
+        return compareAndSet(prefix, version,
+                item -> new Item(item.topK, Set.copyOf(newTopK), item.topK2, item.topK3, item.topK4,
+                        item.topK5, newVersion(version)));
+    }
+
+    @Override
+    public boolean addSuffixes(String prefix, Map<String, Long> suffixes, Long version) {
+        return updateTopKQueries(prefix, Set.of(), suffixes, version);
+    }
+
+    @Override
+    public boolean removeSuffixes(String prefix, Set<String> suffixes, Long version) {
+        return updateTopKQueries(prefix, suffixes, Map.of(), version);
+    }
+
+    @Override
+    public boolean updateTopKQueries(String prefix, Set<String> toRemove, Map<String, Long> toAdd, Long version) {
+        return compareAndSet(prefix, version, item -> {
+            var topK = new HashMap<>(item.topK);
+            topK.keySet().removeAll(toRemove);
+            topK.putAll(toAdd);
+            return new Item(Map.copyOf(topK), item.topK1, item.topK2, item.topK3, item.topK4, item.topK5,
+                    newVersion(version));
+        });
+    }
+
+    @Override
+    public boolean replaceSuffixCounter(String prefix, String suffix, Long newValue, Long version) {
+        return updateTopKQueries(prefix, Set.of(), Map.of(suffix, newValue), version);
+    }
+
+    @Override
+    public boolean updateTopK2Queries(String prefix, Set<TupleValue> toRemove, Set<TupleValue> toAdd, Long version) {
+        return compareAndSet(prefix, version, item -> {
+            var topK2 = new TreeSet<>(item.topK2);
+            toRemove.forEach(tuple -> topK2.remove(fromTuple(tuple)));
+            toAdd.forEach(tuple -> topK2.add(fromTuple(tuple)));
+            return new Item(item.topK, item.topK1, Collections.unmodifiableSortedSet(topK2), item.topK3,
+                    item.topK4, item.topK5, newVersion(version));
+        });
+    }
+
+    @Override
+    public boolean updateTopK3Queries(String prefix, ByteBuffer topK, Long version) {
+        var copy = ByteBuffer.allocate(topK.remaining()).put(topK.duplicate()).flip().asReadOnlyBuffer();
+        return compareAndSet(prefix, version,
+                item -> new Item(item.topK, item.topK1, item.topK2, copy, item.topK4, item.topK5,
+                        newVersion(version)));
+    }
+
+    /**
+     * Rows are kept in the item in clustering order, every merge increments the version.
+     */
+    @Override
+    public void mergeSuffixRow(String prefix, String suffix, long count, Long replacedCount) {
+        var row = SuffixCount.builder().suffix(suffix).count(count).build();
+        var replaced = replacedCount == null ? null
+                : SuffixCount.builder().suffix(suffix).count(replacedCount).build();
+        prefixes.compute(prefix, (key, current) -> {
+            var item = current == null ? EMPTY_ITEM : current;
+            var rows = new ArrayList<>(item.topK4);
+            rows.remove(replaced);
+            int index = Collections.binarySearch(rows, row, CLUSTERING_ORDER);
+            if (index < 0) {
+                rows.add(-index - 1, row);
+            }
+            return new Item(item.topK, item.topK1, item.topK2, item.topK3, List.copyOf(rows), item.topK5,
+                    newVersion(item.version));
+        });
+    }
+
+    @Override
+    public void removeSuffixRows(String prefix, Collection<SuffixCount> rows) {
+        prefixes.computeIfPresent(prefix, (key, item) -> {
+            var remaining = new ArrayList<>(item.topK4);
+            remaining.removeAll(rows);
+            return new Item(item.topK, item.topK1, item.topK2, item.topK3, List.copyOf(remaining), item.topK5,
+                    item.version);
+        });
+    }
+
+    /**
+     * The version is incremented only if the candidate count changes. Only the max count is kept,
+     * so there is no replaced count to remove.
+     */
+    @Override
+    public void mergeCandidate(String prefix, String suffix, long count, Long replacedCount) {
+        prefixes.compute(prefix, (key, current) -> {
+            var item = current == null ? EMPTY_ITEM : current;
+            var stored = item.topK5.get(suffix);
+            if (stored != null && stored >= count) {
+                return current;
+            }
+            var candidates = new HashMap<>(item.topK5);
+            candidates.put(suffix, count);
+            return new Item(item.topK, item.topK1, item.topK2, item.topK3, item.topK4, Map.copyOf(candidates),
+                    newVersion(item.version));
+        });
+    }
+
+    @Override
+    public void removeCandidates(String prefix, Map<String, Long> candidates) {
+        prefixes.computeIfPresent(prefix, (key, item) -> {
+            var remaining = new HashMap<>(item.topK5);
+            candidates.forEach((suffix, count) -> remaining.computeIfPresent(suffix,
+                    (ignored, stored) -> stored <= count ? null : stored));
+            return new Item(item.topK, item.topK1, item.topK2, item.topK3, item.topK4, Map.copyOf(remaining),
+                    item.version);
+        });
+    }
+
+    @Override
+    public boolean lockQueryForTopKUpdate(String query, Date lastUpdateTime, Date currentTime) {
+        if (lastUpdateTime == null) {
+            return topKUpdates.putIfAbsent(query, currentTime) == null;
+        }
+        return topKUpdates.replace(query, lastUpdateTime, currentTime);
+    }
+
+    @Override
+    public void updateTemporalCounter(String query, Long increment) {
+        counter(query).sinceLastUpdate.addAndGet(increment);
+    }
+
+    QueryCount getQueryCount(String query) {
+        var counter = counters.get(query);
+        if (counter == null) {
+            return null;
+        }
+        return QueryCount.builder()
+                .query(query)
+                .count(counter.count.get())
+                .sinceLastUpdate(counter.sinceLastUpdate.get())
+                .lastUpdateTime(topKUpdates.get(query))
+                .build();
+    }
+
+    Date getTopKUpdateTime(String query) {
+        return topKUpdates.get(query);
+    }
+
+    Set<String> counterKeys() {
+        return counters.keySet();
+    }
+
+    Set<String> topKUpdateKeys() {
+        return topKUpdates.keySet();
+    }
+
+    Set<String> prefixKeys() {
+        return prefixes.keySet();
+    }
+
+    void restoreCounter(String query, long count, long sinceLastUpdate) {
+        var counter = counter(query);
+        counter.count.set(count);
+        counter.sinceLastUpdate.set(sinceLastUpdate);
+    }
+
+    void restoreTopKUpdateTime(String query, Date time) {
+        topKUpdates.put(query, time);
+    }
+
+    void restorePrefix(String prefix, PrefixTopK item) {
+        prefixes.put(prefix, new Item(Map.copyOf(item.getTopK()), Set.copyOf(item.getTopK1()),
+                Collections.unmodifiableSortedSet(new TreeSet<>(item.getTopK2())), item.getTopK3(),
+                item.getTopK4() == null ? List.of() : List.copyOf(item.getTopK4()),
+                item.getTopK5() == null ? Map.of() : Map.copyOf(item.getTopK5()), item.getVersion()));
+    }
+
+    private Counter counter(String query) {
+        var counter = counters.get(query);
+        return counter != null ? counter
+                : counters.computeIfAbsent(query, key -> new Counter(new AtomicLong(), new AtomicLong()));
+    }
+
+    /**
+     * Replace the prefix item if its version equals the expected one.
+     */
+    private boolean compareAndSet(String prefix, Long expectedVersion, UnaryOperator<Item> update) {
+        var current = prefixes.get(prefix);
+        if (!Objects.equals(current == null ? null : current.version, expectedVersion)) {
+            return false;
+        }
+        if (current == null) {
+            return prefixes.putIfAbsent(prefix, update.apply(EMPTY_ITEM)) == null;
+        }
+        return prefixes.replace(prefix, current, update.apply(current));
+    }
+
+    private static Long newVersion(Long version) {
+        return version == null ? 1 : version + 1;
+    }
+
+    private static SuffixCount fromTuple(TupleValue tuple) {
+        return SuffixCount.builder()
+                .count(tuple.getLong(0))
+                .suffix(tuple.getString(1))
+                .build();
+    }
+}
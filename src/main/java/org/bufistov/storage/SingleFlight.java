@@ -0,0 +1,138 @@
+package org.bufistov.storage;
+
+import org.bufistov.exception.DependencyException;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Deduplicates concurrent loads of the same key: the first caller loads the value,
+ * callers arriving while the load is in flight wait for its result.
+ * Nothing is cached once the load completes.
+ */
+public class SingleFlight<K, V> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong requests = new AtomicLong();
+
+    private final AtomicLong loads = new AtomicLong();
+
+    public V get(K key, Supplier<V> loader) {
+        requests.incrementAndGet();
+        var future = new CompletableFuture<V>();
+        var existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return join(existing);
+        }
+        loads.incrementAndGet();
+        try {
+            V value = loader.get();
+            future.complete(value);
+            return value;
+        } catch (RuntimeException exception) {
+            future.completeExceptionally(exception);
+            throw exception;
+        } finally {
+            inFlight.remove(key, future);
+        }
+    }
+
+    /**
+     * Asynchronous variant of {@link #get}, the key is in flight until the loaded stage completes.
+     */
+    public CompletionStage<V> getAsync(K key, Supplier<? extends CompletionStage<V>> loader) {
+        requests.incrementAndGet();
+        var future = new CompletableFuture<V>();
+        var existing = inFlight.putIfAbsent(key, future);
+        if (existing != null) {
+            return existing.copy();
+        }
+        loads.incrementAndGet();
+        try {
+            loader.get().whenComplete((value, error) -> {
+                inFlight.remove(key, future);
+                if (error != null) {
+                    future.completeExceptionally(error instanceof CompletionException && error.getCause() != null
+                            ? error.getCause() : error);
+                } else {
+                    future.complete(value);
+                }
+            });
+        } catch (RuntimeException exception) {
+            inFlight.remove(key, future);
+            future.completeExceptionally(exception);
+        }
+        return future.copy();
+    }
+
+    /**
+     * Load several keys, keys which are not in flight are loaded by one loader call.
+     */
+    public Map<K, V> getAll(Collection<K> keys, Function<Collection<K>, Map<K, V>> loader) {
+        var owned = new HashMap<K, CompletableFuture<V>>();
+        var joined = new HashMap<K, CompletableFuture<V>>();
+        for (K key : keys) {
+            if (owned.containsKey(key) || joined.containsKey(key)) {
+                continue;
+            }
+            requests.incrementAndGet();
+            var future = new CompletableFuture<V>();
+            var existing = inFlight.putIfAbsent(key, future);
+            if (existing != null) {
+                joined.put(key, existing);
+            } else {
+                owned.put(key, future);
+            }
+        }
+        var result = new HashMap<K, V>();
+        try {
+            if (!owned.isEmpty()) {
+                loads.addAndGet(owned.size());
+                var loaded = loader.apply(owned.keySet());
+                owned.forEach((key, future) -> {
+                    future.complete(loaded.get(key));
+                    result.put(key, loaded.get(key));
+                });
+            }
+        } catch (RuntimeException exception) {
+            owned.values().forEach(future -> future.completeExceptionally(exception));
+            throw exception;
+        } finally {
+            owned.forEach(inFlight::remove);
+        }
+        joined.forEach((key, future) -> result.put(key, join(future)));
+        return result;
+    }
+
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public long getLoads() {
+        return loads.get();
+    }
+
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    private static <V> V join(CompletableFuture<V> future) {
+        try {
+            return future.join();
+        } catch (CompletionException exception) {
+            if (exception.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) exception.getCause();
+            }
+            throw new DependencyException("Coalesced load failed", exception.getCause());
+        }
+    }
+}
@@ -5,15 +5,75 @@ import org.bufistov.model.PrefixTopK;
 import org.bufistov.model.QueryCount;
 import org.bufistov.model.SuffixCount;
 
+import java.nio.ByteBuffer;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 public interface Storage {
-    QueryCount addQuery(String query);
+    default QueryCount addQuery(String query) {
+        return addQuery(query, 1);
+    }
+
+    /**
+     * Increment query counter and read its current state.
+     * @param query The query.
+     * @param increment Value of the increment, number of the query occurrences.
+     * @return Counter values and last topK update time after the increment.
+     */
+    QueryCount addQuery(String query, long increment);
+
+    /**
+     * Increment query counter without blocking the calling thread.
+     * @param query The query.
+     * @param increment Value of the increment, number of the query occurrences.
+     * @return Stage completed with the counter state after the increment. Completed with
+     * WriteNotAppliedException if the increment is known to be not applied, any other failure means
+     * that the increment might have been applied.
+     */
+    default CompletionStage<QueryCount> addQueryAsync(String query, long increment) {
+        try {
+            return CompletableFuture.completedFuture(addQuery(query, increment));
+        } catch (RuntimeException exception) {
+            return CompletableFuture.failedFuture(exception);
+        }
+    }
 
     PrefixTopK getTopKQueries(String prefix);
 
+    /**
+     * Read topK suffixes without blocking the calling thread.
+     * @param prefix Prefix to read.
+     * @return Stage completed with topK suffixes of the prefix, empty item if prefix does not exist.
+     */
+    default CompletionStage<PrefixTopK> getTopKQueriesAsync(String prefix) {
+        return CompletableFuture.completedFuture(getTopKQueries(prefix));
+    }
+
+    /**
+     * Read only version of the prefix item.
+     * @param prefix Prefix to read.
+     * @return Stage completed with version of the prefix item, null if prefix does not exist.
+     */
+    default CompletionStage<Long> getTopKVersionAsync(String prefix) {
+        return getTopKQueriesAsync(prefix).thenApply(PrefixTopK::getVersion);
+    }
+
+    /**
+     * Read topK suffixes for several prefixes at once.
+     * @param prefixes Prefixes to read.
+     * @return TopK suffixes for every requested prefix, empty item if prefix does not exist.
+     */
+    default Map<String, PrefixTopK> getTopKQueries(Collection<String> prefixes) {
+        var result = new HashMap<String, PrefixTopK>();
+        prefixes.forEach(prefix -> result.put(prefix, getTopKQueries(prefix)));
+        return result;
+    }
+
     /**
      * Updates topK suffixes for given prefix only if version matches the provided one.
      * @param prefix Prefix to update.
@@ -71,6 +131,49 @@ public interface Storage {
      */
     boolean updateTopK2Queries(String prefix, Set<TupleValue> toRemove, Set<TupleValue> toAdd, Long version);
 
+    /**
+     * Replace topK suffixes blob for given prefix.
+     * @param prefix Prefix to update
+     * @param topK New topK suffixes encoded by TopKBlob
+     * @param version version for atomic update
+     * @return true if update was applied false otherwise
+     */
+    boolean updateTopK3Queries(String prefix, ByteBuffer topK, Long version);
+
+    /**
+     * Unconditionally add the suffix row into the clustered topK rows of the prefix and remove
+     * the row of its replaced count. The write is idempotent, concurrent writes need no version.
+     * @param prefix Prefix to update
+     * @param suffix Query suffix
+     * @param count New count of the suffix
+     * @param replacedCount Count of the suffix row to remove, null if there is none
+     */
+    void mergeSuffixRow(String prefix, String suffix, long count, Long replacedCount);
+
+    /**
+     * Remove clustered topK rows of the prefix, e.g. rows that fell out of the topK.
+     * @param prefix Prefix to update
+     * @param rows Rows to remove
+     */
+    void removeSuffixRows(String prefix, Collection<SuffixCount> rows);
+
+    /**
+     * Unconditionally set count of the candidate suffix to the max of the stored and the given one.
+     * The write is idempotent and commutative, concurrent writes need no version.
+     * @param prefix Prefix to update
+     * @param suffix Query suffix
+     * @param count New count of the suffix
+     * @param replacedCount Count of the suffix the new one replaces, null if the suffix is new
+     */
+    void mergeCandidate(String prefix, String suffix, long count, Long replacedCount);
+
+    /**
+     * Remove candidate suffixes whose count has not grown above the given one.
+     * @param prefix Prefix to update
+     * @param candidates Suffixes to remove with their counts
+     */
+    void removeCandidates(String prefix, Map<String, Long> candidates);
+
     /**
      * Get last topK update from the query udpate table
      * @param query The query.
@@ -0,0 +1,246 @@
+package org.bufistov.storage;
+
+import lombok.extern.log4j.Log4j2;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Append only log in fixed size memory mapped segment files. Record is the payload length, CRC32 of
+ * the payload and the payload. Zero length or CRC mismatch marks the end of a segment, so a record
+ * torn by a crash is dropped on replay. An append is a copy into the mapped segment, durability
+ * against power loss depends on the fsync policy.
+ */
+@Log4j2
+public class WriteAheadLog implements Closeable {
+
+    public enum FsyncPolicy {
+        /**
+         * Force the segment to disk after every append.
+         */
+        ALWAYS,
+        /**
+         * Force the segment to disk periodically, appends since the last fsync may be lost on power loss.
+         */
+        INTERVAL,
+        /**
+         * Leave flushing to the OS, appends survive process crash but not power loss.
+         */
+        NEVER
+    }
+
+    static final String SEGMENT_PREFIX = "wal-";
+
+    static final String SEGMENT_SUFFIX = ".log";
+
+    static final int HEADER_BYTES = 8;
+
+    private final Path directory;
+
+    private final int segmentBytes;
+
+    private final FsyncPolicy fsyncPolicy;
+
+    private final ScheduledExecutorService fsyncScheduler;
+
+    private final CRC32 crc = new CRC32();
+
+    private long segmentId;
+
+    private FileChannel channel;
+
+    private MappedByteBuffer segment;
+
+    private final AtomicLong appends = new AtomicLong();
+
+    private final AtomicLong appendedBytes = new AtomicLong();
+
+    private final AtomicLong fsyncs = new AtomicLong();
+
+    public WriteAheadLog(Path directory, long firstSegmentId, int segmentBytes,
+                         FsyncPolicy fsyncPolicy, long fsyncIntervalMillis) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncPolicy = fsyncPolicy;
+        Files.createDirectories(directory);
+        openSegment(firstSegmentId);
+        if (fsyncPolicy == FsyncPolicy.INTERVAL) {
+            fsyncScheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "wal-fsync");
+                thread.setDaemon(true);
+                return thread;
+            });
+            fsyncScheduler.scheduleWithFixedDelay(this::forceAndLogErrors,
+                    fsyncIntervalMillis, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+        } else {
+            fsyncScheduler = null;
+        }
+    }
+
+    public synchronized void append(byte[] payload) {
+        int recordBytes = payload.length + HEADER_BYTES;
+        if (recordBytes > segmentBytes) {
+            throw new IllegalArgumentException(String.format("Record of %d bytes does not fit into segment of %d bytes",
+                    recordBytes, segmentBytes));
+        }
+        if (segment.remaining() < recordBytes) {
+            try {
+                openSegment(segmentId + 1);
+            } catch (IOException exception) {
+                throw new UncheckedIOException(exception);
+            }
+        }
+        crc.reset();
+        crc.update(payload);
+        int start = segment.position();
+        segment.position(start + Integer.BYTES);
+        segment.putInt((int) crc.getValue());
+        segment.put(payload);
+        // Length goes last, a record without length is not replayed.
+        segment.putInt(start, payload.length);
+        appends.incrementAndGet();
+        appendedBytes.addAndGet(recordBytes);
+        if (fsyncPolicy == FsyncPolicy.ALWAYS) {
+            force();
+        }
+    }
+
+    /**
+     * Start a new segment.
+     * @return Id of the new segment, every append after the call goes into it or later segments.
+     */
+    public synchronized long rotate() throws IOException {
+        openSegment(segmentId + 1);
+        return segmentId;
+    }
+
+    public synchronized void force() {
+        segment.force();
+        fsyncs.incrementAndGet();
+    }
+
+    public synchronized long getSegmentId() {
+        return segmentId;
+    }
+
+    public long getAppends() {
+        return appends.get();
+    }
+
+    public long getAppendedBytes() {
+        return appendedBytes.get();
+    }
+
+    public long getFsyncs() {
+        return fsyncs.get();
+    }
+
+    public void deleteSegmentsBefore(long id) throws IOException {
+        for (long segmentToDelete : segmentIds(directory)) {
+            if (segmentToDelete < id) {
+                Files.deleteIfExists(segmentPath(directory, segmentToDelete));
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fsyncScheduler != null) {
+            fsyncScheduler.shutdown();
+        }
+        synchronized (this) {
+            force();
+            channel.close();
+        }
+    }
+
+    /**
+     * Pass every intact record of the segments starting from the given one to the consumer.
+     * @return Number of replayed records.
+     */
+    public static long replay(Path directory, long fromSegmentId, Consumer<byte[]> consumer) throws IOException {
+        long records = 0;
+        var crc = new CRC32();
+        for (long id : segmentIds(directory)) {
+            if (id < fromSegmentId) {
+                continue;
+            }
+            ByteBuffer buffer;
+            try (var channel = FileChannel.open(segmentPath(directory, id), StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            while (buffer.remaining() >= HEADER_BYTES) {
+                int length = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (length <= 0 || length > buffer.remaining()) {
+                    break;
+                }
+                var payload = new byte[length];
+                buffer.get(payload);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != expectedCrc) {
+                    log.warn("Corrupted record in segment {}, ignoring the rest of the segment", id);
+                    break;
+                }
+                consumer.accept(payload);
+                ++records;
+            }
+        }
+        return records;
+    }
+
+    public static List<Long> segmentIds(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return List.of();
+        }
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.map(path -> path.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    static Path segmentPath(Path directory, long id) {
+        return directory.resolve(String.format("%s%016d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private void openSegment(long id) throws IOException {
+        if (segment != null) {
+            segment.force();
+            channel.close();
+        }
+        channel = FileChannel.open(segmentPath(directory, id),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);
+        segmentId = id;
+        log.debug("Opened log segment {}", id);
+    }
+
+    private void forceAndLogErrors() {
+        try {
+            force();
+        } catch (Throwable throwable) {
+            log.error("Error: ", throwable);
+        }
+    }
+}
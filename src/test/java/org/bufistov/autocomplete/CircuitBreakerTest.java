@@ -0,0 +1,65 @@
+package org.bufistov.autocomplete;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+import java.time.Clock;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+public class CircuitBreakerTest {
+
+    private static final long WINDOW_MILLIS = 1000;
+
+    private static final long OPEN_MILLIS = 500;
+
+    @Mock
+    Clock clock;
+
+    CircuitBreaker circuitBreaker;
+
+    @BeforeEach
+    public void setUp() {
+        openMocks(this);
+        when(clock.millis()).thenReturn(0L);
+        circuitBreaker = new CircuitBreaker(clock, 0.5, 4, WINDOW_MILLIS, OPEN_MILLIS);
+    }
+
+    @Test
+    public void fewRequests_staysClosed() {
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.isOpen(), is(false));
+    }
+
+    @Test
+    public void errorRateAboveThreshold_opensThenCloses() {
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordSuccess();
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.isOpen(), is(false));
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.isOpen(), is(true));
+        assertThat(circuitBreaker.getTrips(), is(1L));
+
+        when(clock.millis()).thenReturn(OPEN_MILLIS);
+        assertThat(circuitBreaker.isOpen(), is(false));
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.isOpen(), is(false));
+    }
+
+    @Test
+    public void failuresInDifferentWindows_staysClosed() {
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        circuitBreaker.recordFailure();
+        when(clock.millis()).thenReturn(WINDOW_MILLIS);
+        circuitBreaker.recordFailure();
+        assertThat(circuitBreaker.isOpen(), is(false));
+    }
+}
@@ -0,0 +1,190 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.exception.DependencyException;
+import org.bufistov.exception.WriteNotAppliedException;
+import org.bufistov.model.QueryCount;
+import org.bufistov.storage.Storage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.reset;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+public class CounterBufferTest {
+
+    private final static String QUERY = "que";
+
+    private final static int MAX_BUFFERED_KEYS = 2;
+
+    private final static int MAX_IN_FLIGHT = 2;
+
+    @Mock
+    Storage storage;
+
+    CounterBuffer counterBuffer;
+
+    List<QueryCount> flushed = new ArrayList<>();
+
+    @BeforeEach
+    void setUp() {
+        openMocks(this);
+        when(storage.addQuery(anyString(), anyLong())).thenAnswer(invocation -> QueryCount.builder()
+                .query(invocation.getArgument(0))
+                .count(invocation.getArgument(1))
+                .sinceLastUpdate(invocation.getArgument(1))
+                .build());
+        when(storage.addQueryAsync(anyString(), anyLong())).thenCallRealMethod();
+        counterBuffer = new CounterBuffer(storage, 1000, MAX_BUFFERED_KEYS, MAX_IN_FLIGHT);
+        counterBuffer.setListener(flushed::add);
+    }
+
+    @Test
+    void flush_concurrentIncrements_oneWritePerQuery() throws InterruptedException {
+        int numThreads = 8;
+        int incrementsPerThread = 1000;
+        var threadPool = Executors.newFixedThreadPool(numThreads);
+        for (int i = 0; i < numThreads; ++i) {
+            threadPool.submit(() -> {
+                for (int j = 0; j < incrementsPerThread; ++j) {
+                    counterBuffer.add(QUERY, 1);
+                }
+            });
+        }
+        threadPool.shutdown();
+        assertThat(threadPool.awaitTermination(1, TimeUnit.MINUTES), is(true));
+        verify(storage, never()).addQuery(anyString(), anyLong());
+
+        counterBuffer.flush();
+        verify(storage, times(1)).addQuery(QUERY, (long) numThreads * incrementsPerThread);
+        assertThat(flushed.size(), is(1));
+        assertThat(flushed.get(0).getCount(), is((long) numThreads * incrementsPerThread));
+    }
+
+    @Test
+    void flush_idleQuery_removedFromBuffer() {
+        counterBuffer.add(QUERY, 2);
+        counterBuffer.flush();
+        assertThat(counterBuffer.getStats().getBufferedKeys(), is(1));
+        counterBuffer.flush();
+        assertThat(counterBuffer.getStats().getBufferedKeys(), is(0));
+        counterBuffer.add(QUERY, 3);
+        counterBuffer.flush();
+        verify(storage, times(1)).addQuery(QUERY, 2L);
+        verify(storage, times(1)).addQuery(QUERY, 3L);
+    }
+
+    @Test
+    void add_bufferFull_writeThrough() {
+        counterBuffer.add("q1", 1);
+        counterBuffer.add("q2", 1);
+        counterBuffer.add("q3", 1);
+        verify(storage, times(1)).addQuery("q3", 1L);
+        assertThat(counterBuffer.getStats().getWriteThroughs(), is(1L));
+        assertThat(flushed.size(), is(1));
+    }
+
+    @Test
+    void add_bufferFullAndWritesSaturated_dropsWithoutBlocking() {
+        var pending = new LinkedBlockingQueue<CompletableFuture<QueryCount>>();
+        when(storage.addQueryAsync(anyString(), anyLong())).thenAnswer(invocation -> {
+            var result = new CompletableFuture<QueryCount>();
+            pending.add(result);
+            return result;
+        });
+        counterBuffer.add("q1", 1);
+        counterBuffer.add("q2", 1);
+        counterBuffer.add("q3", 1);
+        counterBuffer.add("q4", 1);
+        assertThat(pending.size(), is(MAX_IN_FLIGHT));
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> counterBuffer.add("q5", 3));
+        assertThat(pending.size(), is(MAX_IN_FLIGHT));
+        assertThat(counterBuffer.getStats().getWriteThroughs(), is(2L));
+        assertThat(counterBuffer.getStats().getDroppedIncrements(), is(3L));
+
+        pending.poll().complete(QueryCount.builder().query("q3").count(1L).sinceLastUpdate(1L).build());
+        counterBuffer.add("q6", 1);
+        assertThat(pending.size(), is(MAX_IN_FLIGHT));
+        assertThat(counterBuffer.getStats().getWriteThroughs(), is(3L));
+        assertThat(counterBuffer.getStats().getDroppedIncrements(), is(3L));
+    }
+
+    @Test
+    void flush_writeNotApplied_incrementKept() {
+        when(storage.addQuery(eq(QUERY), anyLong())).thenThrow(new WriteNotAppliedException("Unavailable", null));
+        counterBuffer.add(QUERY, 5);
+        counterBuffer.flush();
+        assertThat(flushed.size(), is(0));
+        assertThat(counterBuffer.getStats().getFlushErrors(), is(1L));
+        assertThat(counterBuffer.getStats().getAmbiguousErrors(), is(0L));
+        assertThat(counterBuffer.getStats().getBufferedKeys(), is(1));
+
+        reset(storage);
+        when(storage.addQueryAsync(anyString(), anyLong())).thenCallRealMethod();
+        counterBuffer.flush();
+        verify(storage, times(1)).addQuery(QUERY, 5L);
+    }
+
+    @Test
+    void flush_writeMightBeApplied_incrementNotRetried() {
+        when(storage.addQuery(eq(QUERY), anyLong())).thenThrow(new DependencyException("Write timeout", null));
+        counterBuffer.add(QUERY, 5);
+        counterBuffer.flush();
+        counterBuffer.flush();
+        assertThat(flushed.size(), is(0));
+        assertThat(counterBuffer.getStats().getFlushErrors(), is(1L));
+        assertThat(counterBuffer.getStats().getAmbiguousErrors(), is(1L));
+        verify(storage, times(1)).addQuery(eq(QUERY), anyLong());
+    }
+
+    @Test
+    void flush_slowWrites_boundedInFlight() throws InterruptedException {
+        var pending = new LinkedBlockingQueue<CompletableFuture<QueryCount>>();
+        when(storage.addQueryAsync(anyString(), anyLong())).thenAnswer(invocation -> {
+            var result = new CompletableFuture<QueryCount>();
+            pending.add(result);
+            return result;
+        });
+        counterBuffer = new CounterBuffer(storage, 1000, 10, MAX_IN_FLIGHT);
+        counterBuffer.setListener(flushed::add);
+        counterBuffer.add("q1", 1);
+        counterBuffer.add("q2", 1);
+        counterBuffer.add("q3", 1);
+        var flushThread = new Thread(counterBuffer::flush);
+        flushThread.start();
+
+        var first = pending.poll(10, TimeUnit.SECONDS);
+        var second = pending.poll(10, TimeUnit.SECONDS);
+        assertThat(pending.poll(100, TimeUnit.MILLISECONDS), is(nullValue()));
+        first.complete(QueryCount.builder().query("q").count(1L).sinceLastUpdate(1L).build());
+        var third = pending.poll(10, TimeUnit.SECONDS);
+        assertThat(third, is(notNullValue()));
+        second.complete(QueryCount.builder().query("q").count(1L).sinceLastUpdate(1L).build());
+        assertThat(flushThread.isAlive(), is(true));
+        third.complete(QueryCount.builder().query("q").count(1L).sinceLastUpdate(1L).build());
+        flushThread.join(10000);
+        assertThat(flushThread.isAlive(), is(false));
+        assertThat(flushed.size(), is(3));
+    }
+}
@@ -0,0 +1,77 @@
+package org.bufistov.autocomplete;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.lessThanOrEqualTo;
+
+public class ExponentialJitterIntervalTest {
+
+    private final static long BASE_DELAY = 10;
+
+    private final static long MAX_DELAY = 5000;
+
+    private final static String PREFIX = "g";
+
+    ExponentialJitterInterval interval = new ExponentialJitterInterval(new Random(0),
+            BASE_DELAY, MAX_DELAY, 100);
+
+    @Test
+    void getMillis_retries_withinThreeTimesPreviousDelay() {
+        long maxDelay = 0;
+        for (int i = 0; i < 100; ++i) {
+            long previous = BASE_DELAY;
+            for (int retry = 1; retry < 20; ++retry) {
+                long delay = interval.getMillis(PREFIX, retry);
+                assertThat(delay, greaterThanOrEqualTo(BASE_DELAY));
+                assertThat(delay, lessThanOrEqualTo(Math.min(MAX_DELAY, previous * 3)));
+                maxDelay = Math.max(maxDelay, delay);
+                previous = delay;
+            }
+        }
+        assertThat(maxDelay, greaterThan(BASE_DELAY * 3));
+    }
+
+    @Test
+    void getMillis_firstRetry_startsFromBaseDelay() {
+        for (int retry = 1; retry < 20; ++retry) {
+            interval.getMillis(PREFIX, retry);
+        }
+        for (int i = 0; i < 100; ++i) {
+            assertThat(interval.getMillis(PREFIX, 1), lessThanOrEqualTo(BASE_DELAY * 3));
+        }
+    }
+
+    @Test
+    void recordUpdate_conflicts_rateGrows() {
+        assertThat(interval.getConflictRate(PREFIX), is(0.0));
+        for (int i = 0; i < 50; ++i) {
+            interval.recordUpdate(PREFIX, TopKUpdateStatus.CONDITION_FAILED);
+        }
+        assertThat(interval.getConflictRate(PREFIX), greaterThan(0.9));
+        assertThat(interval.getConflictRate("other"), is(0.0));
+        for (int i = 0; i < 50; ++i) {
+            interval.recordUpdate(PREFIX, TopKUpdateStatus.SUCCESS);
+        }
+        assertThat(interval.getConflictRate(PREFIX), lessThanOrEqualTo(0.01));
+    }
+
+    @Test
+    void getMillis_hotPrefix_widerDelays() {
+        for (int i = 0; i < 50; ++i) {
+            interval.recordUpdate(PREFIX, TopKUpdateStatus.CONDITION_FAILED);
+        }
+        long maxCold = 0;
+        long maxHot = 0;
+        for (int i = 0; i < 1000; ++i) {
+            maxCold = Math.max(maxCold, interval.getMillis("cold", 1));
+            maxHot = Math.max(maxHot, interval.getMillis(PREFIX, 1));
+        }
+        assertThat(maxHot, greaterThan(maxCold));
+    }
+}
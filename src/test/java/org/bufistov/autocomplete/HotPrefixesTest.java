@@ -0,0 +1,134 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.storage.InMemoryStorage;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.bufistov.autocomplete.TopKBlobTest.toSuffixCount;
+import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+
+public class HotPrefixesTest {
+
+    private static final long TOPK = 2;
+
+    private final Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+
+    @Test
+    void test_shardKey_sameShardForEveryPrefix() {
+        var hotPrefixes = new HotPrefixes(Set.of("g", "go"), 4, 0, 1, 1000, clock);
+        String shard = hotPrefixes.shardKey("g", "google").substring(1);
+        assertThat(hotPrefixes.shardKey("go", "google"), is("go" + shard));
+        assertThat(hotPrefixes.partitionKeys("g"), is(List.of("g", "g\u00000", "g\u00001", "g\u00002", "g\u00003")));
+        assertThat(hotPrefixes.longestShardedPrefix("google", 6), is(2));
+        assertThat(hotPrefixes.longestShardedPrefix("google", 1), is(1));
+        assertThat(hotPrefixes.longestShardedPrefix("mail", 4), is(0));
+    }
+
+    @Test
+    void test_mightBeSharded_configuredOrPromotable() {
+        var hotPrefixes = new HotPrefixes(Set.of("goo"), 4, 2, 1, 1000, clock);
+        assertThat(hotPrefixes.isHot("go"), is(false));
+        assertThat(hotPrefixes.mightBeSharded("go"), is(true));
+        assertThat(hotPrefixes.mightBeSharded("goo"), is(true));
+        assertThat(hotPrefixes.mightBeSharded("goog"), is(false));
+        assertThat(hotPrefixes.longestShardedPrefix("google", 6), is(3));
+        assertThat(hotPrefixes.longestShardedPrefix("mail", 4), is(2));
+    }
+
+    @Test
+    void test_conflicts_shortPrefixPromoted() {
+        var hotPrefixes = new HotPrefixes(List.of(""), 4, 1, 2, 1000, clock);
+        hotPrefixes.recordUpdate("g", CONDITION_FAILED);
+        hotPrefixes.recordUpdate("g", SUCCESS);
+        hotPrefixes.recordUpdate("go", CONDITION_FAILED);
+        hotPrefixes.recordUpdate("go", CONDITION_FAILED);
+        assertThat(hotPrefixes.isHot("g"), is(false));
+        assertThat(hotPrefixes.isHot("go"), is(false));
+
+        hotPrefixes.recordUpdate("g", CONDITION_FAILED);
+        assertThat(hotPrefixes.isHot("g"), is(true));
+        assertThat(hotPrefixes.getStats().getAutoPromoted(), is(1L));
+        assertThat(hotPrefixes.getStats().getConfigured(), is(0));
+    }
+
+    @Test
+    void test_version_shardExpiredAndOtherAdvanced_changed() {
+        long served = HotPrefixes.version(Arrays.asList(null, 2L, 3L));
+        // The sum of the versions would be the same after the second shard expired and the third one advanced.
+        assertThat(HotPrefixes.version(Arrays.asList(null, null, 5L)), not(served));
+        assertThat(HotPrefixes.version(Arrays.asList(null, 3L, 2L)), not(served));
+        assertThat(HotPrefixes.version(Arrays.asList(null, 2L, 3L)), is(served));
+    }
+
+    @Test
+    void test_merge_maxCountsTopK() {
+        var merged = HotPrefixes.merge(List.of(
+                List.of(toSuffixCount("a", 1L), toSuffixCount("b", 5L)),
+                List.of(toSuffixCount("c", 3L)),
+                List.of(toSuffixCount("a", 4L))), TOPK);
+        assertThat(merged, is(List.of(toSuffixCount("a", 4L), toSuffixCount("b", 5L))));
+    }
+
+    @Test
+    void test_queryHandler_hotPrefixShardedAndMerged() {
+        var storage = new InMemoryStorage(16);
+        var hotPrefixes = new HotPrefixes(Set.of("g"), 4, 0, 1, 1000, clock);
+        var queryHandler = queryHandler(storage, hotPrefixes);
+        // Unsharded item written before the prefix became hot is merged on read.
+        storage.addSuffixes("g", Map.of("o", 1L), null);
+        List.of("go", "google", "google", "gmail", "gmail", "gmail").forEach(queryHandler::addQuery);
+
+        assertThat(storage.getTopKQueries("g").getTopK().size(), is(1));
+        assertThat(queryHandler.getQueries("g").getQueries(), is(List.of(
+                toSuffixCount("google", 2L), toSuffixCount("gmail", 3L))));
+        assertThat(queryHandler.getQueries("go").getQueries(), is(List.of(
+                toSuffixCount("go", 1L), toSuffixCount("google", 2L))));
+        assertThat(queryHandler.getQueriesVersionAsync("g").toCompletableFuture().join(),
+                is(queryHandler.getQueries("g").getVersion()));
+    }
+
+    @Test
+    void test_queryHandler_prefixPromotedByOtherNode_shardsMergedOnRead() {
+        var storage = new InMemoryStorage(16);
+        var promoting = new HotPrefixes(List.of(), 4, 1, 1, 1000, clock);
+        promoting.recordUpdate("g", CONDITION_FAILED);
+        assertThat(promoting.isHot("g"), is(true));
+        var promotingNode = queryHandler(storage, promoting);
+        // Same configuration, but the prefix is not promoted, like another node or the same one after restart.
+        var otherNode = queryHandler(storage, new HotPrefixes(List.of(), 4, 1, 1, 1000, clock));
+        List.of("google", "google", "google").forEach(promotingNode::addQuery);
+        List.of("gmail", "gmail").forEach(otherNode::addQuery);
+
+        assertThat(storage.getTopKQueries("g").getTopK().size(), is(1));
+        var expected = List.of(toSuffixCount("gmail", 2L), toSuffixCount("google", 3L));
+        assertThat(otherNode.getQueries("g").getQueries(), is(expected));
+        assertThat(promotingNode.getQueries("g").getQueries(), is(expected));
+    }
+
+    private QueryHandlerImpl queryHandler(InMemoryStorage storage, HotPrefixes hotPrefixes) {
+        var config = QueryHandlerConfig.builder()
+                .topK(TOPK)
+                .maxQuerySize(100)
+                .maxRetriesToUpdateTopK(10L)
+                .queryUpdateMillis(1000L)
+                .queryUpdateCount(1L)
+                .firstQueryUpdateCount(1L)
+                .build();
+        var queryHandler = new QueryHandlerImpl(storage, config, new UpdateSuffixesMap(storage),
+                new UniformRandomInterval(new Random(0), 1), Clock.systemUTC());
+        queryHandler.setHotPrefixes(hotPrefixes);
+        return queryHandler;
+    }
+}
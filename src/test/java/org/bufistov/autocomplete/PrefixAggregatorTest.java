@@ -0,0 +1,133 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.storage.InMemoryStorage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.bufistov.autocomplete.TopKBlobTest.toSuffixCount;
+import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+public class PrefixAggregatorTest {
+
+    private static final long TOPK = 2;
+
+    private static final int DEPTH = 3;
+
+    private final InMemoryStorage storage = new InMemoryStorage(16);
+
+    private final UpdateSuffixesMap updateSuffixes = spy(new UpdateSuffixesMap(storage));
+
+    private final PrefixAggregator prefixAggregator = new PrefixAggregator(updateSuffixes, TOPK, DEPTH, 1000);
+
+    private QueryHandlerImpl queryHandler;
+
+    @BeforeEach
+    void setUp() {
+        queryHandler = queryHandler(prefixAggregator);
+    }
+
+    @Test
+    void test_shortPrefixes_updatedByAggregation() {
+        List.of("go", "goo", "google", "google", "gmail", "gmail", "gmail", "gmail").forEach(queryHandler::addQuery);
+        assertThat(queryHandler.getQueries("goo").getQueries(), is(List.of(
+                toSuffixCount("goo", 1L), toSuffixCount("google", 2L))));
+        assertThat(queryHandler.getQueries("g").getQueries(), is(List.of()));
+        assertThat(queryHandler.getQueries("go").getQueries(), is(List.of(toSuffixCount("go", 1L))));
+
+        prefixAggregator.aggregate();
+
+        assertThat(queryHandler.getQueries("go").getQueries(), is(List.of(
+                toSuffixCount("goo", 1L), toSuffixCount("google", 2L))));
+        assertThat(queryHandler.getQueries("g").getQueries(), is(List.of(
+                toSuffixCount("google", 2L), toSuffixCount("gmail", 4L))));
+        var stats = prefixAggregator.getStats();
+        assertThat(stats.getRuns(), is(1L));
+        assertThat(stats.getWrites(), is(3L));
+        assertThat(stats.getDirtyPrefixes(), is(0));
+
+        prefixAggregator.aggregate();
+        assertThat(prefixAggregator.getStats().getWrites(), is(3L));
+    }
+
+    @Test
+    void test_parentConditionFailed_aggregatedOnNextRun() {
+        List.of("google", "google").forEach(queryHandler::addQuery);
+        doReturn(CONDITION_FAILED).doCallRealMethod()
+                .when(updateSuffixes).mergeTopKSuffixes(eq("go"), any(), any());
+
+        prefixAggregator.aggregate();
+
+        var stats = prefixAggregator.getStats();
+        assertThat(stats.getConflicts(), is(1L));
+        assertThat(stats.getWrites(), is(0L));
+        assertThat(stats.getDirtyPrefixes(), is(1));
+        assertThat(queryHandler.getQueries("go").getQueries(), is(List.of()));
+
+        prefixAggregator.aggregate();
+
+        assertThat(queryHandler.getQueries("go").getQueries(), is(List.of(toSuffixCount("google", 2L))));
+        assertThat(queryHandler.getQueries("g").getQueries(), is(List.of(toSuffixCount("google", 2L))));
+        assertThat(prefixAggregator.getStats().getWrites(), is(2L));
+        assertThat(prefixAggregator.getStats().getDirtyPrefixes(), is(0));
+    }
+
+    @Test
+    void test_deepAggregation_allLevelsUpdatedInOneRun() {
+        var deepAggregator = new PrefixAggregator(updateSuffixes, TOPK, DEPTH + 1, 1000);
+        var deepHandler = queryHandler(deepAggregator);
+        List.of("google", "google", "goose", "gmail", "gmail", "gmail").forEach(deepHandler::addQuery);
+        assertThat(deepHandler.getQueries("goo").getQueries(), is(List.of()));
+
+        deepAggregator.aggregate();
+
+        assertThat(deepHandler.getQueries("goo").getQueries(), is(List.of(
+                toSuffixCount("goose", 1L), toSuffixCount("google", 2L))));
+        assertThat(deepHandler.getQueries("go").getQueries(), is(List.of(
+                toSuffixCount("goose", 1L), toSuffixCount("google", 2L))));
+        assertThat(deepHandler.getQueries("g").getQueries(), is(List.of(
+                toSuffixCount("google", 2L), toSuffixCount("gmail", 3L))));
+        var stats = deepAggregator.getStats();
+        assertThat(stats.getRuns(), is(1L));
+        assertThat(stats.getWrites(), is(5L));
+        assertThat(stats.getDirtyPrefixes(), is(0));
+    }
+
+    @Test
+    void test_hotChild_shardsMergedIntoParent() {
+        queryHandler.setHotPrefixes(new HotPrefixes(Set.of("goo"), 4, 0, 1, 1000, Clock.systemUTC()));
+        List.of("google", "google", "goose", "goose", "goose").forEach(queryHandler::addQuery);
+        assertThat(storage.getTopKQueries("goo").getTopK().isEmpty(), is(true));
+
+        prefixAggregator.aggregate();
+
+        var expected = List.of(toSuffixCount("google", 2L), toSuffixCount("goose", 3L));
+        assertThat(queryHandler.getQueries("go").getQueries(), is(expected));
+        assertThat(queryHandler.getQueries("g").getQueries(), is(expected));
+    }
+
+    private QueryHandlerImpl queryHandler(PrefixAggregator aggregator) {
+        var config = QueryHandlerConfig.builder()
+                .topK(TOPK)
+                .maxQuerySize(100)
+                .maxRetriesToUpdateTopK(10L)
+                .queryUpdateMillis(1000L)
+                .queryUpdateCount(1L)
+                .firstQueryUpdateCount(1L)
+                .build();
+        var handler = new QueryHandlerImpl(storage, config, updateSuffixes,
+                new UniformRandomInterval(new Random(0), 1), Clock.systemUTC());
+        handler.setPrefixAggregator(aggregator);
+        return handler;
+    }
+}
@@ -0,0 +1,73 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.SuffixCount;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class PrefixTopKNearCacheTest {
+
+    private final static String PREFIX = "que";
+
+    private final static long TOPK = 2;
+
+    private final static long VERSION = 3;
+
+    PrefixTopKNearCache nearCache = new PrefixTopKNearCache(100, 60_000);
+
+    @Test
+    void cannotEnter_noEntry_false() {
+        assertThat(nearCache.cannotEnter(PREFIX, "ry", 1, TOPK), is(false));
+        assertThat(nearCache.getStats().getMisses(), is(1L));
+    }
+
+    @Test
+    void cannotEnter_topKFull_comparedWithMin() {
+        nearCache.put(PREFIX, VERSION, List.of(suffixCount("1", 5), suffixCount("2", 7)));
+        assertThat(nearCache.cannotEnter(PREFIX, "ry", 5, TOPK), is(true));
+        assertThat(nearCache.cannotEnter(PREFIX, "ry", 6, TOPK), is(false));
+        assertThat(nearCache.cannotEnter(PREFIX, "2", 7, TOPK), is(true));
+        assertThat(nearCache.cannotEnter(PREFIX, "2", 8, TOPK), is(false));
+        assertThat(nearCache.getStats().getSkippedReads(), is(2L));
+    }
+
+    @Test
+    void cannotEnter_topKNotFull_false() {
+        nearCache.put(PREFIX, VERSION, List.of(suffixCount("1", 5)));
+        assertThat(nearCache.cannotEnter(PREFIX, "ry", 1, TOPK), is(false));
+        assertThat(nearCache.cannotEnter(PREFIX, "1", 5, TOPK), is(true));
+    }
+
+    @Test
+    void recordSuccess_minReplaced() {
+        nearCache.put(PREFIX, VERSION, List.of(suffixCount("1", 5), suffixCount("2", 7)));
+        nearCache.recordSuccess(PREFIX, VERSION, "ry", 6, TOPK);
+        assertThat(nearCache.cannotEnter(PREFIX, "ry", 6, TOPK), is(true));
+        assertThat(nearCache.cannotEnter(PREFIX, "1", 6, TOPK), is(true));
+        assertThat(nearCache.cannotEnter(PREFIX, "1", 7, TOPK), is(false));
+    }
+
+    @Test
+    void recordSuccess_versionChanged_invalidated() {
+        nearCache.put(PREFIX, VERSION + 1, List.of(suffixCount("1", 5), suffixCount("2", 7)));
+        nearCache.recordSuccess(PREFIX, VERSION, "ry", 6, TOPK);
+        assertThat(nearCache.getStats().getEntries(), is(0L));
+    }
+
+    @Test
+    void invalidate_entryRemoved() {
+        nearCache.put(PREFIX, VERSION, List.of(suffixCount("1", 5), suffixCount("2", 7)));
+        nearCache.invalidate(PREFIX);
+        assertThat(nearCache.cannotEnter(PREFIX, "ry", 1, TOPK), is(false));
+    }
+
+    private static SuffixCount suffixCount(String suffix, long count) {
+        return SuffixCount.builder()
+                .suffix(suffix)
+                .count(count)
+                .build();
+    }
+}
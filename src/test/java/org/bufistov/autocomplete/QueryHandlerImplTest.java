@@ -4,6 +4,7 @@ import org.bufistov.model.PrefixTopK;
 import org.bufistov.model.QueryCount;
 import org.bufistov.model.SuffixCount;
 import org.bufistov.model.TopKQueries;
+import org.bufistov.storage.InMemoryStorage;
 import org.bufistov.storage.Storage;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -15,16 +16,24 @@ import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Executors;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.hamcrest.Matchers.greaterThan;
 import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyString;
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyLong;
@@ -64,6 +73,9 @@ public class QueryHandlerImplTest {
     @Mock
     RandomInterval randomInterval;
 
+    @Mock
+    ScheduledExecutorService scheduledExecutor;
+
     Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
 
     UpdateSuffixes updateSuffixes;
@@ -93,8 +105,10 @@ public class QueryHandlerImplTest {
                         .lastUpdateTime(Date.from(clock.instant()))
                         .build()
         );
+        when(storage.addQueryAsync(anyString(), anyLong())).thenCallRealMethod();
 
         when(randomInterval.getMillis()).thenReturn(1L);
+        when(randomInterval.getMillis(anyString(), anyInt())).thenReturn(1L);
         when(storage.lockQueryForTopKUpdate(anyString(), any(Date.class), any(Date.class))).thenReturn(true);
         doNothing().when(storage).updateTemporalCounter(anyString(), anyLong());
         updateSuffixes = spy(new UpdateSuffixesMap(storage));
@@ -102,10 +116,16 @@ public class QueryHandlerImplTest {
                 .updateTopKSuffixes(queryCaptor.capture(), newCounterCaptor.capture(),
                         prefixCaptor.capture(), topKCaptor.capture());
         doCallRealMethod().when(updateSuffixes).toSortedList(any());
+        // Run retries immediately
+        when(scheduledExecutor.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> {
+            ((Runnable) invocation.getArgument(0)).run();
+            return null;
+        });
         queryHandler = new QueryHandlerImpl(storage, TEST_CONFIG,
                 updateSuffixes,
                 randomInterval,
                 clock);
+        queryHandler.setRetryScheduler(new TopKRetryScheduler(scheduledExecutor, 100));
     }
 
     @Test
@@ -243,6 +263,56 @@ public class QueryHandlerImplTest {
                 .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
     }
 
+    @Test
+    public void addQuery_retryBudgetExhausted_giveUp() {
+        when(updateSuffixes.updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong()))
+                .thenReturn(TopKUpdateStatus.CONDITION_FAILED);
+        var retryBudget = new RetryBudget(0, 1);
+        queryHandler.setRetryBudget(retryBudget);
+        queryHandler.addQuery(QUERY);
+        // One retry for the first prefix, then every prefix gives up after the first attempt
+        verify(updateSuffixes, times(QUERY.length() + 1))
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+        assertThat(retryBudget.getStats().getRetriesAllowed(), is(1L));
+        assertThat(retryBudget.getStats().getRetriesDenied(), is((long) QUERY.length()));
+    }
+
+    @Test
+    public void addQuery_prefixesPrefetched_readOnce() {
+        var prefixRow = PrefixTopK.builder()
+                .topK(Map.of())
+                .version(1L)
+                .build();
+        when(storage.getTopKQueries(List.of("qu", "q"))).thenReturn(Map.of("qu", prefixRow, "q", prefixRow));
+        doReturn(TopKUpdateStatus.CONDITION_FAILED).doReturn(TopKUpdateStatus.SUCCESS).when(updateSuffixes)
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong(), any(PrefixTopK.class));
+        queryHandler.addQuery(QUERY);
+        verify(storage, times(1)).getTopKQueries(List.of("qu", "q"));
+        // Longest prefix is read separately, failed prefix is read again
+        verify(updateSuffixes, times(1)).updateTopKSuffixes(QUERY, NEW_COUNTER_VALUE, QUERY, TOPK);
+        verify(updateSuffixes, times(1)).updateTopKSuffixes(QUERY, NEW_COUNTER_VALUE, "qu", TOPK);
+        verify(updateSuffixes, times(1)).updateTopKSuffixes(QUERY, NEW_COUNTER_VALUE, "qu", TOPK, prefixRow);
+        verify(updateSuffixes, times(1)).updateTopKSuffixes(QUERY, NEW_COUNTER_VALUE, "q", TOPK, prefixRow);
+        verify(updateSuffixes, never()).updateTopKSuffixes(QUERY, NEW_COUNTER_VALUE, "q", TOPK);
+    }
+
+    @Test
+    public void addQuery_nearCache_prefixReadSkipped() {
+        when(storage.getTopKQueries(QUERY)).thenReturn(PrefixTopK.builder()
+                .topK(Map.of("1", 10L, "2", 11L, "3", 12L))
+                .version(1L)
+                .build());
+        doCallRealMethod().when(updateSuffixes)
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong(), any(PrefixTopK.class));
+        queryHandler.setNearCache(new PrefixTopKNearCache(100, 60_000));
+        queryHandler.addQuery(QUERY);
+        queryHandler.addQuery(QUERY);
+        verify(storage, times(1)).getTopKQueries(QUERY);
+        verify(updateSuffixes, times(1))
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong(), any(PrefixTopK.class));
+        verify(updateSuffixes, never()).updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+    }
+
     @Test
     public void addQuery_noUpdateRequired_success() {
         ArgumentCaptor<String> queryCaptor = ArgumentCaptor.forClass(String.class);
@@ -274,16 +344,136 @@ public class QueryHandlerImplTest {
     }
 
     @Test
-    public void addQuery_interruptedException_success() throws InterruptedException {
+    public void addQuery_conditionFailed_retryDoesNotHoldThread() {
+        when(updateSuffixes.updateTopKSuffixes(queryCaptor.capture(), newCounterCaptor.capture(),
+                prefixCaptor.capture(), topKCaptor.capture()))
+                .thenReturn(TopKUpdateStatus.CONDITION_FAILED);
+        when(randomInterval.getMillis(anyString(), anyInt())).thenReturn(1000_000L);
+        var retryScheduler = new TopKRetryScheduler(1);
+        queryHandler.setRetryScheduler(retryScheduler);
+        queryHandler.addQuery(QUERY);
+        verify(updateSuffixes, times(1))
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+        assertThat(retryScheduler.getStats().getPendingRetries(), is(1));
+
+        queryHandler.addQuery(QUERY);
+        assertThat(retryScheduler.getStats().getPendingRetries(), is(1));
+        // Each prefix gives up because retry can't be scheduled
+        assertThat(retryScheduler.getStats().getRejectedRetries(), is((long) QUERY.length()));
+        retryScheduler.shutdown();
+    }
+
+    @Test
+    public void getQueriesVersionAsync_storageFails_versionServedByStaleReader() {
+        when(storage.getTopKQueriesAsync(QUERY)).thenReturn(CompletableFuture.completedFuture(PrefixTopK.builder()
+                .topK(Map.of("1", 10L))
+                .version(7L)
+                .build()));
+        when(storage.getTopKVersionAsync(QUERY))
+                .thenReturn(CompletableFuture.failedFuture(new IllegalStateException("Storage is down")));
+        queryHandler.setStaleReader(new StaleWhileRevalidateReader(clock, 100, 100,
+                new CircuitBreaker(clock, 0.5, 100, 60_000, 60_000)));
+        queryHandler.getQueriesAsync(QUERY).toCompletableFuture().join();
+
+        assertThat(queryHandler.getQueriesVersionAsync(QUERY).toCompletableFuture().join(), is(7L));
+        verify(storage, times(1)).getTopKVersionAsync(QUERY);
+    }
+
+    @Test
+    public void addQuery_retryQueueFull_retryNotRunOnTimerThread() {
         when(updateSuffixes.updateTopKSuffixes(queryCaptor.capture(), newCounterCaptor.capture(),
                 prefixCaptor.capture(), topKCaptor.capture()))
                 .thenReturn(TopKUpdateStatus.CONDITION_FAILED);
-        when(randomInterval.getMillis()).thenReturn(1000_000L);
-        var threadPool = Executors.newSingleThreadExecutor();
-        threadPool.submit(() -> queryHandler.addQuery(QUERY));
-        Thread.yield();
-        threadPool.shutdownNow();
-        assertThat(threadPool.isShutdown(), is(true));
+        var executor = new TopKUpdateExecutor(1, 1, TopKUpdateExecutor.RejectionPolicy.CALLER_RUNS);
+        var release = new CountDownLatch(1);
+        executor.execute(() -> {
+            try {
+                release.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException exception) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        executor.execute(() -> {});
+        queryHandler.setTopKUpdateExecutor(executor);
+        // Queue is full, the first attempt runs on the caller, the retry is dropped instead of running on the timer.
+        queryHandler.addQuery(QUERY);
+        verify(updateSuffixes, times(1))
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+        assertThat(executor.getStats().getRejected(), is(2L));
+        release.countDown();
+        executor.shutdown();
+        verify(updateSuffixes, times(1))
+                .updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+    }
+
+    @Test
+    public void setRetryScheduler_ownSchedulerShutDown() {
+        var handler = new QueryHandlerImpl(storage, TEST_CONFIG, updateSuffixes, randomInterval, clock);
+        var retryScheduler = new TopKRetryScheduler(scheduledExecutor, 100);
+        handler.setRetryScheduler(retryScheduler);
+        handler.shutdown();
+        verify(scheduledExecutor, never()).shutdownNow();
+    }
+
+    @Test
+    public void addQuery_topKUpdateExecutor_updateHandedOff() {
+        var tasks = new ArrayList<Runnable>();
+        queryHandler.setTopKUpdateExecutor(tasks::add);
+        queryHandler.addQuery(QUERY);
+        verify(storage, times(1)).addQuery(anyString());
+        verify(storage, never()).lockQueryForTopKUpdate(anyString(), any(Date.class), any(Date.class));
+        verify(updateSuffixes, never()).updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+        assertThat(tasks.size(), is(1));
+
+        tasks.get(0).run();
+        verify(storage, times(1)).lockQueryForTopKUpdate(anyString(), any(Date.class), any(Date.class));
+        verify(updateSuffixes, times(QUERY.length())).updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+    }
+
+    @Test
+    public void addQuery_counterBuffer_topKUpdatedOnFlush() {
+        when(storage.addQuery(anyString(), anyLong())).thenReturn(
+                QueryCount.builder()
+                        .query(QUERY)
+                        .count(NEW_COUNTER_VALUE)
+                        .sinceLastUpdate(NEW_COUNTER_VALUE)
+                        .lastUpdateTime(Date.from(clock.instant()))
+                        .build()
+        );
+        var counterBuffer = new CounterBuffer(storage, 1000, 10, 10);
+        queryHandler.setCounterBuffer(counterBuffer);
+        queryHandler.addQuery(QUERY);
+        queryHandler.addQuery(QUERY);
+        verify(storage, never()).addQuery(anyString());
+        verify(updateSuffixes, never()).updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+
+        counterBuffer.flush();
+        verify(storage, times(1)).addQuery(QUERY, NEW_COUNTER_VALUE);
+        verify(updateSuffixes, times(QUERY.length())).updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+    }
+
+    @Test
+    public void addQueries_duplicates_incrementedOnce() {
+        when(storage.addQuery(anyString(), anyLong())).thenReturn(
+                QueryCount.builder()
+                        .query(QUERY)
+                        .count(NEW_COUNTER_VALUE)
+                        .sinceLastUpdate(NEW_COUNTER_VALUE)
+                        .lastUpdateTime(Date.from(clock.instant()))
+                        .build()
+        );
+        queryHandler.addQueries(List.of(QUERY, QUERY));
+        verify(storage, never()).addQuery(anyString());
+        verify(storage, times(1)).addQuery(QUERY, 2L);
+        verify(storage, times(1)).lockQueryForTopKUpdate(anyString(), any(Date.class), any(Date.class));
+        verify(updateSuffixes, times(QUERY.length())).updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong());
+    }
+
+    @Test
+    public void addQueries_nullQuery_rejectedBeforeWrites() {
+        assertThrows(IllegalArgumentException.class, () -> queryHandler.addQueries(Arrays.asList(QUERY, null)));
+        assertThrows(IllegalArgumentException.class, () -> queryHandler.addQueries(List.of(QUERY, "")));
+        verify(storage, never()).addQuery(anyString(), anyLong());
     }
 
     @Test
@@ -318,6 +508,136 @@ public class QueryHandlerImplTest {
                 .build()));
     }
 
+    @Test
+    public void getQueries_cached_readOncePerLocalWrite() {
+        queryHandler.setQueriesCache(new TopKQueriesCache(1 << 20, 60_000));
+        when(storage.getTopKQueries("q"))
+                .thenReturn(PrefixTopK.builder()
+                        .topK(Map.of("uery", 5L))
+                        .build());
+        var expected = TopKQueries.builder()
+                .queries(List.of(getSuffixCount("query", 5)))
+                .build();
+        assertThat(queryHandler.getQueries("q"), is(expected));
+        assertThat(queryHandler.getQueries("q"), is(expected));
+        verify(storage, times(1)).getTopKQueries("q");
+
+        queryHandler.addQuery(QUERY);
+
+        assertThat(queryHandler.getQueries("q"), is(expected));
+        verify(storage, times(2)).getTopKQueries("q");
+    }
+
+    @Test
+    public void getQueriesAsync_cached_readOnce() {
+        queryHandler.setQueriesCache(new TopKQueriesCache(1 << 20, 60_000));
+        var storageRead = new CompletableFuture<PrefixTopK>();
+        when(storage.getTopKQueriesAsync("q")).thenReturn(storageRead);
+        var expected = TopKQueries.builder()
+                .queries(List.of(getSuffixCount("query", 5)))
+                .build();
+
+        var result = queryHandler.getQueriesAsync("q").toCompletableFuture();
+        assertThat(result.isDone(), is(false));
+        storageRead.complete(PrefixTopK.builder()
+                .topK(Map.of("uery", 5L))
+                .build());
+
+        assertThat(result.join(), is(expected));
+        assertThat(queryHandler.getQueriesAsync("q").toCompletableFuture().join(), is(expected));
+        assertThat(queryHandler.getQueries("q"), is(expected));
+        verify(storage, times(1)).getTopKQueriesAsync("q");
+        verify(storage, never()).getTopKQueries("q");
+    }
+
+    @Test
+    public void getQueriesBatchAsync_readsInParallel() {
+        var readG = new CompletableFuture<PrefixTopK>();
+        var readGo = new CompletableFuture<PrefixTopK>();
+        when(storage.getTopKQueriesAsync("g")).thenReturn(readG);
+        when(storage.getTopKQueriesAsync("go")).thenReturn(readGo);
+
+        var result = queryHandler.getQueriesBatchAsync(List.of("g", "go", "g")).toCompletableFuture();
+        verify(storage, times(1)).getTopKQueriesAsync("g");
+        verify(storage, times(1)).getTopKQueriesAsync("go");
+        readGo.complete(PrefixTopK.builder().topK(Map.of("ogle", 2L)).build());
+        assertThat(result.isDone(), is(false));
+        readG.complete(PrefixTopK.builder().topK(Map.of("oogle", 2L)).build());
+
+        var queries = result.join();
+        assertThat(List.copyOf(queries.keySet()), is(List.of("g", "go")));
+        assertThat(queries.get("g").getQueries(), is(List.of(getSuffixCount("google", 2))));
+        assertThat(queries.get("go").getQueries(), is(List.of(getSuffixCount("google", 2))));
+    }
+
+    @Test
+    public void getQueriesBatchAsync_tooManyPrefixes_throws() {
+        var handler = new QueryHandlerImpl(storage, QueryHandlerConfig.builder().maxBatchPrefixes(2).build(),
+                updateSuffixes, randomInterval, clock);
+        assertThrows(IllegalArgumentException.class, () -> handler.getQueriesBatchAsync(List.of("g", "go", "goo")));
+        verify(storage, never()).getTopKQueriesAsync(anyString());
+    }
+
+    @Test
+    public void likelyExtensions_orderedByTotalCount() {
+        var queries = List.of(getSuffixCount("go", 100),
+                getSuffixCount("gmail", 3),
+                getSuffixCount("google", 2),
+                getSuffixCount("golf", 2),
+                getSuffixCount("gap", 5),
+                getSuffixCount("gmx", 1));
+        assertThat(QueryHandlerImpl.likelyExtensions("g", queries, 2), is(List.of("go", "ga")));
+        assertThat(QueryHandlerImpl.likelyExtensions("g", queries, 5), is(List.of("go", "ga", "gm")));
+        assertThat(QueryHandlerImpl.likelyExtensions("go", queries, 5), is(List.of("gol", "goo")));
+    }
+
+    @Test
+    public void getQueriesAsync_lookahead_readsExtensions() {
+        when(storage.getTopKQueriesAsync(anyString())).thenAnswer(invocation -> {
+            String prefix = invocation.getArgument(0);
+            var topK = prefix.equals("g")
+                    ? Map.of("oogle", 5L, "mail", 3L, "ap", 1L)
+                    : Map.of(prefix.substring(1) + "x", 1L);
+            return CompletableFuture.completedFuture(PrefixTopK.builder().topK(topK).build());
+        });
+
+        var result = queryHandler.getQueriesAsync("g", 2).toCompletableFuture().join();
+
+        assertThat(result.getQueries().size(), is(3));
+        assertThat(List.copyOf(result.getLookahead().keySet()), is(List.of("go", "gm")));
+        assertThat(result.getLookahead().get("go").getQueries(), is(List.of(getSuffixCount("gox", 1))));
+        verify(storage, never()).getTopKQueriesAsync("ga");
+    }
+
+    @Test
+    public void test_maxPrefixLength_longPrefixesFilteredFromCandidates() {
+        var config = QueryHandlerConfig.builder()
+                .maxQuerySize(MAX_QUERY_SIZE)
+                .maxRetriesToUpdateTopK(MAX_RETRIES_TO_UPDATE_TOPK)
+                .queryUpdateMillis(1000L)
+                .topK(2L)
+                .queryUpdateCount(1L)
+                .firstQueryUpdateCount(1L)
+                .maxPrefixLength(3)
+                .cappedPrefixTopKFactor(2)
+                .build();
+        var inMemoryStorage = new InMemoryStorage(16);
+        var handler = new QueryHandlerImpl(inMemoryStorage, config, new UpdateSuffixesMap(inMemoryStorage),
+                randomInterval, clock);
+        List.of("google", "google", "google", "goodyear", "goodyear", "gopher", "goo").forEach(handler::addQuery);
+
+        assertThat(inMemoryStorage.getTopKQueries("goo").getTopK().size(), is(3));
+        assertThat(inMemoryStorage.getTopKQueries("goog").getVersion(), is(nullValue()));
+        assertThat(handler.getQueries("goo").getQueries(), is(List.of(
+                getSuffixCount("goodyear", 2), getSuffixCount("google", 3))));
+        assertThat(handler.getQueries("go").getQueries(), is(List.of(
+                getSuffixCount("goodyear", 2), getSuffixCount("google", 3))));
+        assertThat(handler.getQueries("goog").getQueries(), is(List.of(getSuffixCount("google", 3))));
+        assertThat(handler.getQueriesAsync("good").toCompletableFuture().join().getQueries(),
+                is(List.of(getSuffixCount("goodyear", 2))));
+        assertThat(handler.getQueries("goox").getQueries(), is(List.of()));
+    }
+
     private SuffixCount getSuffixCount(String suffix, long count) {
         return SuffixCount.builder()
                 .count(count)
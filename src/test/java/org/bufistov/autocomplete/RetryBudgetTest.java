@@ -0,0 +1,41 @@
+package org.bufistov.autocomplete;
+
+import org.junit.jupiter.api.Test;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class RetryBudgetTest {
+
+    @Test
+    void tryAcquireRetry_budgetExhausted_denied() {
+        var retryBudget = new RetryBudget(0.5, 2);
+        assertThat(retryBudget.tryAcquireRetry(), is(true));
+        assertThat(retryBudget.tryAcquireRetry(), is(true));
+        assertThat(retryBudget.tryAcquireRetry(), is(false));
+
+        retryBudget.recordFirstAttempt();
+        assertThat(retryBudget.tryAcquireRetry(), is(false));
+        retryBudget.recordFirstAttempt();
+        assertThat(retryBudget.tryAcquireRetry(), is(true));
+        assertThat(retryBudget.getStats().getRetriesDenied(), is(2L));
+        assertThat(retryBudget.getStats().getRetriesAllowed(), is(3L));
+    }
+
+    @Test
+    void recordFirstAttempt_bucketFull_tokensCapped() {
+        var retryBudget = new RetryBudget(1, 1);
+        for (int i = 0; i < 10; ++i) {
+            retryBudget.recordFirstAttempt();
+        }
+        assertThat(retryBudget.getStats().getAvailableRetries(), is(1L));
+    }
+
+    @Test
+    void tryAcquireRetry_unlimited_alwaysAllowed() {
+        var retryBudget = RetryBudget.unlimited();
+        for (int i = 0; i < 100; ++i) {
+            assertThat(retryBudget.tryAcquireRetry(), is(true));
+        }
+    }
+}
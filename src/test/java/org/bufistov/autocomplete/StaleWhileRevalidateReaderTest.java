@@ -0,0 +1,108 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.PrefixTopK;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.notNullValue;
+import static org.hamcrest.Matchers.nullValue;
+import static org.hamcrest.Matchers.sameInstance;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class StaleWhileRevalidateReaderTest {
+
+    private static final long LATENCY_BUDGET_MILLIS = 10;
+
+    private static final PrefixTopK OLD = PrefixTopK.builder().topK(Map.of("o", 1L)).version(1L).build();
+
+    private static final PrefixTopK NEW = PrefixTopK.builder().topK(Map.of("o", 2L)).version(2L).build();
+
+    private final Clock clock = Clock.systemUTC();
+
+    private final CircuitBreaker circuitBreaker = new CircuitBreaker(clock, 0.5, 100, 60_000, 60_000);
+
+    private final StaleWhileRevalidateReader reader =
+            new StaleWhileRevalidateReader(clock, LATENCY_BUDGET_MILLIS, 100, circuitBreaker);
+
+    @Test
+    public void read_fastStorage_fresh() {
+        var result = reader.read("g", prefix -> CompletableFuture.completedFuture(OLD)).toCompletableFuture().join();
+        assertThat(result.getValue(), sameInstance(OLD));
+        assertThat(result.getStalenessMillis(), nullValue());
+        assertThat(reader.getStats().getFreshReads(), is(1L));
+    }
+
+    @Test
+    public void read_slowStorage_staleServedAndRefreshedInBackground() {
+        reader.read("g", prefix -> CompletableFuture.completedFuture(OLD)).toCompletableFuture().join();
+        var slowRead = new CompletableFuture<PrefixTopK>();
+
+        var result = reader.read("g", prefix -> slowRead).toCompletableFuture().join();
+        assertThat(result.getValue(), sameInstance(OLD));
+        assertThat(result.getStalenessMillis(), notNullValue());
+
+        slowRead.complete(NEW);
+        var refreshed = reader.read("g", prefix -> new CompletableFuture<>()).toCompletableFuture().join();
+        assertThat(refreshed.getValue(), sameInstance(NEW));
+        assertThat(reader.getStats().getStaleReads(), is(2L));
+        assertThat(reader.getStats().getSlowReads(), is(1L));
+    }
+
+    @Test
+    public void read_failedStorage_staleServed() {
+        reader.read("g", prefix -> CompletableFuture.completedFuture(OLD)).toCompletableFuture().join();
+        var result = reader.read("g", prefix -> CompletableFuture.failedFuture(new IllegalStateException()))
+                .toCompletableFuture().join();
+        assertThat(result.getValue(), sameInstance(OLD));
+        assertThat(reader.getStats().getFailedReads(), is(1L));
+    }
+
+    @Test
+    public void read_failedStorageNothingKnown_fails() {
+        var result = reader.read("g", prefix -> CompletableFuture.failedFuture(new IllegalStateException()))
+                .toCompletableFuture();
+        assertThrows(CompletionException.class, result::join);
+    }
+
+    @Test
+    public void readVersion_slowOrFailedStorage_knownVersionServed() {
+        reader.read("g", prefix -> CompletableFuture.completedFuture(OLD)).toCompletableFuture().join();
+        var slow = reader.readVersion("g", prefix -> new CompletableFuture<>()).toCompletableFuture().join();
+        assertThat(slow, is(1L));
+        var failed = reader.readVersion("g", prefix -> CompletableFuture.failedFuture(new IllegalStateException()))
+                .toCompletableFuture().join();
+        assertThat(failed, is(1L));
+        var fresh = reader.readVersion("g", prefix -> CompletableFuture.completedFuture(2L))
+                .toCompletableFuture().join();
+        assertThat(fresh, is(2L));
+        // Version alone does not replace the known item.
+        var item = reader.read("g", prefix -> new CompletableFuture<>()).toCompletableFuture().join();
+        assertThat(item.getValue(), sameInstance(OLD));
+        assertThat(reader.getStats().getFailedReads(), is(1L));
+    }
+
+    @Test
+    public void read_circuitBreakerOpen_storageNotRead() {
+        var breaker = new CircuitBreaker(clock, 0.5, 2, 60_000, 60_000);
+        var breakingReader = new StaleWhileRevalidateReader(clock, LATENCY_BUDGET_MILLIS, 100, breaker);
+        breakingReader.read("g", prefix -> CompletableFuture.completedFuture(OLD)).toCompletableFuture().join();
+        breakingReader.read("go", prefix -> CompletableFuture.failedFuture(new IllegalStateException()));
+        assertThat(breaker.isOpen(), is(true));
+
+        var loads = new AtomicInteger();
+        var result = breakingReader.read("g", prefix -> {
+            loads.incrementAndGet();
+            return CompletableFuture.completedFuture(NEW);
+        }).toCompletableFuture().join();
+        assertThat(result.getValue(), sameInstance(OLD));
+        assertThat(loads.get(), is(0));
+        assertThat(breakingReader.getStats().getSkippedReads(), is(1L));
+    }
+}
@@ -0,0 +1,62 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.SuffixCount;
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class TopKBlobTest {
+
+    private static final ByteBuffer BLOB = TopKBlob.encode(List.of(
+            toSuffixCount("b", 2L), toSuffixCount("a", 5L), toSuffixCount("\u0436", 300L)));
+
+    @Test
+    void test_encodeDecode_sameList() {
+        assertThat(TopKBlob.toSortedList(BLOB), is(List.of(
+                toSuffixCount("b", 2L), toSuffixCount("a", 5L), toSuffixCount("\u0436", 300L))));
+        assertThat(TopKBlob.size(BLOB), is(3));
+        assertThat(TopKBlob.minCount(BLOB), is(2L));
+        assertThat(TopKBlob.countOf(BLOB, "\u0436"), is(300L));
+        assertThat(TopKBlob.countOf(BLOB, "c"), nullValue());
+    }
+
+    @Test
+    void test_emptyBlob() {
+        assertThat(TopKBlob.toSortedList(null), is(List.of()));
+        assertThat(TopKBlob.size(null), is(0));
+        assertThat(TopKBlob.countOf(null, "a"), nullValue());
+        assertThat(TopKBlob.merge(null, "a", 1, 3), is(TopKBlob.encode(List.of(toSuffixCount("a", 1L)))));
+    }
+
+    @Test
+    void test_mergeNewSuffix_smallestDropped() {
+        assertThat(TopKBlob.toSortedList(TopKBlob.merge(BLOB, "c", 3, 3)), is(List.of(
+                toSuffixCount("c", 3L), toSuffixCount("a", 5L), toSuffixCount("\u0436", 300L))));
+        assertThat(TopKBlob.merge(BLOB, "c", 1, 3), is(BLOB));
+    }
+
+    @Test
+    void test_mergeExistingSuffix_reordered() {
+        assertThat(TopKBlob.toSortedList(TopKBlob.merge(BLOB, "b", 1000, 3)), is(List.of(
+                toSuffixCount("a", 5L), toSuffixCount("\u0436", 300L), toSuffixCount("b", 1000L))));
+        assertThat(TopKBlob.merge(BLOB, "a", 4, 3), is(BLOB));
+    }
+
+    @Test
+    void test_mergeTopKDecreased_pruned() {
+        assertThat(TopKBlob.toSortedList(TopKBlob.merge(BLOB, "a", 5, 2)), is(List.of(
+                toSuffixCount("a", 5L), toSuffixCount("\u0436", 300L))));
+    }
+
+    static SuffixCount toSuffixCount(String suffix, Long count) {
+        return SuffixCount.builder()
+                .suffix(suffix)
+                .count(count)
+                .build();
+    }
+}
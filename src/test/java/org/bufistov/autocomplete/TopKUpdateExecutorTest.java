@@ -0,0 +1,81 @@
+package org.bufistov.autocomplete;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class TopKUpdateExecutorTest {
+
+    TopKUpdateExecutor executor;
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    void execute_queueFullCallerRuns_runOnCallerThread() throws InterruptedException {
+        executor = new TopKUpdateExecutor(1, 1, TopKUpdateExecutor.RejectionPolicy.CALLER_RUNS);
+        var release = new CountDownLatch(1);
+        var executed = new AtomicInteger();
+        executor.execute(() -> await(release));
+        executor.execute(executed::incrementAndGet);
+        String callerThread = Thread.currentThread().getName();
+        var runOn = new String[1];
+        executor.execute(() -> runOn[0] = Thread.currentThread().getName());
+
+        assertThat(runOn[0], is(callerThread));
+        assertThat(executor.getStats().getRejected(), is(1L));
+        assertThat(executor.getStats().getQueueDepth(), is(1));
+        release.countDown();
+        executor.shutdown();
+        assertThat(executed.get(), is(1));
+        assertThat(executor.getStats().getCompleted(), is(3L));
+    }
+
+    @Test
+    void execute_queueFullDiscard_updateDropped() {
+        executor = new TopKUpdateExecutor(1, 1, TopKUpdateExecutor.RejectionPolicy.DISCARD);
+        var release = new CountDownLatch(1);
+        var executed = new AtomicInteger();
+        executor.execute(() -> await(release));
+        executor.execute(executed::incrementAndGet);
+        executor.execute(executed::incrementAndGet);
+
+        assertThat(executor.getStats().getRejected(), is(1L));
+        assertThat(executor.getStats().getSubmitted(), is(3L));
+        release.countDown();
+        executor.shutdown();
+        assertThat(executed.get(), is(1));
+    }
+
+    @Test
+    void tryExecute_queueFullCallerRuns_notRunOnCaller() {
+        executor = new TopKUpdateExecutor(1, 1, TopKUpdateExecutor.RejectionPolicy.CALLER_RUNS);
+        var release = new CountDownLatch(1);
+        var executed = new AtomicInteger();
+        assertThat(executor.tryExecute(() -> await(release)), is(true));
+        assertThat(executor.tryExecute(executed::incrementAndGet), is(true));
+        assertThat(executor.tryExecute(executed::incrementAndGet), is(false));
+
+        assertThat(executed.get(), is(0));
+        assertThat(executor.getStats().getRejected(), is(1L));
+        release.countDown();
+        executor.shutdown();
+        assertThat(executed.get(), is(1));
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await(10, TimeUnit.SECONDS);
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
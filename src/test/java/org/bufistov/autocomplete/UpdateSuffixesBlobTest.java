@@ -0,0 +1,63 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.storage.InMemoryStorage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.bufistov.autocomplete.TopKBlobTest.toSuffixCount;
+import static org.bufistov.autocomplete.TopKUpdateStatus.CONDITION_FAILED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class UpdateSuffixesBlobTest {
+
+    private static final String PREFIX = "que";
+
+    private static final long TOPK = 2;
+
+    private final InMemoryStorage storage = new InMemoryStorage(16);
+
+    private final UpdateSuffixesBlob updateSuffixesBlob = new UpdateSuffixesBlob(storage);
+
+    @Test
+    void test_addSuffixes_sortedAndLimited() {
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("query", 1L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("quest", 3L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("queue", 2L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("quell", 2L, PREFIX, TOPK), is(NO_UPDATE_REQUIRED));
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("quest", 2L, PREFIX, TOPK), is(NO_UPDATE_REQUIRED));
+
+        var current = storage.getTopKQueries(PREFIX);
+        assertThat(current.getVersion(), is(3L));
+        assertThat(updateSuffixesBlob.toSortedList(current), is(List.of(
+                toSuffixCount("ue", 2L), toSuffixCount("st", 3L))));
+    }
+
+    @Test
+    void test_topKDecreased_prunedOnUpdate() {
+        updateSuffixesBlob.updateTopKSuffixes("query", 1L, PREFIX, 3L);
+        updateSuffixesBlob.updateTopKSuffixes("quest", 3L, PREFIX, 3L);
+        updateSuffixesBlob.updateTopKSuffixes("queue", 2L, PREFIX, 3L);
+
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("quest", 3L, PREFIX, 1L), is(SUCCESS));
+        assertThat(updateSuffixesBlob.toSortedList(storage.getTopKQueries(PREFIX)), is(List.of(
+                toSuffixCount("st", 3L))));
+    }
+
+    @Test
+    void test_staleItem_conditionFailed() {
+        var stale = storage.getTopKQueries(PREFIX);
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("query", 1L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesBlob.updateTopKSuffixes("quest", 1L, PREFIX, TOPK, stale), is(CONDITION_FAILED));
+    }
+
+    @Test
+    void test_toSortedListNull_emptyList() {
+        assertThat(new UpdateSuffixesBlob().toSortedList(null), is(List.of()));
+        assertThat(new UpdateSuffixesBlob().toSortedList(PrefixTopK.builder().build()), is(List.of()));
+    }
+}
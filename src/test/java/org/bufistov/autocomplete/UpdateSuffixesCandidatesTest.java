@@ -0,0 +1,122 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.storage.InMemoryStorage;
+import org.bufistov.storage.Storage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.bufistov.autocomplete.TopKBlobTest.toSuffixCount;
+import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class UpdateSuffixesCandidatesTest {
+
+    private static final String PREFIX = "que";
+
+    private static final long TOPK = 2;
+
+    private static final int FACTOR = 2;
+
+    private final InMemoryStorage storage = new InMemoryStorage(16);
+
+    private final UpdateSuffixesCandidates updateSuffixesCandidates = new UpdateSuffixesCandidates(storage, TOPK, FACTOR);
+
+    @Test
+    void test_addSuffixes_prunedInlineAndTrimmedOnRead() {
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("query", 1L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("quest", 3L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("queue", 2L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("quell", 1L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("queen", 1L, PREFIX, TOPK), is(NO_UPDATE_REQUIRED));
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("quest", 2L, PREFIX, TOPK), is(NO_UPDATE_REQUIRED));
+        assertThat(updateSuffixesCandidates.updateTopKSuffixes("queen", 4L, PREFIX, TOPK), is(SUCCESS));
+
+        var current = storage.getTopKQueries(PREFIX);
+        assertThat(current.getTopK5(), is(Map.of("ry", 1L, "st", 3L, "ue", 2L, "en", 4L)));
+        assertThat(updateSuffixesCandidates.toSortedList(current), is(List.of(
+                toSuffixCount("st", 3L), toSuffixCount("en", 4L))));
+    }
+
+    @Test
+    void test_overflow_smallestCandidatesRemoved() {
+        assertThat(UpdateSuffixesCandidates.overflow(Map.of("a", 1L, "b", 2L), 2), is(Map.of()));
+        assertThat(UpdateSuffixesCandidates.overflow(Map.of("a", 1L, "b", 2L, "c", 1L, "d", 3L), 2),
+                is(Map.of("a", 1L, "c", 1L)));
+    }
+
+    @Test
+    void test_compactorScheduled_candidatesPrunedOnCompaction() {
+        var compactor = new CandidateCompactor(storage, TOPK * FACTOR, 1000);
+        updateSuffixesCandidates.setCompactor(compactor);
+        for (long count = 1; count <= 6; ++count) {
+            updateSuffixesCandidates.updateTopKSuffixes("que" + count, count, PREFIX, TOPK);
+        }
+        assertThat(storage.getTopKQueries(PREFIX).getTopK5().size(), is(6));
+        assertThat(compactor.getStats().getPendingPrefixes(), is(1));
+
+        compactor.compact();
+
+        assertThat(storage.getTopKQueries(PREFIX).getTopK5(), is(Map.of("3", 3L, "4", 4L, "5", 5L, "6", 6L)));
+        var stats = compactor.getStats();
+        assertThat(stats.getPendingPrefixes(), is(0));
+        assertThat(stats.getCompactions(), is(1L));
+        assertThat(stats.getPrunedCandidates(), is(2L));
+    }
+
+    @Test
+    void test_concurrentUpdates_maxCountsKept() throws Exception {
+        int threads = 8;
+        int maxCount = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; ++i) {
+            executor.execute(() -> {
+                for (int count = 1; count <= maxCount; ++count) {
+                    for (String query : List.of("query", "quest", "queue")) {
+                        long queryCount = query.equals("queue") ? count / 2 : count;
+                        var status = updateSuffixesCandidates.updateTopKSuffixes(query, queryCount, PREFIX, TOPK);
+                        assertThat(status == SUCCESS || status == NO_UPDATE_REQUIRED, is(true));
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES), is(true));
+
+        assertThat(updateSuffixesCandidates.toSortedList(storage.getTopKQueries(PREFIX)), is(List.of(
+                toSuffixCount("ry", (long) maxCount), toSuffixCount("st", (long) maxCount))));
+    }
+
+    @Test
+    void test_toSortedListNull_emptyList() {
+        assertThat(updateSuffixesCandidates.toSortedList(null), is(List.of()));
+        assertThat(updateSuffixesCandidates.toSortedList(PrefixTopK.builder().build()), is(List.of()));
+    }
+
+    @Test
+    void test_compactionFails_retriedOnNextRunOnly() {
+        var failingStorage = mock(Storage.class);
+        when(failingStorage.getTopKQueries(PREFIX)).thenThrow(new IllegalStateException("Storage is down"));
+        var compactor = new CandidateCompactor(failingStorage, TOPK * FACTOR, 1000);
+        compactor.schedule(PREFIX);
+
+        compactor.compact();
+        verify(failingStorage, times(1)).getTopKQueries(PREFIX);
+        assertThat(compactor.getStats().getPendingPrefixes(), is(1));
+        assertThat(compactor.getStats().getCompactionErrors(), is(1L));
+
+        compactor.compact();
+        verify(failingStorage, times(2)).getTopKQueries(PREFIX);
+    }
+}
@@ -0,0 +1,83 @@
+package org.bufistov.autocomplete;
+
+import org.bufistov.model.PrefixTopK;
+import org.bufistov.storage.InMemoryStorage;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.bufistov.autocomplete.TopKBlobTest.toSuffixCount;
+import static org.bufistov.autocomplete.TopKUpdateStatus.NO_UPDATE_REQUIRED;
+import static org.bufistov.autocomplete.TopKUpdateStatus.SUCCESS;
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+
+public class UpdateSuffixesClusteredTest {
+
+    private static final String PREFIX = "que";
+
+    private static final long TOPK = 2;
+
+    private final InMemoryStorage storage = new InMemoryStorage(16);
+
+    private final UpdateSuffixesClustered updateSuffixesClustered = new UpdateSuffixesClustered(storage, TOPK);
+
+    @Test
+    void test_addSuffixes_sortedAndTrimmed() {
+        assertThat(updateSuffixesClustered.updateTopKSuffixes("query", 1L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesClustered.updateTopKSuffixes("quest", 3L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesClustered.updateTopKSuffixes("queue", 2L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(updateSuffixesClustered.updateTopKSuffixes("quell", 2L, PREFIX, TOPK), is(NO_UPDATE_REQUIRED));
+        assertThat(updateSuffixesClustered.updateTopKSuffixes("quest", 2L, PREFIX, TOPK), is(NO_UPDATE_REQUIRED));
+
+        var current = storage.getTopKQueries(PREFIX);
+        assertThat(current.getTopK4(), is(List.of(toSuffixCount("st", 3L), toSuffixCount("ue", 2L))));
+        assertThat(updateSuffixesClustered.toSortedList(current), is(List.of(
+                toSuffixCount("ue", 2L), toSuffixCount("st", 3L))));
+    }
+
+    @Test
+    void test_staleRows_skippedOnReadAndRemovedOnUpdate() {
+        storage.mergeSuffixRow(PREFIX, "ry", 5, null);
+        storage.mergeSuffixRow(PREFIX, "ry", 1, null);
+        storage.mergeSuffixRow(PREFIX, "st", 3, null);
+        assertThat(updateSuffixesClustered.toSortedList(storage.getTopKQueries(PREFIX)), is(List.of(
+                toSuffixCount("st", 3L), toSuffixCount("ry", 5L))));
+
+        assertThat(updateSuffixesClustered.updateTopKSuffixes("quest", 4L, PREFIX, TOPK), is(SUCCESS));
+        assertThat(storage.getTopKQueries(PREFIX).getTopK4(), is(List.of(
+                toSuffixCount("ry", 5L), toSuffixCount("st", 4L))));
+    }
+
+    @Test
+    void test_concurrentUpdates_maxCountsKept() throws Exception {
+        int threads = 8;
+        int maxCount = 200;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; ++i) {
+            executor.execute(() -> {
+                for (int count = 1; count <= maxCount; ++count) {
+                    for (String query : List.of("query", "quest", "queue")) {
+                        long queryCount = query.equals("queue") ? count / 2 : count;
+                        var status = updateSuffixesClustered.updateTopKSuffixes(query, queryCount, PREFIX, TOPK);
+                        assertThat(status == SUCCESS || status == NO_UPDATE_REQUIRED, is(true));
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES), is(true));
+
+        assertThat(updateSuffixesClustered.toSortedList(storage.getTopKQueries(PREFIX)), is(List.of(
+                toSuffixCount("ry", (long) maxCount), toSuffixCount("st", (long) maxCount))));
+    }
+
+    @Test
+    void test_toSortedListNull_emptyList() {
+        assertThat(updateSuffixesClustered.toSortedList(null), is(List.of()));
+        assertThat(updateSuffixesClustered.toSortedList(PrefixTopK.builder().build()), is(List.of()));
+    }
+}
@@ -304,6 +304,28 @@ public class UpdateSuffixesMapTest {
         assertThat(versionCaptor.getValue(), is(1L));
     }
 
+    @Test
+    void test_mergeTopKSuffixes_oneUpdate() {
+        when(storage.getTopKQueries(getPrefixCaptor.capture())).thenReturn(PrefixTopK.builder()
+                .topK(Map.of(SUFFIX1, SUFFIX1_COUNT, SUFFIX2, SUFFIX2_COUNT, "3", 3L))
+                .version(VERSION)
+                .build());
+        var result = updateSuffixesMap.mergeTopKSuffixes(PREFIX, List.of(
+                toSuffixCount(SUFFIX1, SUFFIX1_COUNT), toSuffixCount("3", 4L), toSuffixCount("5", 5L)), TOPK);
+        assertThat(result, is(SUCCESS));
+        assertThat(updatePrefixCaptor.getValue(), is(PREFIX));
+        assertThat(toRemoveCaptor.getValue(), is(Set.of(SUFFIX1)));
+        assertThat(newSuffixesCaptor.getValue(), is(Map.of("3", 4L, "5", 5L)));
+        assertThat(versionCaptor.getValue(), is(VERSION));
+    }
+
+    @Test
+    void test_mergeTopKSuffixesSameTopK_noUpdate() {
+        var result = updateSuffixesMap.mergeTopKSuffixes(PREFIX, List.of(toSuffixCount(SUFFIX1, SUFFIX1_COUNT)), TOPK);
+        assertThat(result, is(NO_UPDATE_REQUIRED));
+        verify(storage, never()).updateTopKQueries(any(), any(), any(), any());
+    }
+
     @Test
     void test_toSortedListNonNull_success() {
         assertThat(updateSuffixesMap.toSortedList(PrefixTopK.builder()
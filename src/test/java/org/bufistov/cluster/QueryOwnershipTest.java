@@ -0,0 +1,239 @@
+package org.bufistov.cluster;
+
+import org.bufistov.autocomplete.QueryHandlerConfig;
+import org.bufistov.autocomplete.QueryHandlerImpl;
+import org.bufistov.autocomplete.RandomInterval;
+import org.bufistov.autocomplete.TopKUpdateStatus;
+import org.bufistov.autocomplete.UpdateSuffixes;
+import org.bufistov.autocomplete.UpdateSuffixesMap;
+import org.bufistov.model.QueryCount;
+import org.bufistov.storage.InMemoryStorage;
+import org.bufistov.storage.Storage;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+public class QueryOwnershipTest {
+
+    private static final List<String> MEMBERS = List.of("host1:8080", "host2:8080", "host3:8080");
+
+    private static final int VIRTUAL_NODES = 128;
+
+    private static final long MAX_TRACKED_QUERIES = 1000;
+
+    private static final List<String> QUERIES = IntStream.range(0, 300)
+            .mapToObj(i -> "query" + i)
+            .collect(Collectors.toList());
+
+    private static final QueryHandlerConfig TEST_CONFIG = QueryHandlerConfig.builder()
+            .maxQuerySize(100)
+            .maxRetriesToUpdateTopK(4L)
+            .topK(3L)
+            .queryUpdateCount(2L)
+            .queryUpdateMillis(1000L)
+            .firstQueryUpdateCount(20L)
+            .build();
+
+    @Mock
+    Storage storage;
+
+    @Mock
+    UpdateSuffixes updateSuffixes;
+
+    @Mock
+    RandomInterval randomInterval;
+
+    Clock clock = Clock.fixed(Instant.now(), ZoneId.systemDefault());
+
+    @BeforeEach
+    public void setUp() {
+        openMocks(this);
+        when(storage.addQuery(anyString())).thenAnswer(invocation -> QueryCount.builder()
+                .query(invocation.getArgument(0))
+                .count(10L)
+                .sinceLastUpdate(10L)
+                .lastUpdateTime(Date.from(clock.instant()))
+                .build());
+        when(updateSuffixes.updateTopKSuffixes(anyString(), anyLong(), anyString(), anyLong()))
+                .thenReturn(TopKUpdateStatus.SUCCESS);
+    }
+
+    @Test
+    public void testOwnerDoesNotDependOnMemberOrder() {
+        var ownership = new QueryOwnership(MEMBERS.get(0), MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        var reversed = new ArrayList<>(MEMBERS);
+        Collections.reverse(reversed);
+        var other = new QueryOwnership(MEMBERS.get(1), reversed, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        for (String query : QUERIES) {
+            assertThat(ownership.ownerOf(query), is(other.ownerOf(query)));
+        }
+    }
+
+    @Test
+    public void testQueriesAreSpreadAcrossMembers() {
+        var ownership = new QueryOwnership(MEMBERS.get(0), MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        Map<String, Long> owned = QUERIES.stream()
+                .collect(Collectors.groupingBy(ownership::ownerOf, Collectors.counting()));
+        assertThat(owned.size(), is(MEMBERS.size()));
+        owned.values().forEach(count -> assertThat(count, greaterThan(QUERIES.size() / 10L)));
+    }
+
+    @Test
+    public void testRemovedMemberMovesOnlyItsQueries() {
+        var ownership = new QueryOwnership(MEMBERS.get(0), MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        Map<String, String> before = QUERIES.stream()
+                .collect(Collectors.toMap(query -> query, ownership::ownerOf));
+        ownership.setMembers(MEMBERS.subList(0, 2));
+        for (String query : QUERIES) {
+            if (!before.get(query).equals(MEMBERS.get(2))) {
+                assertThat(ownership.ownerOf(query), is(before.get(query)));
+            }
+        }
+    }
+
+    @Test
+    public void testPropagationOfTheSameUpdateTimeStartsOnce() {
+        var ownership = new QueryOwnership(MEMBERS.get(0), MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        var now = Date.from(clock.instant());
+        var first = ownership.tryStartPropagation("query", null, now);
+        assertThat(first, is(now));
+        assertThat(ownership.tryStartPropagation("query", null, now), is(nullValue()));
+        // Same clock value, the new update time still differs from the one the propagation is based on.
+        var second = ownership.tryStartPropagation("query", first, now);
+        assertThat(second, is(new Date(now.getTime() + 1)));
+        assertThat(ownership.tryStartPropagation("query", first, now), is(nullValue()));
+        assertThat(ownership.getStats().getDuplicatesSkipped(), is(2L));
+    }
+
+    @Test
+    public void testOverlappingForwardsResetTemporalCounterOnce() {
+        String self = MEMBERS.get(0);
+        var ownership = new QueryOwnership(self, MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        String query = QUERIES.stream()
+                .filter(ownership::isOwner)
+                .findFirst()
+                .orElseThrow();
+        var inMemoryStorage = new InMemoryStorage(16);
+        var handler = new QueryHandlerImpl(inMemoryStorage, TEST_CONFIG, new UpdateSuffixesMap(inMemoryStorage),
+                randomInterval, clock);
+        handler.setQueryOwnership(ownership);
+        // Two nodes counted the query and read the counter before any reset.
+        var first = inMemoryStorage.addQuery(query, 100);
+        var second = inMemoryStorage.addQuery(query, 5);
+
+        handler.onForwardedQuery(first);
+        handler.onForwardedQuery(second);
+
+        var current = inMemoryStorage.addQuery(query, 0);
+        assertThat(current.getCount(), is(105L));
+        assertThat(current.getSinceLastUpdate(), is(5L));
+        assertThat(ownership.getStats().getOwnedPropagations(), is(1L));
+        assertThat(ownership.getStats().getDuplicatesSkipped(), is(1L));
+    }
+
+    @Test
+    public void testLostLockAbortsPropagation() {
+        String self = MEMBERS.get(0);
+        var ownership = new QueryOwnership(self, MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        String query = QUERIES.stream()
+                .filter(ownership::isOwner)
+                .findFirst()
+                .orElseThrow();
+        var inMemoryStorage = new InMemoryStorage(16);
+        var handler = new QueryHandlerImpl(inMemoryStorage, TEST_CONFIG, new UpdateSuffixesMap(inMemoryStorage),
+                randomInterval, clock);
+        handler.setQueryOwnership(ownership);
+        var stale = inMemoryStorage.addQuery(query, 100);
+        // Another node propagated the query, e.g. during a membership change.
+        assertThat(inMemoryStorage.lockQueryForTopKUpdate(query, null, new Date(clock.millis() - 1000)), is(true));
+
+        handler.onForwardedQuery(stale);
+        var current = inMemoryStorage.addQuery(query, 0);
+        assertThat(current.getSinceLastUpdate(), is(100L));
+
+        handler.onForwardedQuery(current);
+        assertThat(inMemoryStorage.addQuery(query, 0).getSinceLastUpdate(), is(0L));
+        assertThat(ownership.getStats().getOwnedPropagations(), is(2L));
+    }
+
+    @Test
+    public void testOnlyOwnersPropagateWithOneLockPerUpdate() {
+        when(storage.lockQueryForTopKUpdate(anyString(), any(), any())).thenReturn(true);
+        var handlers = new HashMap<String, QueryHandlerImpl>();
+        var ownerships = new HashMap<String, QueryOwnership>();
+        QueryForwarder inProcessForwarder = (owner, queryCount) -> {
+            handlers.get(owner).onForwardedQuery(queryCount);
+            return CompletableFuture.completedFuture(null);
+        };
+        for (String member : MEMBERS) {
+            var ownership = new QueryOwnership(member, MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+            var handler = new QueryHandlerImpl(storage, TEST_CONFIG, updateSuffixes, randomInterval, clock);
+            handler.setQueryOwnership(ownership);
+            handler.setQueryForwarder(inProcessForwarder);
+            handlers.put(member, handler);
+            ownerships.put(member, ownership);
+        }
+
+        for (String query : QUERIES) {
+            handlers.values().forEach(handler -> handler.addQuery(query));
+        }
+
+        for (String query : QUERIES) {
+            verify(storage, times(1)).lockQueryForTopKUpdate(eq(query), any(Date.class), any(Date.class));
+        }
+        long propagated = ownerships.values().stream()
+                .mapToLong(ownership -> ownership.getStats().getOwnedPropagations())
+                .sum();
+        assertThat(propagated, is((long) QUERIES.size()));
+        long forwarded = ownerships.values().stream()
+                .mapToLong(ownership -> ownership.getStats().getForwarded())
+                .sum();
+        assertThat(forwarded, is(2L * QUERIES.size()));
+    }
+
+    @Test
+    public void testFailedForwardFallsBackToLock() {
+        String self = MEMBERS.get(0);
+        var ownership = new QueryOwnership(self, MEMBERS, VIRTUAL_NODES, MAX_TRACKED_QUERIES);
+        String query = QUERIES.stream()
+                .filter(q -> !ownership.isOwner(q))
+                .findFirst()
+                .orElseThrow();
+        var handler = new QueryHandlerImpl(storage, TEST_CONFIG, updateSuffixes, randomInterval, clock);
+        handler.setQueryOwnership(ownership);
+        handler.setQueryForwarder((owner, queryCount) ->
+                CompletableFuture.failedFuture(new RuntimeException("Owner is down")));
+
+        handler.addQuery(query);
+
+        verify(storage, times(1)).lockQueryForTopKUpdate(eq(query), any(Date.class), any(Date.class));
+        assertThat(ownership.getStats().getForwardFailures(), is(1L));
+        assertThat(ownership.getStats().getOwnedPropagations(), is(0L));
+    }
+}
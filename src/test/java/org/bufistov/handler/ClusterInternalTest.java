@@ -0,0 +1,85 @@
+package org.bufistov.handler;
+
+import org.bufistov.autocomplete.QueryHandler;
+import org.bufistov.cluster.QueryOwnership;
+import org.bufistov.model.QueryCount;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+public class ClusterInternalTest {
+
+    private static final String SECRET = "secret";
+
+    private static final List<String> SEEDS = List.of("host1:8080", "host2:8080", "host3:8080");
+
+    private static final QueryCount QUERY_COUNT = QueryCount.builder()
+            .query("google")
+            .count(10L)
+            .sinceLastUpdate(10L)
+            .build();
+
+    @Mock
+    QueryHandler queryHandler;
+
+    QueryOwnership queryOwnership;
+
+    ClusterInternal clusterInternal;
+
+    @BeforeEach
+    public void setUp() {
+        openMocks(this);
+        queryOwnership = new QueryOwnership(SEEDS.get(0), SEEDS, 16, 100);
+        clusterInternal = new ClusterInternal(queryHandler, queryOwnership, SECRET);
+    }
+
+    @Test
+    public void propagate_withoutOrWrongSecret_unauthorized() {
+        var missing = assertThrows(ResponseStatusException.class,
+                () -> clusterInternal.propagate(null, QUERY_COUNT));
+        assertThat(missing.getStatus(), is(HttpStatus.UNAUTHORIZED));
+        var wrong = assertThrows(ResponseStatusException.class,
+                () -> clusterInternal.propagate("secreT", QUERY_COUNT));
+        assertThat(wrong.getStatus(), is(HttpStatus.UNAUTHORIZED));
+        verify(queryHandler, never()).onForwardedQuery(any());
+
+        clusterInternal.propagate(SECRET, QUERY_COUNT);
+        verify(queryHandler).onForwardedQuery(QUERY_COUNT);
+    }
+
+    @Test
+    public void setMembers_withoutSecret_unauthorizedAndMembersKept() {
+        assertThrows(ResponseStatusException.class, () -> clusterInternal.setMembers(null, List.of("host1:8080")));
+        assertThrows(ResponseStatusException.class, () -> clusterInternal.members("other"));
+        assertThat(clusterInternal.members(SECRET), is(SEEDS));
+    }
+
+    @Test
+    public void setMembers_notASeed_badRequest() {
+        var exception = assertThrows(IllegalArgumentException.class,
+                () -> clusterInternal.setMembers(SECRET, List.of("host1:8080", "attacker:80")));
+        assertThat(clusterInternal.badRequest(exception),
+                is("Members [attacker:80] are not among the configured seeds"));
+        assertThat(clusterInternal.members(SECRET), is(SEEDS));
+
+        clusterInternal.setMembers(SECRET, SEEDS.subList(0, 2));
+        assertThat(clusterInternal.members(SECRET), is(SEEDS.subList(0, 2)));
+    }
+
+    @Test
+    public void constructor_emptySecret_rejected() {
+        assertThrows(IllegalArgumentException.class, () -> new ClusterInternal(queryHandler, queryOwnership, ""));
+    }
+}
@@ -0,0 +1,125 @@
+package org.bufistov.handler;
+
+import org.bufistov.autocomplete.QueryHandler;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.model.TopKQueries;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mock;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.openMocks;
+
+public class QueryCompleteTest {
+
+    private static final String PREFIX = "goo";
+
+    private static final TopKQueries QUERIES = TopKQueries.builder()
+            .queries(List.of(SuffixCount.builder().suffix("google").count(10L).build()))
+            .prefix(PREFIX)
+            .version(3L)
+            .build();
+
+    @Mock
+    QueryHandler queryHandler;
+
+    QueryComplete queryComplete;
+
+    @BeforeEach
+    public void setUp() {
+        openMocks(this);
+        queryComplete = new QueryComplete(queryHandler);
+        queryComplete.setMaxAgeSeconds(5);
+        queryComplete.setMaxAddQueriesBatch(3);
+        when(queryHandler.getQueriesAsync(PREFIX)).thenReturn(CompletableFuture.completedFuture(QUERIES));
+        when(queryHandler.getQueriesVersionAsync(PREFIX)).thenReturn(CompletableFuture.completedFuture(3L));
+    }
+
+    @Test
+    public void queries_noCondition_bodyWithETag() {
+        var response = queryComplete.queries(PREFIX, null).join();
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertThat(response.getBody(), is(QUERIES));
+        assertThat(response.getHeaders().getETag(), is(QueryComplete.etag(PREFIX, 3L)));
+        assertThat(response.getHeaders().getCacheControl(), is("max-age=5"));
+        verify(queryHandler, never()).getQueriesVersionAsync(anyString());
+    }
+
+    @Test
+    public void queries_sameVersion_notModified() {
+        var response = queryComplete.queries(PREFIX, "W/" + QueryComplete.etag(PREFIX, 3L)).join();
+        assertThat(response.getStatusCode(), is(HttpStatus.NOT_MODIFIED));
+        assertThat(response.getBody(), nullValue());
+        verify(queryHandler, never()).getQueriesAsync(anyString());
+    }
+
+    @Test
+    public void queries_newVersion_body() {
+        var response = queryComplete.queries(PREFIX, QueryComplete.etag(PREFIX, 2L)).join();
+        assertThat(response.getStatusCode(), is(HttpStatus.OK));
+        assertThat(response.getBody(), is(QUERIES));
+        assertThat(response.getHeaders().getETag(), is(QueryComplete.etag(PREFIX, 3L)));
+    }
+
+    @Test
+    public void addQueries_textWithEmptyLines_emptyLinesSkipped() {
+        queryComplete.addQueries("google\n\nyahoo\n");
+        verify(queryHandler).addQueries(List.of("google", "yahoo"));
+    }
+
+    @Test
+    public void addQueries_jsonWithNullOrEmpty_badRequest() {
+        var exception = assertThrows(IllegalArgumentException.class,
+                () -> queryComplete.addQueries(Arrays.asList("google", null)));
+        assertThat(queryComplete.badRequest(exception), is("Queries must not be null or empty"));
+        assertThrows(IllegalArgumentException.class, () -> queryComplete.addQueries(List.of("google", "")));
+        verify(queryHandler, never()).addQueries(any());
+    }
+
+    @Test
+    public void addQueries_emptyBatch_badRequest() {
+        var exception = assertThrows(IllegalArgumentException.class, () -> queryComplete.addQueries(List.of()));
+        assertThat(queryComplete.badRequest(exception), is("Queries must not be empty"));
+        assertThrows(IllegalArgumentException.class, () -> queryComplete.addQueries("\n\n"));
+        verify(queryHandler, never()).addQueries(any());
+    }
+
+    @Test
+    public void addQueries_batchAboveMax_badRequest() {
+        var exception = assertThrows(IllegalArgumentException.class,
+                () -> queryComplete.addQueries(List.of("a", "b", "c", "d")));
+        assertThat(queryComplete.badRequest(exception), is("At most 3 queries are allowed in a batch, got 4"));
+        assertThrows(IllegalArgumentException.class, () -> queryComplete.addQueries("a\nb\nc\nd\n"));
+        verify(queryHandler, never()).addQueries(any());
+
+        queryComplete.addQueries(List.of("a", "b", "c"));
+        verify(queryHandler).addQueries(List.of("a", "b", "c"));
+    }
+
+    @Test
+    public void badRequest_mappedTo400() throws NoSuchMethodException {
+        var method = QueryComplete.class.getMethod("badRequest", IllegalArgumentException.class);
+        assertThat(method.getAnnotation(ResponseStatus.class).value(), is(HttpStatus.BAD_REQUEST));
+    }
+
+    @Test
+    public void etag_differentPrefixes_different() {
+        assertThat(QueryComplete.etag("a", 1L).equals(QueryComplete.etag("b", 1L)), is(false));
+        assertThat(QueryComplete.etagMatches("\"x\", " + QueryComplete.etag("a", 1L), QueryComplete.etag("a", 1L)),
+                is(true));
+    }
+}
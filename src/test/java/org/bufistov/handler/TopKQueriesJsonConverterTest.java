@@ -0,0 +1,54 @@
+package org.bufistov.handler;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.bufistov.model.SuffixCount;
+import org.bufistov.model.TopKQueries;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.not;
+import static org.hamcrest.Matchers.sameInstance;
+
+public class TopKQueriesJsonConverterTest {
+
+    private final TopKQueriesJsonConverter converter = new TopKQueriesJsonConverter(new ObjectMapper(), 1 << 20);
+
+    @Test
+    public void encode_sameVersion_cachedBytes() {
+        byte[] first = converter.encode(queries("q", 1L, "query"));
+        byte[] second = converter.encode(queries("q", 1L, "query"));
+        assertThat(second, sameInstance(first));
+        assertThat(new String(first, StandardCharsets.UTF_8), is("{\"queries\":[{\"suffix\":\"query\",\"count\":1}]}"));
+        assertThat(converter.getStats().getHits(), is(1L));
+        assertThat(converter.getStats().getEncodes(), is(1L));
+    }
+
+    @Test
+    public void encode_newVersion_encodedAgain() {
+        byte[] first = converter.encode(queries("q", 1L, "query"));
+        byte[] second = converter.encode(queries("q", 2L, "quest"));
+        assertThat(second, not(sameInstance(first)));
+        assertThat(new String(second, StandardCharsets.UTF_8), is("{\"queries\":[{\"suffix\":\"quest\",\"count\":1}]}"));
+        assertThat(converter.getStats().getEncodes(), is(2L));
+    }
+
+    @Test
+    public void encode_noPrefix_notCached() {
+        var queries = queries(null, null, "query");
+        assertThat(converter.encode(queries), not(sameInstance(converter.encode(queries))));
+        assertThat(converter.getStats().getUncached(), is(2L));
+        assertThat(converter.getStats().getEntries(), is(0L));
+    }
+
+    private static TopKQueries queries(String prefix, Long version, String query) {
+        return TopKQueries.builder()
+                .queries(List.of(SuffixCount.builder().suffix(query).count(1L).build()))
+                .prefix(prefix)
+                .version(version)
+                .build();
+    }
+}
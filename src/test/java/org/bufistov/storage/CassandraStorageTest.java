@@ -0,0 +1,24 @@
+package org.bufistov.storage;
+
+import org.bufistov.model.SuffixCount;
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class CassandraStorageTest {
+
+    @Test
+    public void toCandidates_maxCountOfEverySuffix() {
+        var tuples = Set.of(
+                CassandraStorage.toTuple(SuffixCount.builder().suffix("uery").count(3L).build()),
+                CassandraStorage.toTuple(SuffixCount.builder().suffix("uery").count(5L).build()),
+                CassandraStorage.toTuple(SuffixCount.builder().suffix("uest").count(2L).build()));
+        assertThat(CassandraStorage.toCandidates(tuples), is(Map.of("uery", 5L, "uest", 2L)));
+        assertThat(CassandraStorage.toCandidates(null), is(nullValue()));
+    }
+}
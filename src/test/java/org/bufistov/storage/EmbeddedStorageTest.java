@@ -0,0 +1,190 @@
+package org.bufistov.storage;
+
+import org.bufistov.model.SuffixCount;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.greaterThan;
+import static org.hamcrest.Matchers.hasSize;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class EmbeddedStorageTest {
+
+    private static final int SEGMENT_BYTES = 4096;
+
+    @TempDir
+    Path directory;
+
+    private EmbeddedStorage storage;
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        if (storage != null) {
+            storage.close();
+        }
+    }
+
+    @Test
+    public void reopen_stateRecoveredFromLog() throws IOException {
+        storage = open();
+        writeSomeState();
+        assertThat(storage.addSuffixes("q", Map.of("uest", 1L), null), is(false));
+        var blob = ByteBuffer.wrap(new byte[]{1, 2, 3});
+        assertThat(storage.updateTopK3Queries("b", blob, null), is(true));
+        storage.mergeSuffixRow("c", "at", 2, null);
+        storage.mergeSuffixRow("c", "ow", 3, null);
+        storage.mergeCandidate("d", "og", 4, null);
+        storage.mergeCandidate("d", "ot", 1, null);
+        storage.removeCandidates("d", Map.of("ot", 1L));
+
+        reopen();
+
+        assertSomeState();
+        assertThat(storage.getTopKQueries("b").getTopK3(), is(blob));
+        assertThat(storage.getTopKQueries("c").getTopK4(), is(List.of(
+                SuffixCount.builder().suffix("ow").count(3L).build(),
+                SuffixCount.builder().suffix("at").count(2L).build())));
+        assertThat(storage.getTopKQueries("d").getTopK5(), is(Map.of("og", 4L)));
+        assertThat(storage.getStats().getRecoveredRecords(), greaterThan(0L));
+    }
+
+    @Test
+    public void reopen_afterSnapshot_stateRecoveredFromSnapshotAndLog() throws IOException {
+        storage = open();
+        writeSomeState();
+        storage.snapshot();
+        storage.addQuery("query", 2);
+        assertThat(storage.removeSuffixes("q", Set.of("uery"), 2L), is(true));
+
+        reopen();
+
+        assertThat(storage.addQuery("query", 0).getCount(), is(7L));
+        var prefix = storage.getTopKQueries("q");
+        assertThat(prefix.getTopK(), is(Map.of()));
+        assertThat(prefix.getVersion(), is(3L));
+        assertThat(EmbeddedStorage.snapshotIds(directory), hasSize(1));
+    }
+
+    @Test
+    public void snapshot_deletesCoveredSegments() throws IOException {
+        storage = open();
+        for (int i = 0; i < 1000; ++i) {
+            storage.addQuery("query" + i);
+        }
+        assertThat(WriteAheadLog.segmentIds(directory).size(), greaterThan(1));
+
+        storage.snapshot();
+
+        assertThat(WriteAheadLog.segmentIds(directory), hasSize(1));
+        reopen();
+        for (int i = 0; i < 1000; ++i) {
+            assertThat(storage.addQuery("query" + i, 0).getCount(), is(1L));
+        }
+    }
+
+    @Test
+    public void reopen_tornRecord_ignored() throws IOException {
+        storage = open();
+        storage.addQuery("query", 3);
+        storage.addQuery("query", 4);
+        storage.close();
+        storage = null;
+        var segment = WriteAheadLog.segmentPath(directory, WriteAheadLog.segmentIds(directory).get(0));
+        try (var channel = FileChannel.open(segment, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SEGMENT_BYTES);
+            int firstLength = buffer.getInt(0);
+            int secondPayload = WriteAheadLog.HEADER_BYTES + firstLength + WriteAheadLog.HEADER_BYTES;
+            buffer.put(secondPayload + 1, (byte) (buffer.get(secondPayload + 1) + 1));
+            buffer.force();
+        }
+
+        storage = open();
+
+        assertThat(storage.addQuery("query", 0).getCount(), is(3L));
+    }
+
+    @Test
+    public void concurrentWritesAndSnapshots_lastStateRecovered() throws Exception {
+        storage = open();
+        int threads = 4;
+        int increments = 500;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; ++i) {
+            executor.execute(() -> {
+                for (int j = 0; j < increments; ++j) {
+                    storage.addQuery("query" + j % 10);
+                }
+            });
+        }
+        for (int i = 0; i < 5; ++i) {
+            storage.snapshot();
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(10, TimeUnit.SECONDS), is(true));
+
+        reopen();
+
+        for (int j = 0; j < 10; ++j) {
+            assertThat(storage.addQuery("query" + j, 0).getCount(), is((long) threads * increments / 10));
+        }
+    }
+
+    @Test
+    public void recordLargerThanSegment_rejected() throws IOException {
+        storage = open();
+        var longQuery = "q".repeat(SEGMENT_BYTES);
+        try {
+            storage.addQuery(longQuery);
+        } catch (IllegalArgumentException exception) {
+            return;
+        }
+        throw new AssertionError("IllegalArgumentException expected");
+    }
+
+    private void writeSomeState() {
+        storage.addQuery("query", 5);
+        storage.updateTemporalCounter("query", -5L);
+        assertThat(storage.lockQueryForTopKUpdate("query", null, new Date(1000)), is(true));
+        assertThat(storage.addSuffixes("q", Map.of("uery", 5L), null), is(true));
+        assertThat(storage.updateTopK1Queries("q",
+                Set.of(SuffixCount.builder().suffix("uery").count(5L).build()), 1L), is(true));
+    }
+
+    private void assertSomeState() {
+        var queryCount = storage.addQuery("query", 0);
+        assertThat(queryCount.getCount(), is(5L));
+        assertThat(queryCount.getSinceLastUpdate(), is(0L));
+        assertThat(queryCount.getLastUpdateTime(), is(new Date(1000)));
+        var prefix = storage.getTopKQueries("q");
+        assertThat(prefix.getTopK(), is(Map.of("uery", 5L)));
+        assertThat(prefix.getTopK1(), is(Set.of(SuffixCount.builder().suffix("uery").count(5L).build())));
+        assertThat(prefix.getTopK2(), is(List.of()));
+        assertThat(prefix.getVersion(), is(2L));
+        assertThat(storage.getTopKQueries("w").getVersion(), nullValue());
+    }
+
+    private EmbeddedStorage open() throws IOException {
+        return EmbeddedStorage.open(directory, 16, SEGMENT_BYTES, WriteAheadLog.FsyncPolicy.NEVER, 0, 0);
+    }
+
+    private void reopen() throws IOException {
+        storage.close();
+        storage = open();
+    }
+}
@@ -0,0 +1,187 @@
+package org.bufistov.storage;
+
+import org.bufistov.autocomplete.QueryHandlerConfig;
+import org.bufistov.autocomplete.QueryHandlerImpl;
+import org.bufistov.autocomplete.UniformRandomInterval;
+import org.bufistov.autocomplete.UpdateSuffixes;
+import org.bufistov.autocomplete.UpdateSuffixesBlob;
+import org.bufistov.autocomplete.UpdateSuffixesCandidates;
+import org.bufistov.autocomplete.UpdateSuffixesClustered;
+import org.bufistov.autocomplete.UpdateSuffixesMap;
+import org.bufistov.autocomplete.UpdateSuffixesTupleSet;
+import org.bufistov.autocomplete.UpdateSuffixesUdtSet;
+import org.bufistov.model.SuffixCount;
+import org.junit.jupiter.api.Test;
+
+import java.time.Clock;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.hamcrest.Matchers.nullValue;
+
+public class InMemoryStorageTest {
+
+    private final InMemoryStorage storage = new InMemoryStorage(16);
+
+    @Test
+    public void addQuery_countersIncremented() {
+        storage.addQuery("query");
+        var result = storage.addQuery("query", 3);
+        assertThat(result.getCount(), is(4L));
+        assertThat(result.getSinceLastUpdate(), is(4L));
+        assertThat(result.getLastUpdateTime(), nullValue());
+
+        storage.updateTemporalCounter("query", -4L);
+        assertThat(storage.addQuery("query").getSinceLastUpdate(), is(1L));
+    }
+
+    @Test
+    public void updateTopK_versionMismatch_notApplied() {
+        assertThat(storage.addSuffixes("q", Map.of("uery", 1L), 1L), is(false));
+        assertThat(storage.addSuffixes("q", Map.of("uery", 1L), null), is(true));
+        assertThat(storage.addSuffixes("q", Map.of("uest", 1L), null), is(false));
+        assertThat(storage.getTopKQueries("q").getVersion(), is(1L));
+
+        assertThat(storage.updateTopKQueries("q", Set.of("uery"), Map.of("uest", 2L), 1L), is(true));
+        var result = storage.getTopKQueries("q");
+        assertThat(result.getTopK(), is(Map.of("uest", 2L)));
+        assertThat(result.getVersion(), is(2L));
+    }
+
+    @Test
+    public void updateTopK1_replacesSet() {
+        var suffixes = Set.of(SuffixCount.builder().suffix("uery").count(1L).build());
+        assertThat(storage.updateTopK1Queries("q", suffixes, null), is(true));
+        assertThat(storage.updateTopK1Queries("q", Set.of(), null), is(false));
+        assertThat(storage.getTopKQueries("q").getTopK1(), is(suffixes));
+    }
+
+    @Test
+    public void updateTopK2_tuplesAddedAndRemoved() {
+        var query = SuffixCount.builder().suffix("uery").count(1L).build();
+        var quest = SuffixCount.builder().suffix("uest").count(2L).build();
+        assertThat(storage.updateTopK2Queries("q", Set.of(), Set.of(CassandraStorage.toTuple(query)), null), is(true));
+        assertThat(storage.updateTopK2Queries("q", Set.of(CassandraStorage.toTuple(query)),
+                Set.of(CassandraStorage.toTuple(quest)), 1L), is(true));
+        assertThat(storage.getTopKQueries("q").getTopK2(), is(List.of(quest)));
+    }
+
+    @Test
+    public void updateTopK2_ascendingOrderLikeCassandra() {
+        var tuples = List.of(
+                SuffixCount.builder().suffix("uery").count(3L).build(),
+                SuffixCount.builder().suffix("uest").count(1L).build(),
+                SuffixCount.builder().suffix("ueue").count(2L).build(),
+                SuffixCount.builder().suffix("uack").count(2L).build());
+        Long version = null;
+        for (var tuple : tuples) {
+            assertThat(storage.updateTopK2Queries("q", Set.of(), Set.of(CassandraStorage.toTuple(tuple)), version),
+                    is(true));
+            version = storage.getTopKQueries("q").getVersion();
+        }
+        assertThat(storage.getTopKQueries("q").getTopK2(), is(List.of(tuples.get(1), tuples.get(3),
+                tuples.get(2), tuples.get(0))));
+    }
+
+    @Test
+    public void lockQueryForTopKUpdate_compareAndSetOnUpdateTime() {
+        var first = new Date(1000);
+        var second = new Date(2000);
+        assertThat(storage.lockQueryForTopKUpdate("query", null, first), is(true));
+        assertThat(storage.lockQueryForTopKUpdate("query", null, second), is(false));
+        assertThat(storage.lockQueryForTopKUpdate("query", new Date(1000), second), is(true));
+        assertThat(storage.lockQueryForTopKUpdate("query", first, second), is(false));
+        assertThat(storage.addQuery("query").getLastUpdateTime(), is(second));
+    }
+
+    @Test
+    public void mergeSuffixRow_rowsInClusteringOrder() {
+        storage.mergeSuffixRow("q", "uery", 1, null);
+        storage.mergeSuffixRow("q", "uest", 2, null);
+        storage.mergeSuffixRow("q", "ueue", 2, null);
+        storage.mergeSuffixRow("q", "uery", 3, 1L);
+        storage.removeSuffixRows("q", List.of(SuffixCount.builder().suffix("ueue").count(2L).build()));
+
+        var result = storage.getTopKQueries("q");
+        assertThat(result.getTopK4(), is(List.of(
+                SuffixCount.builder().suffix("uery").count(3L).build(),
+                SuffixCount.builder().suffix("uest").count(2L).build())));
+        assertThat(result.getVersion(), is(4L));
+    }
+
+    @Test
+    public void mergeCandidate_maxCountKept() {
+        storage.mergeCandidate("q", "uery", 3, null);
+        storage.mergeCandidate("q", "uery", 1, null);
+        storage.mergeCandidate("q", "uest", 2, null);
+        storage.removeCandidates("q", Map.of("uery", 2L, "uest", 2L));
+
+        var result = storage.getTopKQueries("q");
+        assertThat(result.getTopK5(), is(Map.of("uery", 3L)));
+        assertThat(result.getVersion(), is(2L));
+    }
+
+    @Test
+    public void concurrentConditionalUpdates_noLostUpdates() throws Exception {
+        int threads = 8;
+        int incrementsPerThread = 1000;
+        var applied = new AtomicLong();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < threads; ++i) {
+            executor.execute(() -> {
+                for (int done = 0; done < incrementsPerThread; ) {
+                    var current = storage.getTopKQueries("q");
+                    long count = current.getTopK().getOrDefault("uery", 0L);
+                    if (storage.replaceSuffixCounter("q", "uery", count + 1, current.getVersion())) {
+                        applied.incrementAndGet();
+                        ++done;
+                    }
+                }
+            });
+        }
+        executor.shutdown();
+        assertThat(executor.awaitTermination(1, TimeUnit.MINUTES), is(true));
+        assertThat(applied.get(), is((long) threads * incrementsPerThread));
+        assertThat(storage.getTopKQueries("q").getTopK().get("uery"), is((long) threads * incrementsPerThread));
+        assertThat(storage.getTopKQueries("q").getVersion(), is((long) threads * incrementsPerThread));
+    }
+
+    @Test
+    public void queryHandler_topKQueries() {
+        var config = QueryHandlerConfig.builder()
+                .topK(2L)
+                .maxQuerySize(100)
+                .maxRetriesToUpdateTopK(10L)
+                .queryUpdateMillis(1000L)
+                .queryUpdateCount(1L)
+                .firstQueryUpdateCount(1L)
+                .build();
+        List<Function<Storage, UpdateSuffixes>> strategies = List.of(UpdateSuffixesMap::new,
+                UpdateSuffixesTupleSet::new, UpdateSuffixesUdtSet::new, UpdateSuffixesBlob::new,
+                storage -> new UpdateSuffixesClustered(storage, 2L),
+                storage -> new UpdateSuffixesCandidates(storage, 2L, 1));
+        for (var strategy : strategies) {
+            var storageUnderTest = new InMemoryStorage(16);
+            var queryHandler = new QueryHandlerImpl(storageUnderTest, config, strategy.apply(storageUnderTest),
+                    new UniformRandomInterval(new Random(0), 1), Clock.systemUTC());
+            try {
+                List.of("go", "google", "google", "gmail", "gmail", "gmail").forEach(queryHandler::addQuery);
+                assertThat(queryHandler.getQueries("g").getQueries(), is(List.of(
+                        SuffixCount.builder().suffix("google").count(2L).build(),
+                        SuffixCount.builder().suffix("gmail").count(3L).build())));
+            } finally {
+                queryHandler.shutdown();
+            }
+        }
+    }
+}
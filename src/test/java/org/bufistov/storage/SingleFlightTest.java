@@ -0,0 +1,112 @@
+package org.bufistov.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.is;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class SingleFlightTest {
+
+    private final SingleFlight<String, String> singleFlight = new SingleFlight<>();
+
+    @Test
+    public void get_concurrentSameKey_loadedOnce() throws Exception {
+        var loads = new AtomicInteger();
+        var release = new CountDownLatch(1);
+        var first = CompletableFuture.supplyAsync(() -> singleFlight.get("g", () -> {
+            loads.incrementAndGet();
+            awaitUninterruptibly(release);
+            return "value";
+        }));
+        waitFor(() -> singleFlight.getInFlight() == 1);
+        var second = CompletableFuture.supplyAsync(() -> singleFlight.get("g", () -> {
+            loads.incrementAndGet();
+            return "other";
+        }));
+        waitFor(() -> singleFlight.getRequests() == 2);
+        release.countDown();
+
+        assertThat(first.get(5, TimeUnit.SECONDS), is("value"));
+        assertThat(second.get(5, TimeUnit.SECONDS), is("value"));
+        assertThat(loads.get(), is(1));
+        assertThat(singleFlight.getLoads(), is(1L));
+        assertThat(singleFlight.getInFlight(), is(0));
+    }
+
+    @Test
+    public void get_sequential_loadedEveryTime() {
+        assertThat(singleFlight.get("g", () -> "1"), is("1"));
+        assertThat(singleFlight.get("g", () -> "2"), is("2"));
+        assertThat(singleFlight.getLoads(), is(2L));
+    }
+
+    @Test
+    public void get_loaderFails_errorPropagatedAndKeyReleased() {
+        assertThrows(IllegalStateException.class, () -> singleFlight.get("g", () -> {
+            throw new IllegalStateException();
+        }));
+        assertThat(singleFlight.getInFlight(), is(0));
+        assertThat(singleFlight.get("g", () -> "value"), is("value"));
+    }
+
+    @Test
+    public void getAsync_concurrentSameKey_loadedOnce() {
+        var load = new CompletableFuture<String>();
+        var first = singleFlight.getAsync("g", () -> load).toCompletableFuture();
+        var second = singleFlight.getAsync("g", () -> CompletableFuture.completedFuture("other")).toCompletableFuture();
+        assertThat(singleFlight.getInFlight(), is(1));
+        load.complete("value");
+
+        assertThat(first.join(), is("value"));
+        assertThat(second.join(), is("value"));
+        assertThat(singleFlight.getLoads(), is(1L));
+        assertThat(singleFlight.getInFlight(), is(0));
+    }
+
+    @Test
+    public void getAsync_loadFails_errorPropagatedToAll() {
+        var load = new CompletableFuture<String>();
+        var first = singleFlight.getAsync("g", () -> load).toCompletableFuture();
+        var second = singleFlight.getAsync("g", () -> load).toCompletableFuture();
+        load.completeExceptionally(new IllegalStateException());
+
+        assertThat(first.isCompletedExceptionally(), is(true));
+        assertThat(second.isCompletedExceptionally(), is(true));
+        assertThat(singleFlight.getInFlight(), is(0));
+    }
+
+    @Test
+    public void getAll_duplicateKeys_loadedOnce() {
+        var result = singleFlight.getAll(List.of("g", "go", "g"), keys -> {
+            assertThat(keys.size(), is(2));
+            return Map.of("g", "1", "go", "2");
+        });
+        assertThat(result, is(Map.of("g", "1", "go", "2")));
+        assertThat(singleFlight.getLoads(), is(2L));
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(5);
+        while (!condition.getAsBoolean()) {
+            assertThat("Condition is not met in time", System.currentTimeMillis() < deadline);
+            Thread.sleep(1);
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException exception) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}